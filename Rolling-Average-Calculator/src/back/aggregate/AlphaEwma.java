@@ -0,0 +1,62 @@
+package back.aggregate;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * An {@link Ewma} where each new value takes a fixed share of the average. The first value
+ * starts the average off.
+ */
+class AlphaEwma extends Ewma {
+    
+    private static final byte KIND = 0;
+    
+    private final double alpha;
+    private double average = 0;
+    private boolean isEmpty = true;
+    
+    AlphaEwma( final double alpha ) {
+        
+        if (!( alpha > 0 && alpha <= 1 )) {
+            throw new IllegalArgumentException("Alpha must be above 0 and at most 1: " + alpha);
+        }
+        this.alpha = alpha;
+    }
+    
+    @Override
+    public synchronized void add( final int value, final long timeMs ) {
+        
+        if (isEmpty) {
+            average = value;
+            isEmpty = false;
+        } else {
+            average += alpha * ( value - average );
+        }
+    }
+    
+    @Override
+    public synchronized double getAverage() {
+        
+        return average;
+    }
+    
+    @Override
+    public synchronized void writeTo( final DataOutput out ) throws IOException {
+        
+        out.writeByte(KIND);
+        out.writeDouble(alpha);
+        out.writeBoolean(isEmpty);
+        out.writeDouble(average);
+    }
+    
+    @Override
+    public synchronized void readFrom( final DataInput in ) throws IOException {
+        
+        if (in.readByte() != KIND || in.readDouble() != alpha) {
+            throw new IOException("Not the state of an average with alpha " + alpha);
+        }
+        isEmpty = in.readBoolean();
+        average = in.readDouble();
+    }
+}
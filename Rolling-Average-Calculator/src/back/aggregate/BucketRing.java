@@ -0,0 +1,147 @@
+package back.aggregate;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A ring of fixed-width time buckets, each holding the count, sum, minimum and maximum of the
+ * values added during its span. A slot is reused once its bucket is older than the ring covers,
+ * so memory stays fixed however many values arrive.
+ * <p>
+ * Not synchronized; {@link Rollups} guards every ring it owns.
+ */
+class BucketRing {
+    
+    private final long widthMs;
+    private final long[] starts;
+    private final long[] counts;
+    private final long[] sums;
+    private final int[] mins;
+    private final int[] maxes;
+    
+    /**
+     * @param widthMs The span of each bucket
+     * @param slots   The number of buckets kept, so the ring covers widthMs * slots
+     */
+    BucketRing( final long widthMs, final int slots ) {
+        
+        this.widthMs = widthMs;
+        this.starts = new long[slots];
+        this.counts = new long[slots];
+        this.sums = new long[slots];
+        this.mins = new int[slots];
+        this.maxes = new int[slots];
+        Arrays.fill(starts, Long.MIN_VALUE);
+    }
+    
+    long getWidthMs() {
+        
+        return widthMs;
+    }
+    
+    /**
+     * @return How far back from the newest bucket the ring still holds data
+     */
+    long getSpanMs() {
+        
+        return widthMs * starts.length;
+    }
+    
+    /**
+     * @param timeMs A time
+     *
+     * @return The start of the bucket that holds the time
+     */
+    long alignDown( final long timeMs ) {
+        
+        return Math.floorDiv(timeMs, widthMs) * widthMs;
+    }
+    
+    /**
+     * Adds values that arrived together to the bucket holding their time.
+     *
+     * @param count  The number of values
+     * @param sum    Their sum
+     * @param min    The smallest of them
+     * @param max    The largest of them
+     * @param timeMs When they were submitted
+     */
+    void add( final long count, final long sum, final int min, final int max, final long timeMs ) {
+        
+        final long start = alignDown(timeMs);
+        final int slot = slotOf(start);
+        if (starts[slot] != start) {
+            if (starts[slot] > start) {
+                //Older than anything the ring still covers
+                return;
+            }
+            starts[slot] = start;
+            counts[slot] = 0;
+            sums[slot] = 0;
+            mins[slot] = Integer.MAX_VALUE;
+            maxes[slot] = Integer.MIN_VALUE;
+        }
+        counts[slot] += count;
+        sums[slot] += sum;
+        mins[slot] = Math.min(mins[slot], min);
+        maxes[slot] = Math.max(maxes[slot], max);
+    }
+    
+    /**
+     * Adds every bucket starting in [fromMs, toMs) that the ring still holds to the summary.
+     *
+     * @param summary Accumulates the buckets
+     * @param fromMs  The start of the first bucket, aligned to the bucket width
+     * @param toMs    The end of the span, aligned to the bucket width
+     */
+    void addTo( final WindowSummary summary, final long fromMs, final long toMs ) {
+        
+        for (long start = fromMs; start < toMs; start += widthMs) {
+            final int slot = slotOf(start);
+            if (starts[slot] == start && counts[slot] > 0) {
+                summary.add(counts[slot], sums[slot], mins[slot], maxes[slot]);
+            }
+        }
+    }
+    
+    /**
+     * @param out Where to write every bucket, empty or not
+     */
+    void writeTo( final DataOutput out ) throws IOException {
+        
+        out.writeLong(widthMs);
+        out.writeInt(starts.length);
+        for (int slot = 0; slot < starts.length; ++slot) {
+            out.writeLong(starts[slot]);
+            out.writeLong(counts[slot]);
+            out.writeLong(sums[slot]);
+            out.writeInt(mins[slot]);
+            out.writeInt(maxes[slot]);
+        }
+    }
+    
+    /**
+     * @param in Where to read buckets written by {@link #writeTo(DataOutput)} for a ring of the same
+     *           shape
+     */
+    void readFrom( final DataInput in ) throws IOException {
+        
+        if (in.readLong() != widthMs || in.readInt() != starts.length) {
+            throw new IOException("Not the state of a ring of " + starts.length + " buckets of " + widthMs + " ms");
+        }
+        for (int slot = 0; slot < starts.length; ++slot) {
+            starts[slot] = in.readLong();
+            counts[slot] = in.readLong();
+            sums[slot] = in.readLong();
+            mins[slot] = in.readInt();
+            maxes[slot] = in.readInt();
+        }
+    }
+    
+    private int slotOf( final long start ) {
+        
+        return (int) Math.floorMod(Math.floorDiv(start, widthMs), (long) starts.length);
+    }
+}
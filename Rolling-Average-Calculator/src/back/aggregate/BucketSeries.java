@@ -0,0 +1,184 @@
+package back.aggregate;
+
+import java.util.Arrays;
+
+/**
+ * A growable run of fixed-width time buckets, each holding the count, sum, minimum and maximum of
+ * the values whose time falls in its span, kept in time order. Unlike a {@link BucketRing}, no
+ * bucket is ever overwritten; old buckets leave only when they are moved on to a coarser series
+ * or dropped, which is how compacted history is kept at ever lower resolution.
+ * <p>
+ * Not synchronized; the owner guards every series it holds.
+ */
+public class BucketSeries {
+    
+    private final long widthMs;
+    private long[] starts = new long[16];
+    private long[] counts = new long[16];
+    private long[] sums = new long[16];
+    private int[] mins = new int[16];
+    private int[] maxes = new int[16];
+    private int size = 0;
+    
+    /**
+     * @param widthMs The span of each bucket
+     */
+    public BucketSeries( final long widthMs ) {
+        
+        if (widthMs <= 0) {
+            throw new IllegalArgumentException("Bucket width must be positive: " + widthMs);
+        }
+        this.widthMs = widthMs;
+    }
+    
+    public long getWidthMs() {
+        
+        return widthMs;
+    }
+    
+    /**
+     * @return How many buckets hold values
+     */
+    public int size() {
+        
+        return size;
+    }
+    
+    /**
+     * @param timeMs A time
+     *
+     * @return The start of the bucket that holds the time
+     */
+    public long alignDown( final long timeMs ) {
+        
+        return Math.floorDiv(timeMs, widthMs) * widthMs;
+    }
+    
+    /**
+     * Adds values to the bucket holding their time. Adding in time order only ever touches the
+     * newest bucket; an older time is merged into its bucket by binary search.
+     *
+     * @param count  The number of values
+     * @param sum    Their sum
+     * @param min    The smallest of them
+     * @param max    The largest of them
+     * @param timeMs A time within the span the values belong to
+     */
+    public void add( final long count, final long sum, final int min, final int max, final long timeMs ) {
+        
+        if (count == 0) {
+            return;
+        }
+        final long start = alignDown(timeMs);
+        int index = size;
+        if (size > 0 && starts[size - 1] >= start) {
+            index = Arrays.binarySearch(starts, 0, size, start);
+            if (index >= 0) {
+                counts[index] += count;
+                sums[index] += sum;
+                mins[index] = Math.min(mins[index], min);
+                maxes[index] = Math.max(maxes[index], max);
+                return;
+            }
+            index = -index - 1;
+        }
+        insert(index, start, count, sum, min, max);
+    }
+    
+    /**
+     * Adds every bucket that overlaps a span of time to a summary. A bucket only partly inside
+     * the span is added whole.
+     *
+     * @param sinceMs The start of the span
+     * @param untilMs The end of the span, exclusive
+     * @param summary The summary to add to, which may already hold other values
+     */
+    public void summarize( final long sinceMs, final long untilMs, final WindowSummary summary ) {
+        
+        for (int i = firstEndingAfter(sinceMs); i < size && starts[i] < untilMs; ++i) {
+            summary.add(counts[i], sums[i], mins[i], maxes[i]);
+        }
+    }
+    
+    /**
+     * Removes every bucket that ends at or before a time, adding each to another series first.
+     *
+     * @param cutoffMs The time before which buckets are removed
+     * @param target   The series to move the buckets to, normally a coarser one, or null to drop
+     *                 them
+     */
+    public void moveBefore( final long cutoffMs, final BucketSeries target ) {
+        
+        int moved = 0;
+        while (moved < size && starts[moved] <= cutoffMs - widthMs) {
+            if (target != null) {
+                target.add(counts[moved], sums[moved], mins[moved], maxes[moved], starts[moved]);
+            }
+            ++moved;
+        }
+        if (moved == 0) {
+            return;
+        }
+        size -= moved;
+        System.arraycopy(starts, moved, starts, 0, size);
+        System.arraycopy(counts, moved, counts, 0, size);
+        System.arraycopy(sums, moved, sums, 0, size);
+        System.arraycopy(mins, moved, mins, 0, size);
+        System.arraycopy(maxes, moved, maxes, 0, size);
+    }
+    
+    /**
+     * Moves every bucket to another series, leaving this one empty
+     *
+     * @param target The series to move the buckets to
+     */
+    public void moveAll( final BucketSeries target ) {
+        
+        for (int i = 0; i < size; ++i) {
+            target.add(counts[i], sums[i], mins[i], maxes[i], starts[i]);
+        }
+        size = 0;
+    }
+    
+    /**
+     * @return The index of the first bucket that ends after the time, or {@link #size()}
+     */
+    private int firstEndingAfter( final long timeMs ) {
+        
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            final int middle = ( low + high ) >>> 1;
+            if (starts[middle] + widthMs <= timeMs) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+    
+    private void insert( final int index, final long start, final long count, final long sum, final int min, final int max ) {
+        
+        if (size == starts.length) {
+            final int capacity = size * 2;
+            starts = Arrays.copyOf(starts, capacity);
+            counts = Arrays.copyOf(counts, capacity);
+            sums = Arrays.copyOf(sums, capacity);
+            mins = Arrays.copyOf(mins, capacity);
+            maxes = Arrays.copyOf(maxes, capacity);
+        }
+        final int after = size - index;
+        System.arraycopy(starts, index, starts, index + 1, after);
+        System.arraycopy(counts, index, counts, index + 1, after);
+        System.arraycopy(sums, index, sums, index + 1, after);
+        System.arraycopy(mins, index, mins, index + 1, after);
+        System.arraycopy(maxes, index, maxes, index + 1, after);
+        starts[index] = start;
+        counts[index] = count;
+        sums[index] = sum;
+        mins[index] = min;
+        maxes[index] = max;
+        ++size;
+    }
+}
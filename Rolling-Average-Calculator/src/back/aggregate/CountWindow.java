@@ -0,0 +1,82 @@
+package back.aggregate;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A {@link RollingWindow} over the last N values, kept in a fixed ring buffer
+ */
+class CountWindow extends RollingWindow {
+    
+    private static final byte KIND = 0;
+    
+    private final int[] values;
+    private int head = 0;
+    private int size = 0;
+    private long sum = 0;
+    
+    CountWindow( final int capacity ) {
+        
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Window capacity must be positive: " + capacity);
+        }
+        this.values = new int[capacity];
+    }
+    
+    @Override
+    public synchronized void add( final int value, final long timeMs ) {
+        
+        if (size == values.length) {
+            sum -= values[head];
+            values[head] = value;
+            head = ( head + 1 ) % values.length;
+        } else {
+            values[( head + size ) % values.length] = value;
+            ++size;
+        }
+        sum += value;
+    }
+    
+    @Override
+    public synchronized long getSum( final long nowMs ) {
+        
+        return sum;
+    }
+    
+    @Override
+    public synchronized int getCount( final long nowMs ) {
+        
+        return size;
+    }
+    
+    @Override
+    public synchronized void writeTo( final DataOutput out ) throws IOException {
+        
+        out.writeByte(KIND);
+        out.writeInt(values.length);
+        out.writeInt(size);
+        for (int i = 0; i < size; ++i) {
+            out.writeInt(values[( head + i ) % values.length]);
+        }
+    }
+    
+    @Override
+    public synchronized void readFrom( final DataInput in ) throws IOException {
+        
+        if (in.readByte() != KIND || in.readInt() != values.length) {
+            throw new IOException("Not the state of a window over the last " + values.length + " values");
+        }
+        final int restoredSize = in.readInt();
+        if (restoredSize < 0 || restoredSize > values.length) {
+            throw new IOException("Window holds " + restoredSize + " values");
+        }
+        head = 0;
+        size = restoredSize;
+        sum = 0;
+        for (int i = 0; i < size; ++i) {
+            values[i] = in.readInt();
+            sum += values[i];
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package back.aggregate;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Estimates how many distinct int values have been added, using HyperLogLog. Each value is hashed
+ * to one of {@link #REGISTERS} registers, which keeps the longest run of leading zeros seen in the
+ * rest of the hash. The estimate is typically within about 1.6% of the true count; small counts
+ * are estimated from the share of registers still empty, which is close to exact.
+ * <p>
+ * The registers take 4 KB however many values are added, and two sketches merge by keeping the
+ * larger of each pair of registers, so per-client sketches combine into one for every client.
+ * <p>
+ * Every method is synchronized so that a sketch may be fed by one thread and read by another.
+ */
+public class DistinctSketch {
+    
+    private static final int PRECISION = 12;
+    private static final int REGISTERS = 1 << PRECISION;
+    private static final double ALPHA = 0.7213 / ( 1 + 1.079 / REGISTERS );
+    
+    private final byte[] registers = new byte[REGISTERS];
+    
+    /**
+     * @param value The value submitted
+     */
+    public synchronized void add( final int value ) {
+        
+        final long hash = hash(value);
+        final int index = (int) ( hash >>> ( Long.SIZE - PRECISION ) );
+        //The marker bit caps the run at the bits left after the index
+        final int rank = Long.numberOfLeadingZeros(( hash << PRECISION ) | ( 1L << ( PRECISION - 1 ) )) + 1;
+        if (rank > registers[index]) {
+            registers[index] = (byte) rank;
+        }
+    }
+    
+    /**
+     * @param values The values submitted together
+     */
+    public synchronized void addAll( final List<Integer> values ) {
+        
+        for (int i = 0; i < values.size(); ++i) {
+            add(values.get(i));
+        }
+    }
+    
+    /**
+     * Adds every value counted by this sketch to another one.
+     *
+     * @param target The sketch to merge into, which must not be this one
+     */
+    public synchronized void mergeInto( final DistinctSketch target ) {
+        
+        target.merge(registers);
+    }
+    
+    /**
+     * @param out Where to write the registers
+     *
+     * @throws IOException If the output cannot be written
+     */
+    public synchronized void writeTo( final DataOutput out ) throws IOException {
+        
+        out.write(registers);
+    }
+    
+    /**
+     * Replaces this sketch with one written by {@link #writeTo(DataOutput)}
+     *
+     * @param in Where to read
+     *
+     * @throws IOException If the input cannot be read
+     */
+    public synchronized void readFrom( final DataInput in ) throws IOException {
+        
+        in.readFully(registers);
+    }
+    
+    /**
+     * @return The estimated number of distinct values added
+     */
+    public synchronized long getEstimate() {
+        
+        double sum = 0;
+        int empty = 0;
+        for (int index = 0; index < REGISTERS; ++index) {
+            sum += 1.0 / ( 1L << registers[index] );
+            if (registers[index] == 0) {
+                ++empty;
+            }
+        }
+        double estimate = ALPHA * REGISTERS * REGISTERS / sum;
+        if (estimate <= 2.5 * REGISTERS && empty > 0) {
+            estimate = REGISTERS * Math.log((double) REGISTERS / empty);
+        }
+        return Math.round(estimate);
+    }
+    
+    private synchronized void merge( final byte[] otherRegisters ) {
+        
+        for (int index = 0; index < REGISTERS; ++index) {
+            registers[index] = (byte) Math.max(registers[index], otherRegisters[index]);
+        }
+    }
+    
+    /**
+     * Spreads the bits of the value over a long, so that nearby values land in unrelated
+     * registers
+     */
+    static long hash( final int value ) {
+        
+        long hash = value + 0x9E3779B97F4A7C15L;
+        hash = ( hash ^ ( hash >>> 33 ) ) * 0xFF51AFD7ED558CCDL;
+        hash = ( hash ^ ( hash >>> 33 ) ) * 0xC4CEB9FE1A85EC53L;
+        return hash ^ ( hash >>> 33 );
+    }
+}
@@ -0,0 +1,78 @@
+package back.aggregate;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * An exponentially weighted moving average, weighting recent values more than old ones without
+ * keeping any of them. Either each new value takes a fixed share of the average, or a value's
+ * weight halves every time a fixed half-life passes. Both use constant memory and constant time
+ * per value.
+ * <p>
+ * Every method is synchronized so that an average may be fed by one thread and read by another.
+ */
+public abstract class Ewma {
+    
+    /**
+     * @param alpha The share of the average each new value takes, above 0 and at most 1
+     *
+     * @return An average that moves alpha of the way towards each new value
+     */
+    public static Ewma ofAlpha( final double alpha ) {
+        
+        return new AlphaEwma(alpha);
+    }
+    
+    /**
+     * @param halfLifeMs How long it takes a value's weight to halve
+     *
+     * @return An average whose weights decay with time rather than with the number of values
+     */
+    public static Ewma ofHalfLife( final long halfLifeMs ) {
+        
+        return new HalfLifeEwma(halfLifeMs);
+    }
+    
+    /**
+     * @param value  The value submitted
+     * @param timeMs When the value was submitted
+     */
+    public abstract void add( final int value, final long timeMs );
+    
+    /**
+     * @return The weighted average, or 0 if nothing has been added
+     */
+    public abstract double getAverage();
+    
+    /**
+     * Writes the kind and parameter of the average and its current state
+     *
+     * @param out Where to write
+     *
+     * @throws IOException If the output cannot be written
+     */
+    public abstract void writeTo( final DataOutput out ) throws IOException;
+    
+    /**
+     * Replaces the state of this average with one written by {@link #writeTo(DataOutput)}
+     *
+     * @param in Where to read
+     *
+     * @throws IOException If the input cannot be read or was written by a different kind of
+     *                     average or one with a different parameter
+     */
+    public abstract void readFrom( final DataInput in ) throws IOException;
+    
+    /**
+     * @param values The values submitted together
+     * @param timeMs When the values were submitted
+     */
+    public synchronized void addAll( final List<Integer> values, final long timeMs ) {
+        
+        for (int i = 0; i < values.size(); ++i) {
+            add(values.get(i), timeMs);
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package back.aggregate;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Server-wide aggregates of every submitted value. Each
+ * {@link back.network.server.ClientConnection} adds to it directly from its own thread, and no
+ * submission ever waits for a lock: the striped {@link LongAdder}s keep the count and sum from
+ * contending on a single counter.
+ * <p>
+ * The {@link RollingWindow}, {@link Ewma} and {@link Rollups} need their values in arrival order,
+ * so submissions queue their values on a lock-free queue instead of updating them. Whichever
+ * submitting thread finds the apply lock free moves the queued values into them, in order, for
+ * every thread; the others carry on. Readers apply whatever is still queued before they read, so
+ * answers cover every submission made before the request.
+ * <p>
+ * Reads are not atomic across fields, so an average taken while values are being submitted may
+ * mix a count and sum from slightly different moments.
+ */
+public class GlobalAggregates {
+    
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final RollingWindow rollingWindow;
+    private final Ewma ewma;
+    private final Rollups rollups = new Rollups();
+    private final Queue<Pending> pending = new ConcurrentLinkedQueue<>();
+    private final ReentrantLock applyLock = new ReentrantLock();
+    
+    /**
+     * @param rollingWindow The window over the most recent values from every client
+     * @param ewma          The weighted average over every client's values
+     */
+    public GlobalAggregates( final RollingWindow rollingWindow, final Ewma ewma ) {
+        
+        this.rollingWindow = rollingWindow;
+        this.ewma = ewma;
+    }
+    
+    /**
+     * @param value  A value submitted by a client
+     * @param timeMs When the value was submitted
+     */
+    public void add( final int value, final long timeMs ) {
+        
+        count.increment();
+        sum.add(value);
+        pending.add(new Pending(value, null, timeMs));
+        tryApplyPending();
+    }
+    
+    /**
+     * @param values   The values submitted together
+     * @param batchSum The sum of those values
+     * @param timeMs   When the values were submitted
+     */
+    public void addAll( final List<Integer> values, final long batchSum, final long timeMs ) {
+        
+        count.add(values.size());
+        sum.add(batchSum);
+        pending.add(new Pending(0, values, timeMs));
+        tryApplyPending();
+    }
+    
+    /**
+     * Writes every aggregate. The count and sum are read separately, so submissions must be held
+     * off while writing for them to agree with each other and with the rest.
+     *
+     * @param out Where to write
+     *
+     * @throws IOException If the output cannot be written
+     */
+    public void writeTo( final DataOutput out ) throws IOException {
+        
+        applyLock.lock();
+        try {
+            applyPending();
+            out.writeLong(count.sum());
+            out.writeLong(sum.sum());
+            rollingWindow.writeTo(out);
+            ewma.writeTo(out);
+            rollups.writeTo(out);
+        } finally {
+            applyLock.unlock();
+        }
+    }
+    
+    /**
+     * Adds the count and sum written by {@link #writeTo(DataOutput)} to these aggregates and
+     * replaces the rest. Meant for aggregates nothing has been added to yet.
+     *
+     * @param in Where to read
+     *
+     * @throws IOException If the input cannot be read or was written with a different rolling
+     *                     window or weighted average
+     */
+    public void readFrom( final DataInput in ) throws IOException {
+        
+        applyLock.lock();
+        try {
+            applyPending();
+            count.add(in.readLong());
+            sum.add(in.readLong());
+            rollingWindow.readFrom(in);
+            ewma.readFrom(in);
+            rollups.readFrom(in);
+        } finally {
+            applyLock.unlock();
+        }
+    }
+    
+    public long getCount() {
+        
+        return count.sum();
+    }
+    
+    public long getSum() {
+        
+        return sum.sum();
+    }
+    
+    /**
+     * @return The mean of every submitted value, or 0 if nothing has been submitted
+     */
+    public int getAverage() {
+        
+        final long currentCount = count.sum();
+        if (currentCount == 0) {
+            return 0;
+        }
+        return (int) ( sum.sum() / currentCount );
+    }
+    
+    /**
+     * @param nowMs The current time
+     *
+     * @return The mean of the values in the rolling window across every client
+     */
+    public int getRollingAverage( final long nowMs ) {
+        
+        applyLock.lock();
+        try {
+            applyPending();
+            return rollingWindow.getAverage(nowMs);
+        } finally {
+            applyLock.unlock();
+        }
+    }
+    
+    /**
+     * @return The exponentially weighted average across every client
+     */
+    public double getEwma() {
+        
+        applyLock.lock();
+        try {
+            applyPending();
+            return ewma.getAverage();
+        } finally {
+            applyLock.unlock();
+        }
+    }
+    
+    /**
+     * @param windowMs How far back from now the window reaches
+     * @param nowMs    The current time
+     *
+     * @return The values submitted by every client within the window
+     */
+    public WindowSummary summarize( final long windowMs, final long nowMs ) {
+        
+        applyLock.lock();
+        try {
+            applyPending();
+            return rollups.summarize(windowMs, nowMs);
+        } finally {
+            applyLock.unlock();
+        }
+    }
+    
+    /**
+     * Applies queued values if no other thread is, without waiting. A submission that loses the
+     * race is applied by the thread holding the lock, or by the next one to take it.
+     */
+    private void tryApplyPending() {
+        
+        if (applyLock.tryLock()) {
+            try {
+                applyPending();
+            } finally {
+                applyLock.unlock();
+            }
+        }
+    }
+    
+    /**
+     * Moves every queued value into the ordered aggregates. Must hold the apply lock.
+     */
+    private void applyPending() {
+        
+        Pending next;
+        while ((next = pending.poll()) != null) {
+            if (next.values == null) {
+                rollingWindow.add(next.value, next.timeMs);
+                ewma.add(next.value, next.timeMs);
+                rollups.add(next.value, next.timeMs);
+            } else {
+                rollingWindow.addAll(next.values, next.timeMs);
+                ewma.addAll(next.values, next.timeMs);
+                rollups.addAll(next.values, next.timeMs);
+            }
+        }
+    }
+    
+    /**
+     * One submission waiting to be applied: a single value, or a batch
+     */
+    private static final class Pending {
+        
+        private final int value;
+        private final List<Integer> values;
+        private final long timeMs;
+        
+        private Pending( final int value, final List<Integer> values, final long timeMs ) {
+            
+            this.value = value;
+            this.values = values;
+            this.timeMs = timeMs;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package back.aggregate;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * An {@link Ewma} whose weights decay with time. It keeps a decayed sum of values and a decayed
+ * sum of weights; both are scaled down by the time since the last value before each new value
+ * adds to them. Values submitted at the same moment weigh the same, so irregular arrivals and
+ * batches need no special handling.
+ */
+class HalfLifeEwma extends Ewma {
+    
+    private static final byte KIND = 1;
+    
+    private final double halfLifeMs;
+    private double weightedSum = 0;
+    private double totalWeight = 0;
+    private long lastTimeMs = Long.MIN_VALUE;
+    
+    HalfLifeEwma( final long halfLifeMs ) {
+        
+        if (halfLifeMs <= 0) {
+            throw new IllegalArgumentException("Half-life must be positive: " + halfLifeMs);
+        }
+        this.halfLifeMs = halfLifeMs;
+    }
+    
+    @Override
+    public synchronized void add( final int value, final long timeMs ) {
+        
+        if (timeMs > lastTimeMs) {
+            if (lastTimeMs != Long.MIN_VALUE) {
+                final double decay = Math.pow(0.5, ( timeMs - lastTimeMs ) / halfLifeMs);
+                weightedSum *= decay;
+                totalWeight *= decay;
+            }
+            lastTimeMs = timeMs;
+        }
+        weightedSum += value;
+        totalWeight += 1;
+    }
+    
+    @Override
+    public synchronized double getAverage() {
+        
+        if (totalWeight == 0) {
+            return 0;
+        }
+        return weightedSum / totalWeight;
+    }
+    
+    @Override
+    public synchronized void writeTo( final DataOutput out ) throws IOException {
+        
+        out.writeByte(KIND);
+        out.writeDouble(halfLifeMs);
+        out.writeDouble(weightedSum);
+        out.writeDouble(totalWeight);
+        out.writeLong(lastTimeMs);
+    }
+    
+    @Override
+    public synchronized void readFrom( final DataInput in ) throws IOException {
+        
+        if (in.readByte() != KIND || in.readDouble() != halfLifeMs) {
+            throw new IOException("Not the state of an average with a half-life of " + halfLifeMs + " ms");
+        }
+        weightedSum = in.readDouble();
+        totalWeight = in.readDouble();
+        lastTimeMs = in.readLong();
+    }
+}
@@ -0,0 +1,97 @@
+package back.aggregate;
+
+import java.nio.IntBuffer;
+
+/**
+ * Bulk count, sum, minimum and maximum over ranges of primitive int arrays and int buffers, for
+ * recomputing aggregates from stored history without boxing. Each call makes a single pass with every
+ * accumulator in a local, which the JIT compiles to a tight, branch-free loop.
+ */
+public final class IntKernels {
+    
+    private IntKernels() {
+        
+    }
+    
+    /**
+     * @param values The array to read
+     * @param from   The index of the first value
+     * @param to     The index after the last value
+     *
+     * @return The sum of the values, without overflow
+     */
+    public static long sum( final int[] values, final int from, final int to ) {
+        
+        long sum = 0;
+        for (int i = from; i < to; ++i) {
+            sum += values[i];
+        }
+        return sum;
+    }
+    
+    /**
+     * Adds the count, sum, minimum and maximum of a range of values to the summary.
+     *
+     * @param values  The array to read
+     * @param from    The index of the first value
+     * @param to      The index after the last value
+     * @param summary Accumulates the range
+     */
+    public static void summarize( final int[] values, final int from, final int to, final WindowSummary summary ) {
+        
+        if (from >= to) {
+            return;
+        }
+        long sum = 0;
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        for (int i = from; i < to; ++i) {
+            final int value = values[i];
+            sum += value;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+        summary.add(to - from, sum, min, max);
+    }
+    
+    /**
+     * @param values The buffer to read, such as a view over a memory-mapped file
+     * @param from   The absolute index of the first value
+     * @param to     The absolute index after the last value
+     *
+     * @return The sum of the values, without overflow
+     */
+    public static long sum( final IntBuffer values, final int from, final int to ) {
+        
+        long sum = 0;
+        for (int i = from; i < to; ++i) {
+            sum += values.get(i);
+        }
+        return sum;
+    }
+    
+    /**
+     * Adds the count, sum, minimum and maximum of a range of values to the summary.
+     *
+     * @param values  The buffer to read, such as a view over a memory-mapped file
+     * @param from    The absolute index of the first value
+     * @param to      The absolute index after the last value
+     * @param summary Accumulates the range
+     */
+    public static void summarize( final IntBuffer values, final int from, final int to, final WindowSummary summary ) {
+        
+        if (from >= to) {
+            return;
+        }
+        long sum = 0;
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        for (int i = from; i < to; ++i) {
+            final int value = values.get(i);
+            sum += value;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+        summary.add(to - from, sum, min, max);
+    }
+}
@@ -0,0 +1,273 @@
+package back.aggregate;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A fixed-size histogram of int values for estimating quantiles, in the style of an HDR
+ * histogram. Magnitudes below 128 are counted exactly; larger ones fall into log-linear buckets,
+ * 64 per power of two, so any estimate is within about 1.6% of a value actually submitted.
+ * Negative values use a mirror set of buckets that is only allocated once one arrives.
+ * <p>
+ * Memory stays the same however many values are added, and two sketches merge by adding their
+ * bucket counts, so per-client sketches combine into one for every client.
+ * <p>
+ * Every method is synchronized so that a sketch may be fed by one thread and read by another.
+ */
+public class QuantileSketch {
+    
+    /**
+     * The median, 95th and 99th percentiles
+     */
+    public static final List<Double> DEFAULT_QUANTILES = Collections.unmodifiableList(Arrays.asList(0.5, 0.95, 0.99));
+    
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int EXACT_LIMIT = SUB_BUCKETS * 2;
+    private static final int EXACT_BITS = SUB_BUCKET_BITS + 1;
+    private static final int BUCKET_COUNT = EXACT_LIMIT + ( 32 - EXACT_BITS ) * SUB_BUCKETS;
+    
+    private final long[] positive = new long[BUCKET_COUNT];
+    private long[] negative = null;
+    private long count = 0;
+    private int min = Integer.MAX_VALUE;
+    private int max = Integer.MIN_VALUE;
+    
+    /**
+     * @param value The value submitted
+     */
+    public synchronized void add( final int value ) {
+        
+        if (value >= 0) {
+            ++positive[indexOf(value)];
+        } else {
+            if (negative == null) {
+                negative = new long[BUCKET_COUNT];
+            }
+            ++negative[indexOf(-(long) value)];
+        }
+        ++count;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+    
+    /**
+     * @param values The values submitted together
+     */
+    public synchronized void addAll( final List<Integer> values ) {
+        
+        for (int i = 0; i < values.size(); ++i) {
+            add(values.get(i));
+        }
+    }
+    
+    /**
+     * Adds every value counted by this sketch to another one.
+     *
+     * @param target The sketch to merge into, which must not be this one
+     */
+    public synchronized void mergeInto( final QuantileSketch target ) {
+        
+        target.merge(positive, negative, count, min, max);
+    }
+    
+    /**
+     * Writes the bucket counts, skipping empty buckets
+     *
+     * @param out Where to write the sketch
+     *
+     * @throws IOException If the output cannot be written
+     */
+    public synchronized void writeTo( final DataOutput out ) throws IOException {
+        
+        out.writeLong(count);
+        out.writeInt(min);
+        out.writeInt(max);
+        writeBuckets(out, positive);
+        out.writeBoolean(negative != null);
+        if (negative != null) {
+            writeBuckets(out, negative);
+        }
+    }
+    
+    /**
+     * Replaces this sketch with one written by {@link #writeTo(DataOutput)}
+     *
+     * @param in Where to read
+     *
+     * @throws IOException If the input cannot be read or is not a sketch
+     */
+    public synchronized void readFrom( final DataInput in ) throws IOException {
+        
+        count = in.readLong();
+        min = in.readInt();
+        max = in.readInt();
+        readBuckets(in, positive);
+        negative = in.readBoolean() ? readBuckets(in, new long[BUCKET_COUNT]) : null;
+    }
+    
+    public synchronized long getCount() {
+        
+        return count;
+    }
+    
+    /**
+     * @param quantile The fraction of values that should be at or below the result, from 0 to 1
+     *
+     * @return An estimate of the value at the quantile, or 0 if nothing has been added
+     */
+    public synchronized int getQuantile( final double quantile ) {
+        
+        if (count == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, Math.min(count, (long) Math.ceil(quantile * count)));
+        if (rank == 1) {
+            return min;
+        }
+        if (rank == count) {
+            return max;
+        }
+        long seen = 0;
+        if (negative != null) {
+            for (int index = BUCKET_COUNT - 1; index >= 0; --index) {
+                seen += negative[index];
+                if (seen >= rank) {
+                    return clamp(-valueOf(index));
+                }
+            }
+        }
+        for (int index = 0; index < BUCKET_COUNT; ++index) {
+            seen += positive[index];
+            if (seen >= rank) {
+                return clamp(valueOf(index));
+            }
+        }
+        return max;
+    }
+    
+    /**
+     * @param quantiles Fractions from 0 to 1
+     *
+     * @return An estimate for each quantile, in the same order
+     */
+    public synchronized List<Integer> getQuantiles( final List<Double> quantiles ) {
+        
+        final List<Integer> estimates = new ArrayList<>(quantiles.size());
+        for (int i = 0; i < quantiles.size(); ++i) {
+            estimates.add(getQuantile(quantiles.get(i)));
+        }
+        return estimates;
+    }
+    
+    /**
+     * @param quantiles Fractions asked for by a client
+     *
+     * @return True if every fraction is from 0 to 1
+     */
+    public static boolean isValid( final List<Double> quantiles ) {
+        
+        for (int i = 0; i < quantiles.size(); ++i) {
+            final double quantile = quantiles.get(i);
+            if (!( quantile >= 0 && quantile <= 1 )) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private synchronized void merge( final long[] otherPositive, final long[] otherNegative, final long otherCount, final int otherMin, final int otherMax ) {
+        
+        for (int index = 0; index < BUCKET_COUNT; ++index) {
+            positive[index] += otherPositive[index];
+        }
+        if (otherNegative != null) {
+            if (negative == null) {
+                negative = new long[BUCKET_COUNT];
+            }
+            for (int index = 0; index < BUCKET_COUNT; ++index) {
+                negative[index] += otherNegative[index];
+            }
+        }
+        count += otherCount;
+        min = Math.min(min, otherMin);
+        max = Math.max(max, otherMax);
+    }
+    
+    private static void writeBuckets( final DataOutput out, final long[] buckets ) throws IOException {
+        
+        int used = 0;
+        for (long bucket : buckets) {
+            if (bucket != 0) {
+                ++used;
+            }
+        }
+        out.writeInt(used);
+        for (int index = 0; index < BUCKET_COUNT; ++index) {
+            if (buckets[index] != 0) {
+                out.writeShort(index);
+                out.writeLong(buckets[index]);
+            }
+        }
+    }
+    
+    private static long[] readBuckets( final DataInput in, final long[] buckets ) throws IOException {
+        
+        Arrays.fill(buckets, 0);
+        final int used = in.readInt();
+        if (used < 0 || used > BUCKET_COUNT) {
+            throw new IOException("Sketch has " + used + " buckets");
+        }
+        for (int i = 0; i < used; ++i) {
+            final int index = in.readUnsignedShort();
+            if (index >= BUCKET_COUNT) {
+                throw new IOException("No bucket " + index);
+            }
+            buckets[index] = in.readLong();
+        }
+        return buckets;
+    }
+    
+    private int clamp( final long estimate ) {
+        
+        return (int) Math.max(min, Math.min(max, estimate));
+    }
+    
+    /**
+     * @param magnitude A value from 0 to 2^31
+     *
+     * @return The bucket that counts the magnitude
+     */
+    private static int indexOf( final long magnitude ) {
+        
+        if (magnitude < EXACT_LIMIT) {
+            return (int) magnitude;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(magnitude);
+        final int shift = exponent - SUB_BUCKET_BITS;
+        final int subBucket = (int) ( magnitude >>> shift ) & ( SUB_BUCKETS - 1 );
+        return EXACT_LIMIT + ( exponent - EXACT_BITS ) * SUB_BUCKETS + subBucket;
+    }
+    
+    /**
+     * @param index A bucket
+     *
+     * @return The magnitude in the middle of the bucket
+     */
+    private static long valueOf( final int index ) {
+        
+        if (index < EXACT_LIMIT) {
+            return index;
+        }
+        final int exponent = EXACT_BITS + ( index - EXACT_LIMIT ) / SUB_BUCKETS;
+        final int subBucket = ( index - EXACT_LIMIT ) % SUB_BUCKETS;
+        final int shift = exponent - SUB_BUCKET_BITS;
+        final long lowest = (long) ( SUB_BUCKETS + subBucket ) << shift;
+        return lowest + ( ( 1L << shift ) - 1 ) / 2;
+    }
+}
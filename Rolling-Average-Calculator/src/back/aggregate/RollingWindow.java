@@ -0,0 +1,100 @@
+package back.aggregate;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * The sum and count of the most recent values, either the last N values or the values from the
+ * last T milliseconds. Implementations keep the values in a ring buffer and a running sum, so
+ * adding a value and evicting an old one are both constant time.
+ * <p>
+ * Every method is synchronized so that a window may be fed by one thread and read by another.
+ */
+public abstract class RollingWindow {
+    
+    /**
+     * @param capacity The number of most recent values to keep
+     *
+     * @return A window over the last capacity values
+     */
+    public static RollingWindow ofCount( final int capacity ) {
+        
+        return new CountWindow(capacity);
+    }
+    
+    /**
+     * @param durationMs How long a value stays in the window
+     *
+     * @return A window over the values added in the last durationMs milliseconds
+     */
+    public static RollingWindow ofDuration( final long durationMs ) {
+        
+        return new TimeWindow(durationMs);
+    }
+    
+    /**
+     * @param value  The value submitted
+     * @param timeMs When the value was submitted
+     */
+    public abstract void add( final int value, final long timeMs );
+    
+    /**
+     * @param nowMs The current time, used to evict values that have aged out
+     *
+     * @return The sum of the values in the window
+     */
+    public abstract long getSum( final long nowMs );
+    
+    /**
+     * @param nowMs The current time, used to evict values that have aged out
+     *
+     * @return The number of values in the window
+     */
+    public abstract int getCount( final long nowMs );
+    
+    /**
+     * Writes the kind and size of the window and the values in it, oldest first
+     *
+     * @param out Where to write
+     *
+     * @throws IOException If the output cannot be written
+     */
+    public abstract void writeTo( final DataOutput out ) throws IOException;
+    
+    /**
+     * Replaces the values in this window with ones written by {@link #writeTo(DataOutput)}
+     *
+     * @param in Where to read
+     *
+     * @throws IOException If the input cannot be read or was written by a different kind or size
+     *                     of window
+     */
+    public abstract void readFrom( final DataInput in ) throws IOException;
+    
+    /**
+     * @param values The values submitted together
+     * @param timeMs When the values were submitted
+     */
+    public synchronized void addAll( final List<Integer> values, final long timeMs ) {
+        
+        for (int i = 0; i < values.size(); ++i) {
+            add(values.get(i), timeMs);
+        }
+    }
+    
+    /**
+     * @param nowMs The current time, used to evict values that have aged out
+     *
+     * @return The mean of the values in the window, or 0 if it is empty
+     */
+    public synchronized int getAverage( final long nowMs ) {
+        
+        final int count = getCount(nowMs);
+        if (count == 0) {
+            return 0;
+        }
+        return (int) ( getSum(nowMs) / count );
+    }
+}
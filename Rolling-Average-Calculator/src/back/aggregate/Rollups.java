@@ -0,0 +1,121 @@
+package back.aggregate;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Count, sum, minimum and maximum of submitted values, kept in time buckets at three
+ * resolutions: the last two minutes by second, the last two hours by minute and the last week by
+ * hour. Each value is added to one bucket at every resolution, so coarse buckets are always
+ * complete and old data rolls up without any background work.
+ * <p>
+ * A window is answered from the newest end with the finest buckets that still cover it, then
+ * coarser ones further back, so a window of any length costs at most a few hundred bucket reads
+ * instead of a scan over every value. The oldest edge of the window is rounded down to the width
+ * of the buckets that cover it.
+ * <p>
+ * Every method is synchronized so that the rollups may be fed by one thread and read by another.
+ */
+public class Rollups {
+    
+    public static final long SECOND_MS = 1000;
+    public static final long MINUTE_MS = 60 * SECOND_MS;
+    public static final long HOUR_MS = 60 * MINUTE_MS;
+    
+    private final BucketRing[] levels = {
+            new BucketRing(SECOND_MS, 120),
+            new BucketRing(MINUTE_MS, 120),
+            new BucketRing(HOUR_MS, 24 * 7),
+    };
+    
+    /**
+     * @param value  The value submitted
+     * @param timeMs When the value was submitted
+     */
+    public synchronized void add( final int value, final long timeMs ) {
+        
+        for (BucketRing level : levels) {
+            level.add(1, value, value, value, timeMs);
+        }
+    }
+    
+    /**
+     * @param values The values submitted together
+     * @param timeMs When the values were submitted
+     */
+    public synchronized void addAll( final List<Integer> values, final long timeMs ) {
+        
+        if (values.isEmpty()) {
+            return;
+        }
+        long sum = 0;
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        for (int i = 0; i < values.size(); ++i) {
+            final int value = values.get(i);
+            sum += value;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+        for (BucketRing level : levels) {
+            level.add(values.size(), sum, min, max, timeMs);
+        }
+    }
+    
+    /**
+     * Writes every bucket at every resolution
+     *
+     * @param out Where to write
+     *
+     * @throws IOException If the output cannot be written
+     */
+    public synchronized void writeTo( final DataOutput out ) throws IOException {
+        
+        for (BucketRing level : levels) {
+            level.writeTo(out);
+        }
+    }
+    
+    /**
+     * Replaces every bucket with ones written by {@link #writeTo(DataOutput)}
+     *
+     * @param in Where to read
+     *
+     * @throws IOException If the input cannot be read or holds different resolutions
+     */
+    public synchronized void readFrom( final DataInput in ) throws IOException {
+        
+        for (BucketRing level : levels) {
+            level.readFrom(in);
+        }
+    }
+    
+    /**
+     * @param windowMs How far back from now the window reaches
+     * @param nowMs    The current time
+     *
+     * @return The values submitted within the window, as far back as the rollups reach
+     */
+    public synchronized WindowSummary summarize( final long windowMs, final long nowMs ) {
+        
+        final WindowSummary summary = new WindowSummary();
+        final long fromMs = nowMs - Math.max(0, windowMs);
+        long cursor = levels[0].alignDown(nowMs) + levels[0].getWidthMs();
+        for (int i = 0; i < levels.length && cursor > fromMs; ++i) {
+            final BucketRing level = levels[i];
+            final long oldestHeld = level.alignDown(nowMs) + level.getWidthMs() - level.getSpanMs();
+            long start = Math.max(level.alignDown(fromMs), oldestHeld);
+            if (i + 1 < levels.length) {
+                //Hand over to the coarser level at one of its bucket edges still inside this ring
+                final BucketRing coarser = levels[i + 1];
+                final long handOver = coarser.alignDown(oldestHeld + coarser.getWidthMs() - 1);
+                start = Math.max(start, handOver);
+            }
+            level.addTo(summary, start, cursor);
+            cursor = Math.min(cursor, start);
+        }
+        return summary;
+    }
+}
@@ -0,0 +1,139 @@
+package back.aggregate;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Count, mean, variance, minimum and maximum of every value added, kept incrementally with
+ * Welford's algorithm so the variance stays accurate without storing any values. Two sets of
+ * stats merge exactly with Chan's parallel formula, so per-client stats combine into one for
+ * every client.
+ * <p>
+ * Every method is synchronized so that the stats may be fed by one thread and read by another.
+ */
+public class RunningStats {
+    
+    private long count = 0;
+    private double mean = 0;
+    private double squaredDeviations = 0;
+    private int min = Integer.MAX_VALUE;
+    private int max = Integer.MIN_VALUE;
+    
+    /**
+     * @param value The value submitted
+     */
+    public synchronized void add( final int value ) {
+        
+        ++count;
+        final double delta = value - mean;
+        mean += delta / count;
+        squaredDeviations += delta * ( value - mean );
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+    
+    /**
+     * @param values The values submitted together
+     */
+    public synchronized void addAll( final List<Integer> values ) {
+        
+        for (int i = 0; i < values.size(); ++i) {
+            add(values.get(i));
+        }
+    }
+    
+    /**
+     * Adds every value counted by these stats to another set.
+     *
+     * @param target The stats to merge into, which must not be these
+     */
+    public synchronized void mergeInto( final RunningStats target ) {
+        
+        target.merge(count, mean, squaredDeviations, min, max);
+    }
+    
+    /**
+     * @param out Where to write the stats
+     *
+     * @throws IOException If the output cannot be written
+     */
+    public synchronized void writeTo( final DataOutput out ) throws IOException {
+        
+        out.writeLong(count);
+        out.writeDouble(mean);
+        out.writeDouble(squaredDeviations);
+        out.writeInt(min);
+        out.writeInt(max);
+    }
+    
+    /**
+     * Replaces these stats with ones written by {@link #writeTo(DataOutput)}
+     *
+     * @param in Where to read
+     *
+     * @throws IOException If the input cannot be read
+     */
+    public synchronized void readFrom( final DataInput in ) throws IOException {
+        
+        count = in.readLong();
+        mean = in.readDouble();
+        squaredDeviations = in.readDouble();
+        min = in.readInt();
+        max = in.readInt();
+    }
+    
+    public synchronized long getCount() {
+        
+        return count;
+    }
+    
+    public synchronized double getMean() {
+        
+        return mean;
+    }
+    
+    /**
+     * @return The population variance, or 0 if nothing has been added
+     */
+    public synchronized double getVariance() {
+        
+        return count == 0 ? 0 : squaredDeviations / count;
+    }
+    
+    public synchronized double getStandardDeviation() {
+        
+        return Math.sqrt(getVariance());
+    }
+    
+    /**
+     * @return The smallest value, or 0 if nothing has been added
+     */
+    public synchronized int getMin() {
+        
+        return count == 0 ? 0 : min;
+    }
+    
+    /**
+     * @return The largest value, or 0 if nothing has been added
+     */
+    public synchronized int getMax() {
+        
+        return count == 0 ? 0 : max;
+    }
+    
+    private synchronized void merge( final long otherCount, final double otherMean, final double otherSquaredDeviations, final int otherMin, final int otherMax ) {
+        
+        if (otherCount == 0) {
+            return;
+        }
+        final long total = count + otherCount;
+        final double delta = otherMean - mean;
+        mean += delta * otherCount / total;
+        squaredDeviations += otherSquaredDeviations + delta * delta * ( (double) count * otherCount / total );
+        count = total;
+        min = Math.min(min, otherMin);
+        max = Math.max(max, otherMax);
+    }
+}
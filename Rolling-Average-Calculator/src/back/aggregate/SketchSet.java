@@ -0,0 +1,94 @@
+package back.aggregate;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * The aggregates that merge across clients: {@link RunningStats}, {@link QuantileSketch},
+ * {@link DistinctSketch} and {@link TopValues}. One set keeps what clients that are no longer
+ * connected submitted, so server-wide answers still count them, and another is filled from every
+ * client when the server's state is saved.
+ * <p>
+ * Each part is synchronized on its own, so a set may be fed by one thread and read by another.
+ */
+public class SketchSet {
+    
+    private final RunningStats runningStats = new RunningStats();
+    private final QuantileSketch quantileSketch = new QuantileSketch();
+    private final DistinctSketch distinctSketch = new DistinctSketch();
+    private final TopValues topValues = new TopValues();
+    
+    /**
+     * @param values The values submitted together
+     */
+    public void addAll( final List<Integer> values ) {
+        
+        runningStats.addAll(values);
+        quantileSketch.addAll(values);
+        distinctSketch.addAll(values);
+        topValues.addAll(values);
+    }
+    
+    /**
+     * Adds every value counted by this set to another one.
+     *
+     * @param target The set to merge into, which must not be this one
+     */
+    public void mergeInto( final SketchSet target ) {
+        
+        runningStats.mergeInto(target.runningStats);
+        quantileSketch.mergeInto(target.quantileSketch);
+        distinctSketch.mergeInto(target.distinctSketch);
+        topValues.mergeInto(target.topValues);
+    }
+    
+    public RunningStats getRunningStats() {
+        
+        return runningStats;
+    }
+    
+    public QuantileSketch getQuantileSketch() {
+        
+        return quantileSketch;
+    }
+    
+    public DistinctSketch getDistinctSketch() {
+        
+        return distinctSketch;
+    }
+    
+    public TopValues getTopValues() {
+        
+        return topValues;
+    }
+    
+    /**
+     * @param out Where to write every part
+     *
+     * @throws IOException If the output cannot be written
+     */
+    public void writeTo( final DataOutput out ) throws IOException {
+        
+        runningStats.writeTo(out);
+        quantileSketch.writeTo(out);
+        distinctSketch.writeTo(out);
+        topValues.writeTo(out);
+    }
+    
+    /**
+     * Replaces every part with ones written by {@link #writeTo(DataOutput)}
+     *
+     * @param in Where to read
+     *
+     * @throws IOException If the input cannot be read
+     */
+    public void readFrom( final DataInput in ) throws IOException {
+        
+        runningStats.readFrom(in);
+        quantileSketch.readFrom(in);
+        distinctSketch.readFrom(in);
+        topValues.readFrom(in);
+    }
+}
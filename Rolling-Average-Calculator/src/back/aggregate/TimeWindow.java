@@ -0,0 +1,121 @@
+package back.aggregate;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A {@link RollingWindow} over the values from the last T milliseconds. Values and their times
+ * sit in parallel ring buffers that double when full, so each value is added and evicted once.
+ */
+class TimeWindow extends RollingWindow {
+    
+    private static final byte KIND = 1;
+    private static final int INITIAL_CAPACITY = 64;
+    
+    private final long durationMs;
+    private int[] values = new int[INITIAL_CAPACITY];
+    private long[] times = new long[INITIAL_CAPACITY];
+    private int head = 0;
+    private int size = 0;
+    private long sum = 0;
+    
+    TimeWindow( final long durationMs ) {
+        
+        if (durationMs <= 0) {
+            throw new IllegalArgumentException("Window duration must be positive: " + durationMs);
+        }
+        this.durationMs = durationMs;
+    }
+    
+    @Override
+    public synchronized void add( final int value, final long timeMs ) {
+        
+        evict(timeMs);
+        if (size == values.length) {
+            grow();
+        }
+        final int tail = ( head + size ) % values.length;
+        values[tail] = value;
+        times[tail] = timeMs;
+        ++size;
+        sum += value;
+    }
+    
+    @Override
+    public synchronized long getSum( final long nowMs ) {
+        
+        evict(nowMs);
+        return sum;
+    }
+    
+    @Override
+    public synchronized int getCount( final long nowMs ) {
+        
+        evict(nowMs);
+        return size;
+    }
+    
+    @Override
+    public synchronized void writeTo( final DataOutput out ) throws IOException {
+        
+        out.writeByte(KIND);
+        out.writeLong(durationMs);
+        out.writeInt(size);
+        for (int i = 0; i < size; ++i) {
+            final int index = ( head + i ) % values.length;
+            out.writeLong(times[index]);
+            out.writeInt(values[index]);
+        }
+    }
+    
+    @Override
+    public synchronized void readFrom( final DataInput in ) throws IOException {
+        
+        if (in.readByte() != KIND || in.readLong() != durationMs) {
+            throw new IOException("Not the state of a window over the last " + durationMs + " ms");
+        }
+        final int restoredSize = in.readInt();
+        if (restoredSize < 0) {
+            throw new IOException("Window holds " + restoredSize + " values");
+        }
+        int capacity = INITIAL_CAPACITY;
+        while (capacity < restoredSize) {
+            capacity *= 2;
+        }
+        values = new int[capacity];
+        times = new long[capacity];
+        head = 0;
+        size = restoredSize;
+        sum = 0;
+        for (int i = 0; i < size; ++i) {
+            times[i] = in.readLong();
+            values[i] = in.readInt();
+            sum += values[i];
+        }
+    }
+    
+    private void evict( final long nowMs ) {
+        
+        final long oldest = nowMs - durationMs;
+        while (size > 0 && times[head] <= oldest) {
+            sum -= values[head];
+            head = ( head + 1 ) % values.length;
+            --size;
+        }
+    }
+    
+    private void grow() {
+        
+        final int[] grownValues = new int[values.length * 2];
+        final long[] grownTimes = new long[times.length * 2];
+        for (int i = 0; i < size; ++i) {
+            final int index = ( head + i ) % values.length;
+            grownValues[i] = values[index];
+            grownTimes[i] = times[index];
+        }
+        values = grownValues;
+        times = grownTimes;
+        head = 0;
+    }
+}
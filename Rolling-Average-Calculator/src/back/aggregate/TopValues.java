@@ -0,0 +1,279 @@
+package back.aggregate;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Finds the values that occur most often, using a Count-Min sketch to estimate how often any
+ * value occurred and a small fixed set of candidates for the most frequent ones. An estimate is
+ * never below the true count, and with high probability exceeds it by at most about 0.5% of all
+ * values added. Only the counters that hold a value's estimate are raised when it is added, which
+ * keeps rare values from inflating the counts of frequent ones they share counters with.
+ * <p>
+ * A value only becomes a candidate when its estimate beats the least frequent candidate, and
+ * the candidates sit in a min-heap on their estimates, so most additions only touch the sketch and
+ * replacing the least frequent candidate costs a few comparisons rather than re-estimating every
+ * one. A candidate's estimate in the heap is only refreshed when it reaches the top, which is
+ * safe because estimates never shrink. Counters are ints that stop at {@link Integer#MAX_VALUE},
+ * so memory is fixed at about 8 KB. Two instances merge by adding their sketches and keeping the
+ * most frequent of both sets of candidates, so per-client instances combine into one for every
+ * client.
+ * <p>
+ * Every method is synchronized so that an instance may be fed by one thread and read by another.
+ */
+public class TopValues {
+    
+    /**
+     * The most values that can be asked for
+     */
+    public static final int CAPACITY = 32;
+    
+    /**
+     * How many values are returned when the request does not say
+     */
+    public static final int DEFAULT_COUNT = 10;
+    
+    private static final int DEPTH = 4;
+    private static final int WIDTH_BITS = 9;
+    private static final int WIDTH = 1 << WIDTH_BITS;
+    private static final int WIDTH_MASK = WIDTH - 1;
+    
+    private final int[] counters = new int[DEPTH * WIDTH];
+    //A min-heap on the estimates, each no higher than the candidate's current one
+    private final int[] candidates = new int[CAPACITY];
+    private final long[] candidateEstimates = new long[CAPACITY];
+    private int candidateCount = 0;
+    
+    /**
+     * @param value The value submitted
+     */
+    public synchronized void add( final int value ) {
+        
+        //Only the counters holding the estimate need to grow for it to stay an upper bound
+        final long hash = DistinctSketch.hash(value);
+        final long estimate = estimate(value) + 1;
+        for (int row = 0; row < DEPTH; ++row) {
+            final int index = indexOf(hash, row);
+            counters[index] = (int) Math.min(Integer.MAX_VALUE, Math.max(counters[index], estimate));
+        }
+        //No candidate's estimate is below the top of the heap, so the value could not replace one
+        if (candidateCount == CAPACITY && estimate <= candidateEstimates[0]) {
+            return;
+        }
+        offer(value, estimate);
+    }
+    
+    /**
+     * @param values The values submitted together
+     */
+    public synchronized void addAll( final List<Integer> values ) {
+        
+        for (int i = 0; i < values.size(); ++i) {
+            add(values.get(i));
+        }
+    }
+    
+    /**
+     * Adds every value counted by this instance to another one.
+     *
+     * @param target The instance to merge into, which must not be this one
+     */
+    public synchronized void mergeInto( final TopValues target ) {
+        
+        target.merge(counters, Arrays.copyOf(candidates, candidateCount));
+    }
+    
+    /**
+     * @param count How many values to return, at most {@link #CAPACITY}
+     *
+     * @return The most frequent values, most frequent first
+     */
+    public synchronized List<Integer> getTopValues( final int count ) {
+        
+        final long[] estimates = new long[candidateCount];
+        final Integer[] order = new Integer[candidateCount];
+        for (int i = 0; i < candidateCount; ++i) {
+            estimates[i] = estimate(candidates[i]);
+            order[i] = i;
+        }
+        Arrays.sort(order, ( a, b ) -> Long.compare(estimates[b], estimates[a]));
+        final int length = Math.min(Math.max(0, count), candidateCount);
+        final List<Integer> top = new ArrayList<>(length);
+        for (int i = 0; i < length; ++i) {
+            top.add(candidates[order[i]]);
+        }
+        return top;
+    }
+    
+    /**
+     * @param value Any value
+     *
+     * @return How many times the value is estimated to have been added, never less than the truth
+     */
+    public synchronized long getEstimate( final int value ) {
+        
+        return estimate(value);
+    }
+    
+    /**
+     * @param out Where to write the sketch and the candidates
+     *
+     * @throws IOException If the output cannot be written
+     */
+    public synchronized void writeTo( final DataOutput out ) throws IOException {
+        
+        for (int counter : counters) {
+            out.writeInt(counter);
+        }
+        out.writeInt(candidateCount);
+        for (int i = 0; i < candidateCount; ++i) {
+            out.writeInt(candidates[i]);
+        }
+    }
+    
+    /**
+     * Replaces this instance with one written by {@link #writeTo(DataOutput)}
+     *
+     * @param in Where to read
+     *
+     * @throws IOException If the input cannot be read or holds too many candidates
+     */
+    public synchronized void readFrom( final DataInput in ) throws IOException {
+        
+        for (int index = 0; index < counters.length; ++index) {
+            counters[index] = in.readInt();
+        }
+        final int restoredCount = in.readInt();
+        if (restoredCount < 0 || restoredCount > CAPACITY) {
+            throw new IOException(restoredCount + " candidates");
+        }
+        final int[] restored = new int[restoredCount];
+        for (int i = 0; i < restoredCount; ++i) {
+            restored[i] = in.readInt();
+        }
+        candidateCount = 0;
+        for (int value : restored) {
+            offer(value, estimate(value));
+        }
+    }
+    
+    private synchronized void merge( final int[] otherCounters, final int[] otherCandidates ) {
+        
+        for (int index = 0; index < counters.length; ++index) {
+            counters[index] = (int) Math.min(Integer.MAX_VALUE, (long) counters[index] + otherCounters[index]);
+        }
+        //Counts have changed under every candidate, so choose again from both sets
+        final int[] previous = Arrays.copyOf(candidates, candidateCount);
+        candidateCount = 0;
+        for (int value : previous) {
+            offer(value, estimate(value));
+        }
+        for (int value : otherCandidates) {
+            offer(value, estimate(value));
+        }
+    }
+    
+    /**
+     * Makes the value a candidate if it is not one and is estimated to occur more often than the
+     * least frequent candidate
+     */
+    private void offer( final int value, final long estimate ) {
+        
+        //A scan of 32 adjacent ints is as quick as a lookup in a hash index and needs no upkeep
+        final int existing = indexOf(candidates, candidateCount, value);
+        if (existing >= 0) {
+            candidateEstimates[existing] = Math.max(candidateEstimates[existing], estimate);
+            siftDown(existing);
+            return;
+        }
+        if (candidateCount < CAPACITY) {
+            candidates[candidateCount] = value;
+            candidateEstimates[candidateCount] = estimate;
+            siftUp(candidateCount++);
+            return;
+        }
+        //Bring the top of the heap up to date until it holds the least frequent candidate
+        long leastEstimate;
+        while (( leastEstimate = estimate(candidates[0]) ) > candidateEstimates[0]) {
+            candidateEstimates[0] = leastEstimate;
+            siftDown(0);
+        }
+        if (estimate > leastEstimate) {
+            candidates[0] = value;
+            candidateEstimates[0] = estimate;
+            siftDown(0);
+        }
+    }
+    
+    private void siftUp( int index ) {
+        
+        while (index > 0) {
+            final int parent = ( index - 1 ) >>> 1;
+            if (candidateEstimates[parent] <= candidateEstimates[index]) {
+                return;
+            }
+            swap(parent, index);
+            index = parent;
+        }
+    }
+    
+    private void siftDown( int index ) {
+        
+        while (true) {
+            final int left = 2 * index + 1;
+            if (left >= candidateCount) {
+                return;
+            }
+            final int right = left + 1;
+            final int child = right < candidateCount && candidateEstimates[right] < candidateEstimates[left] ? right : left;
+            if (candidateEstimates[index] <= candidateEstimates[child]) {
+                return;
+            }
+            swap(index, child);
+            index = child;
+        }
+    }
+    
+    private void swap( final int a, final int b ) {
+        
+        final int value = candidates[a];
+        candidates[a] = candidates[b];
+        candidates[b] = value;
+        final long estimate = candidateEstimates[a];
+        candidateEstimates[a] = candidateEstimates[b];
+        candidateEstimates[b] = estimate;
+    }
+    
+    private long estimate( final int value ) {
+        
+        final long hash = DistinctSketch.hash(value);
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < DEPTH; ++row) {
+            estimate = Math.min(estimate, counters[indexOf(hash, row)]);
+        }
+        return estimate;
+    }
+    
+    private static int indexOf( final int[] values, final int length, final int value ) {
+        
+        for (int i = 0; i < length; ++i) {
+            if (values[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * Picks the value's counter in a row from that row's own bits of the hash, so that two values
+     * sharing a counter in one row are no more likely to share one in another
+     */
+    private static int indexOf( final long hash, final int row ) {
+        
+        return row * WIDTH + ( (int) ( hash >>> ( row * WIDTH_BITS ) ) & WIDTH_MASK );
+    }
+}
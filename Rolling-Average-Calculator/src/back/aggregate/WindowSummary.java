@@ -0,0 +1,66 @@
+package back.aggregate;
+
+/**
+ * The count, sum, minimum and maximum of the values in a window of time, as added up from
+ * {@link Rollups} buckets.
+ */
+public class WindowSummary {
+    
+    private long count = 0;
+    private long sum = 0;
+    private int min = Integer.MAX_VALUE;
+    private int max = Integer.MIN_VALUE;
+    
+    /**
+     * Adds values that were already summarized together, such as a bucket or a packed block
+     *
+     * @param bucketCount The number of values, at least one
+     * @param bucketSum   Their sum
+     * @param bucketMin   The smallest of them
+     * @param bucketMax   The largest of them
+     */
+    public void add( final long bucketCount, final long bucketSum, final int bucketMin, final int bucketMax ) {
+        
+        count += bucketCount;
+        sum += bucketSum;
+        min = Math.min(min, bucketMin);
+        max = Math.max(max, bucketMax);
+    }
+    
+    public long getCount() {
+        
+        return count;
+    }
+    
+    public long getSum() {
+        
+        return sum;
+    }
+    
+    /**
+     * @return The smallest value in the window, or 0 if it is empty
+     */
+    public int getMin() {
+        
+        return count == 0 ? 0 : min;
+    }
+    
+    /**
+     * @return The largest value in the window, or 0 if it is empty
+     */
+    public int getMax() {
+        
+        return count == 0 ? 0 : max;
+    }
+    
+    /**
+     * @return The mean of the values in the window, or 0 if it is empty
+     */
+    public int getAverage() {
+        
+        if (count == 0) {
+            return 0;
+        }
+        return (int) ( sum / count );
+    }
+}
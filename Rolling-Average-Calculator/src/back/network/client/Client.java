@@ -1,13 +1,25 @@
 package back.network.client;
 
+import utility.request.BinaryCodec;
 import utility.request.Request;
+import utility.request.RequestFactory;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 public class Client implements Runnable {
     
@@ -16,6 +28,10 @@ public class Client implements Runnable {
     private ClientHandler CCHandler;
     private ObjectOutputStream out;
     private ObjectInputStream in;
+    private DataOutputStream binaryOut;
+    private DataInputStream binaryIn;
+    private BinaryCodec binaryCodec;
+    private Request.Encoding encoding;
     
     private String clientAddress;
     private int clientPort;
@@ -25,6 +41,11 @@ public class Client implements Runnable {
     private Socket clientSocket;
     private Thread clientThread;
     
+    private Map<Long, CompletableFuture<Request>> pendingResponses = new ConcurrentHashMap<>();
+    private Map<Long, Consumer<Request>> chunkListeners = new ConcurrentHashMap<>();
+    private Map<Long, Consumer<Request>> subscriptionListeners = new ConcurrentHashMap<>();
+    private AtomicLong nextCorrelation = new AtomicLong(0);
+    
     /**
      * Creates new Client with address and port
      *
@@ -33,8 +54,21 @@ public class Client implements Runnable {
      */
     public Client( String address, int port ) {
         
+        this(address, port, Request.Encoding.JSON);
+    }
+    
+    /**
+     * Creates new Client with address, port and the encoding used on the connection
+     *
+     * @param address  The IPv4 or IPv6 address to create the network server.
+     * @param port     The port number to open for the network server.
+     * @param encoding How requests and responses are written on the connection.
+     */
+    public Client( String address, int port, Request.Encoding encoding ) {
+        
         this.clientPort = port;
         this.clientAddress = address;
+        this.encoding = encoding;
     }
     
     /**
@@ -61,11 +95,22 @@ public class Client implements Runnable {
         try {
             Thread.sleep(200);
             
-            this.out = new ObjectOutputStream(this.clientSocket.getOutputStream());
-            this.out.flush();
-            this.in = new ObjectInputStream(this.clientSocket.getInputStream());
-            
-            this.clientID = this.in.readLong();
+            if (encoding == Request.Encoding.BINARY) {
+                this.binaryCodec = new BinaryCodec();
+                this.binaryOut = new DataOutputStream(new BufferedOutputStream(this.clientSocket.getOutputStream()));
+                this.binaryOut.write(BinaryCodec.PREAMBLE);
+                this.binaryOut.write(BinaryCodec.VERSION);
+                this.binaryOut.flush();
+                this.binaryIn = new DataInputStream(new BufferedInputStream(this.clientSocket.getInputStream()));
+                
+                this.clientID = this.binaryIn.readLong();
+            } else {
+                this.out = new ObjectOutputStream(this.clientSocket.getOutputStream());
+                this.out.flush();
+                this.in = new ObjectInputStream(this.clientSocket.getInputStream());
+                
+                this.clientID = this.in.readLong();
+            }
             this.CCHandler.onClientIdObtained(this.clientID);
             
             this.clientThread = new Thread(this::responseFromServer);
@@ -84,24 +129,68 @@ public class Client implements Runnable {
     
     /**
      * Attempts to read response from {@link back.network.server.Server} by reading a JSON string
-     * and building it to a {@link Request}. It will then inform the user of the response from the
-     * server about their request.
+     * or binary frame and building it to a {@link Request}. It will then inform the user of the
+     * response from the server about their request.
      */
     private void responseFromServer() {
         
-        String jsonOutput;
-        
         while (!isStopped) {
             try {
-                jsonOutput = (String) this.in.readObject();
-                if (jsonOutput != null) {
-                    Request response = new Request.Builder().fromJSONString(jsonOutput).build();
+                Request response = readResponse();
+                if (response != null) {
+                    if (response.hasCorrelation() && dispatchToSubscription(response)) {
+                        continue;
+                    }
+                    if (response.hasCorrelation()) {
+                        Consumer<Request> chunkListener = chunkListeners.get(response.getCorrelation());
+                        if (chunkListener != null) {
+                            chunkListener.accept(response);
+                            if (response.getResponse() == Request.Response.PARTIAL) {
+                                continue;
+                            }
+                            chunkListeners.remove(response.getCorrelation());
+                        }
+                        CompletableFuture<Request> pending = pendingResponses.remove(response.getCorrelation());
+                        if (pending != null) {
+                            pending.complete(response);
+                            continue;
+                        }
+                    }
                     
                     switch (response.getTopic()) {
+                        case SUBMIT_BATCH:
+                            System.out.println("Submitted: " + response.getAmount());
+                            System.out.flush();
+                            break;
                         case AVERAGE:
                             System.out.println("Average: " + response.getAmount());
                             System.out.flush();
                             break;
+                        case ROLLING_AVERAGE:
+                            System.out.println("Rolling Average: " + response.getAmount());
+                            System.out.flush();
+                            break;
+                        case EWMA:
+                            System.out.println("EWMA: " + response.getValues().get(0));
+                            System.out.flush();
+                            break;
+                        case STATS:
+                            List<Double> stats = response.getValues();
+                            System.out.println("Stats: count=" + stats.get(0).longValue() + " mean=" + stats.get(1) + " stddev=" + stats.get(3) + " min=" + stats.get(4).intValue() + " max=" + stats.get(5).intValue());
+                            System.out.flush();
+                            break;
+                        case PERCENTILE:
+                            System.out.println("Percentiles: " + response.getValues() + " = " + response.getEntries());
+                            System.out.flush();
+                            break;
+                        case DISTINCT:
+                            System.out.println("Distinct: " + response.getAmount());
+                            System.out.flush();
+                            break;
+                        case TOPVALUES:
+                            System.out.println("Top values: " + response.getEntries() + " x " + response.getValues());
+                            System.out.flush();
+                            break;
                         case COUNT:
                             System.out.println("Count: " + response.getAmount());
                             System.out.flush();
@@ -130,7 +219,51 @@ public class Client implements Runnable {
     }
     
     /**
-     * Writes the {@link Request} JSON String to the outputstream of Client.
+     * Hands a pushed update to the listener of the subscription it belongs to. The listener is
+     * dropped once the server confirms the subscription has ended, or refuses it.
+     *
+     * @param response A correlated response from the server
+     *
+     * @return True if the response belonged to a subscription
+     */
+    private boolean dispatchToSubscription( Request response ) {
+        
+        Consumer<Request> listener = subscriptionListeners.get(response.getCorrelation());
+        if (listener == null) {
+            return false;
+        }
+        switch (response.getTopic()) {
+            case SUBSCRIBE:
+                if (response.getResponse() == Request.Response.ERROR) {
+                    subscriptionListeners.remove(response.getCorrelation());
+                    listener.accept(response);
+                }
+                break;
+            case UNSUBSCRIBE:
+                subscriptionListeners.remove(response.getCorrelation());
+                break;
+            default:
+                listener.accept(response);
+                break;
+        }
+        return true;
+    }
+    
+    private Request readResponse() throws IOException, ClassNotFoundException {
+        
+        if (encoding == Request.Encoding.BINARY) {
+            return binaryCodec.read(this.binaryIn);
+        }
+        
+        String jsonOutput = (String) this.in.readObject();
+        if (jsonOutput == null) {
+            return null;
+        }
+        return new Request.Builder().fromJSONString(jsonOutput).build();
+    }
+    
+    /**
+     * Writes the {@link Request} JSON String or binary frame to the outputstream of Client.
      *
      * @param request The Request that has been made by the client
      */
@@ -142,10 +275,120 @@ public class Client implements Runnable {
         }
         
         try {
-            this.out.writeObject(request.toJSONString());
+            writeRequest(request);
+        } catch (IOException e) {
+            CCHandler.onIOSocketFailure("Could not send request to server");
+        }
+    }
+    
+    /**
+     * Sends the {@link Request} tagged with a new correlation ID and returns a future that completes
+     * with the matching response. Any number of queries can be in flight on the connection at once,
+     * and the server may answer them in any order.
+     *
+     * @param request The Request that has been made by the client
+     *
+     * @return A future completed by the response, or completed exceptionally if the request could
+     * not be sent or the client shuts down first
+     */
+    public CompletableFuture<Request> query( Request request ) {
+        
+        CompletableFuture<Request> pending = new CompletableFuture<>();
+        if (request == null) {
+            CCHandler.onRequestFailure("The request is null.");
+            pending.completeExceptionally(new IllegalArgumentException("The request is null."));
+            return pending;
+        }
+        
+        long correlation = nextCorrelation.getAndIncrement();
+        pendingResponses.put(correlation, pending);
+        try {
+            writeRequest(request.withCorrelation(correlation));
         } catch (IOException e) {
+            pendingResponses.remove(correlation);
+            pending.completeExceptionally(e);
             CCHandler.onIOSocketFailure("Could not send request to server");
         }
+        return pending;
+    }
+    
+    /**
+     * Sends a request whose response may arrive as a stream of {@link Request.Response#PARTIAL}
+     * chunks, such as a streamed HISTORY request. Every chunk is handed to the listener on the
+     * reading thread as it arrives, so the listener should not block.
+     *
+     * @param request       The Request that has been made by the client
+     * @param chunkListener Receives each chunk in order, including the final one
+     *
+     * @return A future completed with the final chunk once the stream has ended
+     */
+    public CompletableFuture<Request> queryStream( Request request, Consumer<Request> chunkListener ) {
+        
+        if (request == null) {
+            return query(null);
+        }
+        
+        long correlation = nextCorrelation.getAndIncrement();
+        CompletableFuture<Request> pending = new CompletableFuture<>();
+        chunkListeners.put(correlation, chunkListener);
+        pendingResponses.put(correlation, pending);
+        try {
+            writeRequest(request.withCorrelation(correlation));
+        } catch (IOException e) {
+            chunkListeners.remove(correlation);
+            pendingResponses.remove(correlation);
+            pending.completeExceptionally(e);
+            CCHandler.onIOSocketFailure("Could not send request to server");
+        }
+        return pending;
+    }
+    
+    /**
+     * Sends a SUBSCRIBE request. Each update the server pushes for it is handed to the listener on
+     * the reading thread, so the listener should not block.
+     *
+     * @param request  A SUBSCRIBE request
+     * @param listener Receives every pushed update, or the ERROR response if the server refuses
+     *
+     * @return The ID of the subscription, for {@link #unsubscribe(long, long)}
+     */
+    public long subscribe( Request request, Consumer<Request> listener ) {
+        
+        long correlation = nextCorrelation.getAndIncrement();
+        subscriptionListeners.put(correlation, listener);
+        try {
+            writeRequest(request.withCorrelation(correlation));
+        } catch (IOException e) {
+            subscriptionListeners.remove(correlation);
+            CCHandler.onIOSocketFailure("Could not send request to server");
+        }
+        return correlation;
+    }
+    
+    /**
+     * Asks the server to stop pushing updates for a subscription. Updates already on their way may
+     * still arrive before the server confirms.
+     *
+     * @param id           The ID of this client
+     * @param subscription The ID returned by {@link #subscribe(Request, Consumer)}
+     */
+    public void unsubscribe( long id, long subscription ) {
+        
+        requestToServer(RequestFactory.clientUnsubscribeRequest(id, subscription));
+    }
+    
+    private void writeRequest( Request request ) throws IOException {
+        
+        if (encoding == Request.Encoding.BINARY) {
+            synchronized (this.binaryOut) {
+                binaryCodec.write(this.binaryOut, request);
+                this.binaryOut.flush();
+            }
+        } else {
+            synchronized (this.out) {
+                this.out.writeObject(request.toJSONString());
+            }
+        }
     }
     
     /**
@@ -155,10 +398,22 @@ public class Client implements Runnable {
     public boolean shutdown() {
         
         try {
-            this.in.close();
-            this.out.close();
+            if (encoding == Request.Encoding.BINARY) {
+                this.binaryIn.close();
+                this.binaryOut.close();
+            } else {
+                this.in.close();
+                this.out.close();
+            }
             this.isStopped = true;
             
+            for (CompletableFuture<Request> pending : pendingResponses.values()) {
+                pending.completeExceptionally(new IOException("Client shut down"));
+            }
+            pendingResponses.clear();
+            chunkListeners.clear();
+            subscriptionListeners.clear();
+            
             this.clientSocket.close();
             if (clientSocket.isClosed()) {
                 //TODO Requires disconnect
@@ -5,7 +5,12 @@ import back.network.server.ServerAdapter;
 import utility.request.Request;
 import utility.request.RequestFactory;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 /**
  * This class is used to create a network connection to the {@link back.network.server.Server}
@@ -43,11 +48,25 @@ public class ClientAdapter implements Client.ClientHandler {
      */
     public void connect( final String ipAddress, final String port ) {
         
+        connect(ipAddress, port, Request.Encoding.JSON);
+    }
+    
+    /**
+     * Attempts to create a new {@link Client} that speaks the given encoding with the server.
+     * Whether the thread starts of fail, it will communicate back to the {@link ClientUI}.
+     * Must be done in a non-UI thread.
+     *
+     * @param ipAddress The IPv4 or IPv6 network address to connect to.
+     * @param port      The port of the server to connect to.
+     * @param encoding  How requests and responses are written on the connection.
+     */
+    public void connect( final String ipAddress, final String port, final Request.Encoding encoding ) {
+        
         System.out.println("Attempting to connect to " + ipAddress + ":" + port);
         
         new Thread(() -> {
             stateLock = new ReentrantLock();
-            this.client = new Client(ipAddress, Integer.parseInt(port));
+            this.client = new Client(ipAddress, Integer.parseInt(port), encoding);
             this.client.setCCHandler(this);
             threadClient = new Thread(this.client);
             threadClient.start();
@@ -107,6 +126,24 @@ public class ClientAdapter implements Client.ClientHandler {
             case AVERAGE:
                 request = RequestFactory.clientAverageRequest(clientID, range);
                 break;
+            case ROLLING_AVERAGE:
+                request = RequestFactory.clientRollingAverageRequest(clientID, range);
+                break;
+            case EWMA:
+                request = RequestFactory.clientEwmaRequest(clientID, range);
+                break;
+            case STATS:
+                request = RequestFactory.clientStatsRequest(clientID, range);
+                break;
+            case PERCENTILE:
+                request = RequestFactory.clientPercentileRequest(clientID, range, null);
+                break;
+            case DISTINCT:
+                request = RequestFactory.clientDistinctRequest(clientID, range);
+                break;
+            case TOPVALUES:
+                request = RequestFactory.clientTopValuesRequest(clientID, range);
+                break;
             case COUNT:
                 request = RequestFactory.clientCountRequest(clientID, range);
                 break;
@@ -130,6 +167,206 @@ public class ClientAdapter implements Client.ClientHandler {
         this.client.requestToServer(request);
     }
     
+    /**
+     * Creates a specific {@link Request} from the given parameters, Topic and Range, and sends it
+     * without waiting for earlier queries to be answered. Many queries can be pipelined over the
+     * one connection this way.
+     *
+     * @param topic The type of request is being made from the user
+     * @param range Determines if request applies to ALL or SELF
+     *
+     * @return A future completed with the server's response to this request
+     */
+    public CompletableFuture<Request> query( Request.Topic topic, Request.Range range ) {
+        
+        Request request = null;
+        
+        switch (topic) {
+            case AVERAGE:
+                request = RequestFactory.clientAverageRequest(clientID, range);
+                break;
+            case ROLLING_AVERAGE:
+                request = RequestFactory.clientRollingAverageRequest(clientID, range);
+                break;
+            case EWMA:
+                request = RequestFactory.clientEwmaRequest(clientID, range);
+                break;
+            case STATS:
+                request = RequestFactory.clientStatsRequest(clientID, range);
+                break;
+            case PERCENTILE:
+                request = RequestFactory.clientPercentileRequest(clientID, range, null);
+                break;
+            case DISTINCT:
+                request = RequestFactory.clientDistinctRequest(clientID, range);
+                break;
+            case TOPVALUES:
+                request = RequestFactory.clientTopValuesRequest(clientID, range);
+                break;
+            case COUNT:
+                request = RequestFactory.clientCountRequest(clientID, range);
+                break;
+            case HISTORY:
+                request = RequestFactory.clientHistoryRequest(clientID, range);
+                break;
+            case USERS:
+                request = RequestFactory.clientUsersRequest(clientID);
+                break;
+            default:
+                //Only queries have a response to wait for
+                CompletableFuture<Request> unsupported = new CompletableFuture<>();
+                unsupported.completeExceptionally(new IllegalArgumentException(topic + " is not a query"));
+                return unsupported;
+        }
+        
+        return this.client.query(request);
+    }
+    
+    /**
+     * Subscribes to a query so the server pushes its answer whenever the values it covers change,
+     * instead of the client polling for it. Changes are coalesced, so the listener is called at
+     * most once per the server's push interval.
+     *
+     * @param subject  The query to have pushed, such as AVERAGE or STATS
+     * @param range    Determines if request applies to ALL or SELF
+     * @param listener Receives each pushed response on the client's reading thread
+     *
+     * @return The ID of the subscription, for {@link #unsubscribe(long)}
+     */
+    public long subscribe( Request.Topic subject, Request.Range range, Consumer<Request> listener ) {
+        
+        return this.client.subscribe(RequestFactory.clientSubscribeRequest(clientID, subject, range), listener);
+    }
+    
+    /**
+     * @param subscription The ID returned by {@link #subscribe(Request.Topic, Request.Range, Consumer)}
+     */
+    public void unsubscribe( long subscription ) {
+        
+        this.client.unsubscribe(clientID, subscription);
+    }
+    
+    /**
+     * Asks for estimates of the given quantiles of the submitted values, such as 0.5, 0.95 and
+     * 0.99 for the median, 95th and 99th percentiles.
+     *
+     * @param range     Determines if request applies to ALL or SELF
+     * @param quantiles Fractions from 0 to 1
+     *
+     * @return A future completed with the server's response, whose entries hold one estimate per
+     * quantile
+     */
+    public CompletableFuture<Request> queryPercentiles( Request.Range range, double... quantiles ) {
+        
+        List<Double> requested = new ArrayList<>(quantiles.length);
+        for (double quantile : quantiles) {
+            requested.add(quantile);
+        }
+        return this.client.query(RequestFactory.clientPercentileRequest(clientID, range, requested));
+    }
+    
+    /**
+     * Asks for the values submitted most often, with how many times each is estimated to have
+     * been submitted. The counts may be slightly high but are never low.
+     *
+     * @param range Determines if request applies to ALL or SELF
+     * @param count How many values to return, at most {@link back.aggregate.TopValues#CAPACITY}
+     *
+     * @return A future completed with the values, most frequent first, as the entries and their
+     * counts as the values
+     */
+    public CompletableFuture<Request> queryTopValues( Request.Range range, int count ) {
+        
+        return this.client.query(RequestFactory.clientTopValuesRequest(clientID, range, count));
+    }
+    
+    /**
+     * Asks for the average of only the values submitted within the last stretch of time, such as
+     * the last 15 minutes. The server answers from pre-aggregated time buckets.
+     *
+     * @param range  Determines if request applies to ALL or SELF
+     * @param window How far back from now the average covers
+     * @param unit   The unit of the window
+     *
+     * @return A future completed with the server's response to this request
+     */
+    public CompletableFuture<Request> queryAverage( Request.Range range, long window, TimeUnit unit ) {
+        
+        return this.client.query(RequestFactory.clientAverageRequest(clientID, range, unit.toMillis(window)));
+    }
+    
+    /**
+     * Asks for the AVERAGE, COUNT or HISTORY of only the values that arrived at the server
+     * between two times. The server finds the range by binary search, so this stays cheap over
+     * long histories.
+     *
+     * @param topic AVERAGE, COUNT or HISTORY
+     * @param range Determines if request applies to ALL or SELF
+     * @param since The earliest arrival time to cover, in milliseconds since the epoch
+     * @param until The arrival time to cover up to but not including, in milliseconds since the
+     *              epoch
+     *
+     * @return A future completed with the server's response to this request
+     */
+    public CompletableFuture<Request> queryBetween( Request.Topic topic, Request.Range range, long since, long until ) {
+        
+        switch (topic) {
+            case AVERAGE:
+            case COUNT:
+            case HISTORY:
+                return this.client.query(RequestFactory.clientTimeRangeRequest(clientID, topic, range, since, until));
+            default:
+                CompletableFuture<Request> unsupported = new CompletableFuture<>();
+                unsupported.completeExceptionally(new IllegalArgumentException(topic + " cannot be limited to a time range"));
+                return unsupported;
+        }
+    }
+    
+    /**
+     * Asks for one page of the history, so a long history can be read a bounded piece at a time.
+     *
+     * @param range  Determines if request applies to ALL or SELF
+     * @param offset The position of the first entry to return, counting from 0
+     * @param limit  The most entries to return
+     *
+     * @return A future completed with the page. Its offset is where the page starts.
+     */
+    public CompletableFuture<Request> queryHistory( Request.Range range, long offset, int limit ) {
+        
+        return this.client.query(RequestFactory.clientHistoryRequest(clientID, range, offset, limit));
+    }
+    
+    /**
+     * Asks for the whole history in bounded chunks and hands each chunk's entries to the
+     * consumer as it arrives, instead of waiting for one response holding everything.
+     *
+     * @param range     Determines if request applies to ALL or SELF
+     * @param onEntries Receives the entries of each chunk in order, on the client's reading thread
+     *
+     * @return A future completed with the final chunk once every entry has been received
+     */
+    public CompletableFuture<Request> streamHistory( Request.Range range, Consumer<List<Integer>> onEntries ) {
+        
+        return streamHistory(range, false, onEntries);
+    }
+    
+    /**
+     * Asks for the whole history in bounded chunks, optionally with every client's entries merged
+     * in the order they arrived.
+     *
+     * @param range     Determines if request applies to ALL or SELF
+     * @param ordered   True to order entries by arrival across clients, which costs the server a
+     *                  merge; false to receive them one client after another
+     * @param onEntries Receives the entries of each chunk in order, on the client's reading thread
+     *
+     * @return A future completed with the final chunk once every entry has been received
+     */
+    public CompletableFuture<Request> streamHistory( Request.Range range, boolean ordered, Consumer<List<Integer>> onEntries ) {
+        
+        Request request = RequestFactory.clientHistoryStreamRequest(clientID, range, ordered);
+        return this.client.queryStream(request, chunk -> onEntries.accept(chunk.getEntries()));
+    }
+    
     /**
      * Creates a submit request {@link Request} from the value and passes it to the {@link Client}
      * to process the information
@@ -143,6 +380,18 @@ public class ClientAdapter implements Client.ClientHandler {
         
     }
     
+    /**
+     * Creates a single batch submit request {@link Request} carrying every value and passes it to
+     * the {@link Client}, so the whole batch costs one write and one acknowledgement.
+     *
+     * @param values the values the client submits to the server
+     */
+    public void sendValues( int[] values ) {
+        
+        Request request = RequestFactory.clientSubmitBatchRequest(clientID, values);
+        this.client.requestToServer(request);
+    }
+    
     @Override
     public void onOpenSocketSuccess() {
         
@@ -224,6 +473,7 @@ public class ClientAdapter implements Client.ClientHandler {
         while (!stateLock.isHeldByCurrentThread()) {
             stateLock.lock();
         }
+        this.clientID = id;
         final String identity = "Client ID: " + this.clientID;
         System.out.println(identity);
         stateLock.unlock();
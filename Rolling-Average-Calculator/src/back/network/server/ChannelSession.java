@@ -0,0 +1,329 @@
+package back.network.server;
+
+import utility.request.BinaryCodec;
+import utility.request.Request;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The non-blocking transport behind a {@link ClientConnection} when the {@link Server} runs in
+ * {@link Server.Mode#SELECTOR} mode. Inbound bytes are buffered until a whole request has
+ * arrived; outbound responses are queued from any thread and written by the owning
+ * {@link EventLoop}. Responses queued but not yet written are counted, so that a thread producing
+ * many of them can wait for the client to take some first.
+ */
+class ChannelSession {
+    
+    private static final int READ_BUFFER_BYTES = 8192;
+    //Room for the largest frame and its length prefix or type code
+    private static final int MAX_READ_BUFFER_BYTES = BinaryCodec.MAX_FRAME_BYTES + 16;
+    
+    private final SocketChannel channel;
+    private final String address;
+    private final EventLoop eventLoop;
+    private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+    //Buffers queued but not yet fully written
+    private final AtomicInteger backlog = new AtomicInteger(0);
+    private final ReentrantLock backlogLock = new ReentrantLock();
+    private final Condition backlogShrunk = backlogLock.newCondition();
+    private ByteBuffer[] gatherBuffers = new ByteBuffer[16];
+    private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_BYTES);
+    private boolean hasReadHeader = false;
+    private volatile Request.Encoding encoding = null;
+    private long clientID;
+    private volatile boolean shouldCloseAfterFlush = false;
+    private volatile boolean isClosed = false;
+    private SelectionKey key;
+    private ClientConnection clientConnection;
+    
+    /**
+     * Creates new ChannelSession for an accepted channel
+     *
+     * @param channel   The accepted client channel
+     * @param eventLoop The loop that will own all I/O on the channel
+     */
+    ChannelSession( final SocketChannel channel, final EventLoop eventLoop ) {
+        
+        this.channel = channel;
+        this.address = channel.socket().getLocalAddress().toString();
+        this.eventLoop = eventLoop;
+    }
+    
+    /**
+     * Hands the session over to its {@link EventLoop}. The client ID is sent once the client's
+     * first bytes show which {@link Request.Encoding} it speaks.
+     *
+     * @param clientConnection The connection that processes requests from this session
+     * @param clientID         The ID assigned to the client
+     */
+    void open( final ClientConnection clientConnection, final long clientID ) {
+        
+        this.clientConnection = clientConnection;
+        this.clientID = clientID;
+        eventLoop.register(this);
+    }
+    
+    /**
+     * Queues a response to be written to the client. Safe to call from any thread.
+     *
+     * @param response The response to send
+     */
+    void send( final Request response ) {
+        
+        if (isClosed || encoding == null) {
+            return;
+        }
+        if (encoding == Request.Encoding.BINARY) {
+            enqueue(BinaryCodec.encode(response));
+        } else {
+            enqueue(ObjectStreamFrames.encodeString(response.toJSONString()));
+        }
+        eventLoop.requestWrite(this);
+    }
+    
+    /**
+     * Waits until fewer than the given number of queued responses are left to write. Must not be
+     * called on the {@link EventLoop}, which does the writing.
+     *
+     * @param limit The most responses that may still be queued
+     *
+     * @return Validation if the client may still be sent responses, false once the channel closed
+     */
+    boolean awaitBacklogBelow( final int limit ) throws InterruptedException {
+        
+        backlogLock.lock();
+        try {
+            while (!isClosed && backlog.get() >= limit) {
+                backlogShrunk.await();
+            }
+            return !isClosed;
+        } finally {
+            backlogLock.unlock();
+        }
+    }
+    
+    /**
+     * @return The number of responses queued and not yet written
+     */
+    int getBacklog() {
+        
+        return backlog.get();
+    }
+    
+    private void enqueue( final ByteBuffer buffer ) {
+        
+        backlog.incrementAndGet();
+        outbound.add(buffer);
+    }
+    
+    private void signalBacklog() {
+        
+        backlogLock.lock();
+        try {
+            backlogShrunk.signalAll();
+        } finally {
+            backlogLock.unlock();
+        }
+    }
+    
+    /**
+     * Closes the channel once every queued response has been written.
+     */
+    void closeAfterFlush() {
+        
+        shouldCloseAfterFlush = true;
+        eventLoop.requestWrite(this);
+    }
+    
+    /**
+     * @return The address the client connected to, as reported when it connected
+     */
+    String getAddress() {
+        
+        return address;
+    }
+    
+    /**
+     * @return Validation if the channel has been closed
+     */
+    boolean isClosed() {
+        
+        return isClosed;
+    }
+    
+    void register( final Selector selector ) throws IOException {
+        
+        channel.configureBlocking(false);
+        key = channel.register(selector, SelectionKey.OP_READ, this);
+    }
+    
+    void enableWrite() {
+        
+        if (key != null && key.isValid()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+    }
+    
+    void onReadable() throws IOException {
+        
+        if (channel.read(readBuffer) < 0) {
+            disconnect();
+            return;
+        }
+        
+        readBuffer.flip();
+        try {
+            if (encoding == null && !readEncoding()) {
+                return;
+            }
+            if (encoding == Request.Encoding.BINARY) {
+                Request.Builder builder = new Request.Builder();
+                while (BinaryCodec.decode(readBuffer, builder)) {
+                    final Request request = builder.build();
+                    if (request != null) {
+                        clientConnection.processRequest(request);
+                    }
+                    builder = new Request.Builder();
+                }
+            } else {
+                if (!hasReadHeader) {
+                    hasReadHeader = ObjectStreamFrames.readHeader(readBuffer);
+                }
+                String jsonInput;
+                while (hasReadHeader && ( jsonInput = ObjectStreamFrames.decodeString(readBuffer) ) != null) {
+                    final Request request = new Request.Builder().fromJSONString(jsonInput).build();
+                    if (request != null) {
+                        clientConnection.processRequest(request);
+                    }
+                }
+            }
+        } finally {
+            readBuffer.compact();
+        }
+        
+        if (!readBuffer.hasRemaining()) {
+            if (readBuffer.capacity() >= MAX_READ_BUFFER_BYTES) {
+                throw new StreamCorruptedException("Frame longer than " + BinaryCodec.MAX_FRAME_BYTES + " bytes");
+            }
+            final ByteBuffer larger = ByteBuffer.allocate(Math.min(readBuffer.capacity() * 2, MAX_READ_BUFFER_BYTES));
+            readBuffer.flip();
+            larger.put(readBuffer);
+            readBuffer = larger;
+        }
+    }
+    
+    /**
+     * Picks the encoding from the client's first bytes and queues the client ID in it.
+     *
+     * @return True once the encoding is known, false if more bytes are needed
+     */
+    private boolean readEncoding() throws IOException {
+        
+        if (!readBuffer.hasRemaining()) {
+            return false;
+        }
+        if (readBuffer.get(readBuffer.position()) != BinaryCodec.PREAMBLE) {
+            enqueue(ObjectStreamFrames.handshake(clientID));
+            encoding = Request.Encoding.JSON;
+        } else if (readBuffer.remaining() < 2) {
+            return false;
+        } else {
+            readBuffer.get();
+            if (readBuffer.get() != BinaryCodec.VERSION) {
+                throw new StreamCorruptedException("Unsupported binary protocol version");
+            }
+            final ByteBuffer handshake = ByteBuffer.allocate(Long.BYTES);
+            handshake.putLong(clientID).flip();
+            enqueue(handshake);
+            encoding = Request.Encoding.BINARY;
+        }
+        enableWrite();
+        return true;
+    }
+    
+    /**
+     * Writes every queued response with one gathering write, so a burst of responses costs one
+     * syscall rather than one each.
+     */
+    void onWritable() throws IOException {
+        
+        int count = 0;
+        for (ByteBuffer buffer : outbound) {
+            if (count == gatherBuffers.length) {
+                gatherBuffers = Arrays.copyOf(gatherBuffers, count * 2);
+            }
+            gatherBuffers[count++] = buffer;
+        }
+        if (count > 0) {
+            channel.write(gatherBuffers, 0, count);
+            Arrays.fill(gatherBuffers, 0, count, null);
+        }
+        
+        ByteBuffer head;
+        int finished = 0;
+        while ((head = outbound.peek()) != null && !head.hasRemaining()) {
+            outbound.poll();
+            ++finished;
+        }
+        if (finished > 0) {
+            backlog.addAndGet(-finished);
+            signalBacklog();
+        }
+        if (head != null) {
+            return;
+        }
+        
+        if (shouldCloseAfterFlush) {
+            close();
+        } else {
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+    
+    /**
+     * Closes the channel immediately and has the {@link Server} remove the client, as when a
+     * blocking client disconnects. Used when the client goes away or its input cannot be read.
+     */
+    void disconnect() {
+        
+        if (isClosed) {
+            return;
+        }
+        close();
+        if (clientConnection != null) {
+            clientConnection.onChannelClosed();
+        }
+    }
+    
+    /**
+     * Closes the channel immediately, dropping any queued responses.
+     */
+    void close() {
+        
+        if (isClosed) {
+            return;
+        }
+        isClosed = true;
+        outbound.clear();
+        signalBacklog();
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            //Already closed
+        }
+    }
+}
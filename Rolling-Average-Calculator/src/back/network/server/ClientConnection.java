@@ -1,32 +1,84 @@
 package back.network.server;
 
+import back.aggregate.DistinctSketch;
+import back.aggregate.Ewma;
+import back.aggregate.GlobalAggregates;
+import back.aggregate.QuantileSketch;
+import back.aggregate.RollingWindow;
+import back.aggregate.Rollups;
+import back.aggregate.RunningStats;
+import back.aggregate.SketchSet;
+import back.aggregate.TopValues;
+import back.storage.IntHistory;
+import back.storage.SegmentStore;
+import back.storage.SubmissionLog;
+import utility.request.BinaryCodec;
 import utility.request.Request;
 import utility.request.RequestFactory;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.net.Socket;
 import java.net.SocketException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class ClientConnection implements Runnable {
     
     
     private static final int TIMEOUT_DELAY_MS = 2000;
+    private static final int MAX_BACKLOG_TO_PUSH = 8;
     private Socket clientSocket = null;
     private long clientID;
+    private final String address;
     private ObjectOutputStream out;
     private ObjectInputStream in;
+    private DataOutputStream binaryOut;
+    private DataInputStream binaryIn;
+    private BinaryCodec binaryCodec;
+    private Request.Encoding encoding = Request.Encoding.JSON;
     private volatile boolean isStopped = false;
     private ClientConnectionHandler serverCCHandler;
+    private GlobalAggregates globalAggregates;
     private Request request;
     private Thread clientConnectionThread;
+    private ChannelSession channelSession;
+    private boolean readOnCallingThread = false;
+    private OutboundQueue outboundQueue = new OutboundQueue(new ResponseWriter());
+    private Executor streamExecutor = null;
+    private Executor responseWriters = Runnable::run;
+    //A lock rather than a monitor, so a virtual thread writing the disconnect does not pin its carrier
+    private final ReentrantLock terminateLock = new ReentrantLock();
+    private final Condition terminateWait = terminateLock.newCondition();
     
-    private List<Integer> clientSubmission = new ArrayList<>();
-    private int clientSum = 0;
+    private IntHistory clientSubmission = new IntHistory();
+    private RollingWindow rollingWindow;
+    private Ewma ewma;
+    private SubmissionLog submissionLog;
+    private Lock snapshotLock = null;
+    private final Rollups rollups = new Rollups();
+    private final QuantileSketch quantileSketch = new QuantileSketch();
+    private final RunningStats runningStats = new RunningStats();
+    private final DistinctSketch distinctSketch = new DistinctSketch();
+    private final TopValues topValues = new TopValues();
+    private final Map<Long, Subscription> subscriptions = new ConcurrentHashMap<>();
     
     
     //TODO Create a handler to communicate between Server and ClientConnection
@@ -40,6 +92,22 @@ public class ClientConnection implements Runnable {
         
         this.clientSocket = clientSocket;
         this.clientID = clientID;
+        this.address = clientSocket.getLocalAddress().toString();
+    }
+    
+    /**
+     * Creates new ClientConnection served by a non-blocking {@link ChannelSession}. Requests are
+     * handed to {@link #processRequest(Request)} by the session's {@link EventLoop}, so no thread
+     * is dedicated to this connection.
+     *
+     * @param channelSession The session that owns the client channel
+     * @param clientID       The ID assigned to the client
+     */
+    ClientConnection( ChannelSession channelSession, long clientID ) {
+        
+        this.channelSession = channelSession;
+        this.clientID = clientID;
+        this.address = channelSession.getAddress();
     }
     
     /**
@@ -52,6 +120,120 @@ public class ClientConnection implements Runnable {
         serverCCHandler = handler;
     }
     
+    /**
+     * Link to the server-wide aggregates that every submission from this client is added to
+     *
+     * @param globalAggregates The aggregates shared by every ClientConnection
+     */
+    public void setGlobalAggregates( final GlobalAggregates globalAggregates ) {
+        
+        this.globalAggregates = globalAggregates;
+    }
+    
+    /**
+     * Give this client its own window over its most recent submissions
+     *
+     * @param rollingWindow An empty window, not shared with any other client
+     */
+    public void setRollingWindow( final RollingWindow rollingWindow ) {
+        
+        this.rollingWindow = rollingWindow;
+    }
+    
+    /**
+     * Give this client its own exponentially weighted average
+     *
+     * @param ewma An empty average, not shared with any other client
+     */
+    public void setEwma( final Ewma ewma ) {
+        
+        this.ewma = ewma;
+    }
+    
+    /**
+     * Keep this client's history in memory-mapped segments rather than on the heap. Must be set
+     * before the client submits anything.
+     *
+     * @param historyStore The store shared by every ClientConnection
+     */
+    public void setHistoryStore( final SegmentStore historyStore ) {
+        
+        this.clientSubmission = new IntHistory(historyStore);
+    }
+    
+    /**
+     * Write every submission from this client to a log as well, so the server can rebuild its
+     * aggregates after a restart. SUBMIT_BATCH is then only acknowledged once the batch has been
+     * committed to the log.
+     *
+     * @param submissionLog The log shared by every ClientConnection
+     */
+    public void setSubmissionLog( final SubmissionLog submissionLog ) {
+        
+        this.submissionLog = submissionLog;
+    }
+    
+    /**
+     * Hold this lock while adding each submission to the log and the aggregates, so that a
+     * snapshot taken under the matching write lock sees every submission either in full or not
+     * at all
+     *
+     * @param snapshotLock The read side of a lock shared by every ClientConnection
+     */
+    public void setSnapshotLock( final Lock snapshotLock ) {
+        
+        this.snapshotLock = snapshotLock;
+    }
+    
+    /**
+     * Choose whether {@link #run()} reads requests on the thread that calls it instead of starting
+     * a dedicated reader thread. Meant for callers that already run each connection on its own
+     * cheap thread, such as a virtual thread.
+     *
+     * @param readOnCallingThread True to read on the calling thread
+     */
+    public void setReadOnCallingThread( final boolean readOnCallingThread ) {
+        
+        this.readOnCallingThread = readOnCallingThread;
+    }
+    
+    /**
+     * Lets responses wait up to the given delay so that more of them can be written and flushed
+     * together. Without it, responses are written as soon as they are made, though responses made
+     * while another write is in progress are still coalesced with it.
+     *
+     * @param scheduler      Runs the delayed writes
+     * @param maxDelayMicros The longest a response may wait before it is written
+     */
+    public void setMaxResponseDelay( final ScheduledExecutorService scheduler, final long maxDelayMicros ) {
+        
+        this.outboundQueue = new OutboundQueue(new ResponseWriter(), scheduler, maxDelayMicros);
+    }
+    
+    /**
+     * Write responses that are made on threads which must not wait on this client's socket, such
+     * as pushes and acknowledgements of logged batches, on the given executor. Without it they
+     * are written on the thread that made them.
+     *
+     * @param responseWriters Writes those responses, shared by every ClientConnection
+     */
+    public void setResponseWriters( final Executor responseWriters ) {
+        
+        this.responseWriters = responseWriters;
+    }
+    
+    /**
+     * Produce streamed responses on the given executor instead of the thread that read the
+     * request. Needed by a {@link ChannelSession}, whose requests are read on an {@link EventLoop}
+     * that must not wait for the client to take one chunk before the next is made.
+     *
+     * @param streamExecutor Runs each streamed response
+     */
+    public void setStreamExecutor( final Executor streamExecutor ) {
+        
+        this.streamExecutor = streamExecutor;
+    }
+    
     /**
      * Creates IO channel in the sockets to allow communication between
      * clients and the server
@@ -62,17 +244,42 @@ public class ClientConnection implements Runnable {
             Thread.sleep(200);
             //Initialing the inputs and outputs
             
-            this.out = new ObjectOutputStream(this.clientSocket.getOutputStream());
-            
-            //Sending ID to client
-            this.out.writeLong(clientID);
-            this.out.flush();
-            
-            this.in = new ObjectInputStream(this.clientSocket.getInputStream());
+            //The client's first byte tells which encoding it speaks
+            InputStream socketIn = new BufferedInputStream(this.clientSocket.getInputStream());
+            socketIn.mark(1);
+            if (socketIn.read() == BinaryCodec.PREAMBLE) {
+                if (socketIn.read() != BinaryCodec.VERSION) {
+                    this.clientSocket.close();
+                    return;
+                }
+                this.encoding = Request.Encoding.BINARY;
+                this.binaryCodec = new BinaryCodec();
+                this.binaryOut = new DataOutputStream(new BufferedOutputStream(this.clientSocket.getOutputStream()));
+                
+                //Sending ID to client
+                this.binaryOut.writeLong(clientID);
+                this.binaryOut.flush();
+                
+                this.binaryIn = new DataInputStream(socketIn);
+            } else {
+                socketIn.reset();
+                this.out = new ObjectOutputStream(new BufferedOutputStream(this.clientSocket.getOutputStream()));
+                
+                //Sending ID to client
+                this.out.writeLong(clientID);
+                this.out.flush();
+                
+                this.in = new ObjectInputStream(socketIn);
+            }
             this.clientSocket.setSoTimeout(TIMEOUT_DELAY_MS);
             
-            clientConnectionThread = new Thread(this::requestFromServer);
-            clientConnectionThread.start();
+            if (readOnCallingThread) {
+                clientConnectionThread = Thread.currentThread();
+                requestFromServer();
+            } else {
+                clientConnectionThread = new Thread(this::requestFromServer);
+                clientConnectionThread.start();
+            }
             
         } catch (InterruptedException e) {
             // We've been interrupted: no more messages.
@@ -85,36 +292,11 @@ public class ClientConnection implements Runnable {
     
     private void requestFromServer() {
         
-        String jsonInput;
-        
         while (!isStopped) {
             try {
-                jsonInput = (String) this.in.readObject();
-                if (jsonInput != null) {
-                    System.out.println(jsonInput);
-                    System.out.flush();
-                    Request request = new Request.Builder().fromJSONString(jsonInput).build();
-                    
-                    switch (request.getTopic()) {
-                        case SUBMIT:
-                            processSubmit(request);
-                            break;
-                        case AVERAGE:
-                            processAverage(request);
-                            break;
-                        case COUNT:
-                            processCount(request);
-                            break;
-                        case HISTORY:
-                            processHistory(request);
-                            break;
-                        case USERS:
-                            serverCCHandler.onRequestReceived(request);
-                            break;
-                        case DISCONNECT:
-                            serverCCHandler.onRequestReceived(request);
-                            break;
-                    }
+                Request request = readRequest();
+                if (request != null) {
+                    processRequest(request);
                 }
             } catch (EOFException e) {
                 //TODO Figure out how to handle this
@@ -126,44 +308,255 @@ public class ClientConnection implements Runnable {
         }
     }
     
-    private void processSubmit( Request request ) {
+    private Request readRequest() throws IOException, ClassNotFoundException {
         
-        clientSubmission.add(request.getAmount());
-        clientSum += request.getAmount();
+        if (encoding == Request.Encoding.BINARY) {
+            return binaryCodec.read(this.binaryIn);
+        }
         
-        serverCCHandler.onRequestReceived(request);
+        String jsonInput = (String) this.in.readObject();
+        if (jsonInput == null) {
+            return null;
+        }
+        System.out.println(jsonInput);
+        System.out.flush();
+        return new Request.Builder().fromJSONString(jsonInput).build();
     }
     
-    private void processAverage( Request request ) {
+    /**
+     * Dispatches a request from the client to the matching handler
+     *
+     * @param request A request that was read from the client
+     */
+    void processRequest( Request request ) {
         
-        switch (request.getRange()) {
-            case ALL:
+        //Requests are answered for the client on this connection, whatever ID they claim
+        if (request.getId() != clientID) {
+            request = new Request.Builder().from(request).id(clientID).build();
+        }
+        switch (request.getTopic()) {
+            case SUBMIT:
+                processSubmit(request);
+                break;
+            case SUBMIT_BATCH:
+                processSubmitBatch(request);
+                break;
+            case AVERAGE:
+            case ROLLING_AVERAGE:
+            case EWMA:
+            case STATS:
+            case PERCENTILE:
+            case DISTINCT:
+            case TOPVALUES:
+            case COUNT:
+                processQuery(request);
+                break;
+            case HISTORY:
+                processHistory(request);
+                break;
+            case SUBSCRIBE:
+                processSubscribe(request);
+                break;
+            case UNSUBSCRIBE:
+                processUnsubscribe(request);
+                break;
+            case USERS:
                 serverCCHandler.onRequestReceived(request);
                 break;
-            case SELF:
-                int average = 0;
-                if (clientSubmission.size() > 0) {
-                    average = clientSum / clientSubmission.size();
-                }
-                Request response = RequestFactory.serverAverageResponse(Request.Response.OK, Request.Range.SELF, average);
-                respondToClient(response);
+            case DISCONNECT:
+                serverCCHandler.onRequestReceived(request);
                 break;
         }
     }
     
-    private void processCount( Request request ) {
+    private void processSubmit( Request request ) {
+        
+        long now = System.currentTimeMillis();
+        lockForSnapshot();
+        try {
+            if (submissionLog != null) {
+                submissionLog.append(clientID, now, request.getAmount());
+            }
+            clientSubmission.add(request.getAmount(), now);
+            rollingWindow.add(request.getAmount(), now);
+            ewma.add(request.getAmount(), now);
+            rollups.add(request.getAmount(), now);
+            quantileSketch.add(request.getAmount());
+            runningStats.add(request.getAmount());
+            distinctSketch.add(request.getAmount());
+            topValues.add(request.getAmount());
+            globalAggregates.add(request.getAmount(), now);
+        } finally {
+            unlockForSnapshot();
+        }
+    }
+    
+    private void processSubmitBatch( Request request ) {
+        
+        List<Integer> entries = request.getEntries();
+        if (entries == null) {
+            respondToClient(RequestFactory.serverSubmitBatchResponse(Request.Response.ERROR, 0).inReplyTo(request));
+            return;
+        }
+        
+        long batchSum = 0;
+        for (int i = 0; i < entries.size(); ++i) {
+            batchSum += entries.get(i);
+        }
+        long now = System.currentTimeMillis();
+        lockForSnapshot();
+        try {
+            if (submissionLog != null) {
+                submissionLog.append(clientID, now, entries);
+            }
+            clientSubmission.addAll(entries, now);
+            rollingWindow.addAll(entries, now);
+            ewma.addAll(entries, now);
+            rollups.addAll(entries, now);
+            quantileSketch.addAll(entries);
+            runningStats.addAll(entries);
+            distinctSketch.addAll(entries);
+            topValues.addAll(entries);
+            globalAggregates.addAll(entries, batchSum, now);
+        } finally {
+            unlockForSnapshot();
+        }
+        
+        if (submissionLog == null) {
+            respondToClient(RequestFactory.serverSubmitBatchResponse(Request.Response.OK, entries.size()).inReplyTo(request));
+            return;
+        }
+        //Acknowledged once the group commit holding the batch is done, off the log's writer thread
+        submissionLog.commit().whenCompleteAsync(( committed, failure ) -> {
+            Request.Response result = failure == null ? Request.Response.OK : Request.Response.ERROR;
+            respondToClient(RequestFactory.serverSubmitBatchResponse(result, entries.size()).inReplyTo(request));
+        }, responseWriters);
+    }
+    
+    private void lockForSnapshot() {
+        
+        if (snapshotLock != null) {
+            snapshotLock.lock();
+        }
+    }
+    
+    private void unlockForSnapshot() {
+        
+        if (snapshotLock != null) {
+            snapshotLock.unlock();
+        }
+    }
+    
+    private void processQuery( Request request ) {
         
         switch (request.getRange()) {
             case ALL:
                 serverCCHandler.onRequestReceived(request);
                 break;
             case SELF:
-                Request response = RequestFactory.serverCountResponse(Request.Response.OK, Request.Range.SELF, clientSubmission.size());
-                respondToClient(response);
+                respondToClient(answerForSelf(request).inReplyTo(request));
                 break;
         }
     }
     
+    /**
+     * @param query A query on one of the aggregates kept for this client alone
+     *
+     * @return The answer from this client's values, not yet correlated with the query, or null if
+     * the topic is not one of them
+     */
+    private Request answerForSelf( Request query ) {
+        
+        switch (query.getTopic()) {
+            case AVERAGE:
+                int average = 0;
+                if (query.hasTimeRange()) {
+                    average = TimeRanges.summarize(query, Collections.singletonList(clientSubmission)).getAverage();
+                } else if (query.hasWindow()) {
+                    average = rollups.summarize(query.getWindow(), System.currentTimeMillis()).getAverage();
+                } else {
+                    //Read under the history's lock, so a push from another thread sees a whole submission
+                    average = clientSubmission.getAppendedAverage();
+                }
+                return RequestFactory.serverAverageResponse(Request.Response.OK, Request.Range.SELF, average);
+            case ROLLING_AVERAGE:
+                return RequestFactory.serverRollingAverageResponse(Request.Response.OK, Request.Range.SELF, rollingWindow.getAverage(System.currentTimeMillis()));
+            case EWMA:
+                return RequestFactory.serverEwmaResponse(Request.Response.OK, Request.Range.SELF, ewma.getAverage());
+            case STATS:
+                return statsResponse(Request.Range.SELF, runningStats);
+            case PERCENTILE:
+                return percentileResponse(query, quantileSketch);
+            case DISTINCT:
+                return RequestFactory.serverDistinctResponse(Request.Response.OK, Request.Range.SELF, distinctSketch.getEstimate());
+            case TOPVALUES:
+                return topValuesResponse(query, topValues);
+            case COUNT:
+                long count = clientSubmission.getAppendedCount();
+                if (query.hasTimeRange()) {
+                    count = TimeRanges.count(query, Collections.singletonList(clientSubmission));
+                }
+                return RequestFactory.serverCountResponse(Request.Response.OK, Request.Range.SELF, (int) Math.min(Integer.MAX_VALUE, count));
+            default:
+                return null;
+        }
+    }
+    
+    /**
+     * @param range The range the stats cover
+     * @param stats The stats to answer from
+     *
+     * @return A STATS response holding every statistic
+     */
+    static Request statsResponse( Request.Range range, RunningStats stats ) {
+        
+        synchronized (stats) {
+            return RequestFactory.serverStatsResponse(Request.Response.OK, range, stats.getCount(), stats.getMean(), stats.getVariance(), stats.getMin(), stats.getMax());
+        }
+    }
+    
+    /**
+     * @param request A PERCENTILE request, which asks for the default quantiles if it names none
+     * @param sketch  The sketch to answer from
+     *
+     * @return The estimates for the requested quantiles, or an ERROR response if any quantile is
+     * outside 0 to 1
+     */
+    static Request percentileResponse( Request request, QuantileSketch sketch ) {
+        
+        List<Double> quantiles = request.getValues();
+        if (quantiles == null || quantiles.isEmpty()) {
+            quantiles = QuantileSketch.DEFAULT_QUANTILES;
+        }
+        if (!QuantileSketch.isValid(quantiles)) {
+            return RequestFactory.serverPercentileResponse(Request.Response.ERROR, request.getRange(), quantiles, null);
+        }
+        return RequestFactory.serverPercentileResponse(Request.Response.OK, request.getRange(), quantiles, sketch.getQuantiles(quantiles));
+    }
+    
+    /**
+     * @param request A TOPVALUES request, whose limit is how many values to return
+     * @param top     The frequent values to answer from
+     *
+     * @return The most frequent values with their estimated counts, or an ERROR response if more
+     * than {@link TopValues#CAPACITY} are asked for
+     */
+    static Request topValuesResponse( Request request, TopValues top ) {
+        
+        int count = request.hasLimit() ? request.getLimit() : TopValues.DEFAULT_COUNT;
+        if (count < 0 || count > TopValues.CAPACITY) {
+            return RequestFactory.serverTopValuesResponse(Request.Response.ERROR, request.getRange(), null, null);
+        }
+        synchronized (top) {
+            List<Integer> values = top.getTopValues(count);
+            List<Double> counts = new ArrayList<>(values.size());
+            for (int i = 0; i < values.size(); ++i) {
+                counts.add((double) top.getEstimate(values.get(i)));
+            }
+            return RequestFactory.serverTopValuesResponse(Request.Response.OK, request.getRange(), values, counts);
+        }
+    }
+    
     private void processHistory( Request request ) {
         
         switch (request.getRange()) {
@@ -171,42 +564,297 @@ public class ClientConnection implements Runnable {
                 serverCCHandler.onRequestReceived(request);
                 break;
             case SELF:
-                Request response = RequestFactory.serverHistoryResponse(Request.Response.OK, Request.Range.SELF, clientSubmission);
-                respondToClient(response);
+                HistoryPages.respond(this, request, Collections.singletonList(clientSubmission));
                 break;
         }
     }
     
+    private void processSubscribe( Request request ) {
+        
+        if (!request.hasCorrelation() || request.getRange() == null || !isSubscribable(request.getSubject())) {
+            respondToClient(RequestFactory.serverSubscribeResponse(Request.Response.ERROR).inReplyTo(request));
+            return;
+        }
+        
+        //The pushes are answers to this query, correlated with the SUBSCRIBE request
+        Request query = new Request.Builder().from(request).topic(request.getSubject()).subject(null).id(clientID).build();
+        subscriptions.put(request.getCorrelation(), new Subscription(query));
+        respondToClient(RequestFactory.serverSubscribeResponse(Request.Response.OK).inReplyTo(request));
+    }
+    
+    private void processUnsubscribe( Request request ) {
+        
+        Request.Response result = Request.Response.ERROR;
+        if (request.hasCorrelation() && subscriptions.remove(request.getCorrelation()) != null) {
+            result = Request.Response.OK;
+        }
+        respondToClient(RequestFactory.serverUnsubscribeResponse(result).inReplyTo(request));
+    }
+    
+    private static boolean isSubscribable( Request.Topic subject ) {
+        
+        if (subject == null) {
+            return false;
+        }
+        switch (subject) {
+            case AVERAGE:
+            case ROLLING_AVERAGE:
+            case COUNT:
+            case EWMA:
+            case STATS:
+            case PERCENTILE:
+            case DISTINCT:
+            case TOPVALUES:
+                return true;
+            default:
+                return false;
+        }
+    }
+    
+    /**
+     * Answers every subscription again if values it covers have been submitted since its last
+     * push. Called by the {@link Server} once per push interval, so any number of submissions in
+     * between lead to at most one push each. The pushes are queued without being written on the
+     * calling thread, and a client with more than {@link #MAX_BACKLOG_TO_PUSH} responses still
+     * waiting to be written is skipped until a later push, so a slow client holds up no one
+     * else's pushes.
+     *
+     * @param globalCount   The number of values submitted by every client so far
+     * @param answersForAll The answers to queries over every client made so far this push, shared
+     *                      by every connection so that each is only made once
+     */
+    void pushSubscriptions( final long globalCount, final Map<String, Request> answersForAll ) {
+        
+        if (subscriptions.isEmpty() || getBacklog() > MAX_BACKLOG_TO_PUSH) {
+            return;
+        }
+        for (Subscription subscription : subscriptions.values()) {
+            boolean isAll = subscription.query.getRange() == Request.Range.ALL;
+            long version = isAll ? globalCount : clientSubmission.getAppendedCount();
+            if (version == subscription.pushedVersion) {
+                continue;
+            }
+            subscription.pushedVersion = version;
+            Request answer;
+            if (isAll) {
+                answer = answersForAll.computeIfAbsent(subscription.sharedKey, key -> serverCCHandler.answerForAll(subscription.query));
+            } else {
+                answer = answerForSelf(subscription.query);
+            }
+            if (answer == null) {
+                continue;
+            }
+            if (channelSession != null) {
+                channelSession.send(answer.inReplyTo(subscription.query));
+            } else {
+                outboundQueue.addLater(answer.inReplyTo(subscription.query), responseWriters);
+            }
+        }
+    }
+    
+    /**
+     * @return The number of responses queued for the client and not yet written
+     */
+    private int getBacklog() {
+        
+        return channelSession != null ? channelSession.getBacklog() : outboundQueue.getBacklog();
+    }
+    
+    /**
+     * Adds this client's quantile sketch to one covering several clients
+     *
+     * @param target The combined sketch
+     */
+    public void mergeQuantilesInto( final QuantileSketch target ) {
+        
+        quantileSketch.mergeInto(target);
+    }
+    
+    /**
+     * Adds this client's running stats to a set covering several clients
+     *
+     * @param target The combined stats
+     */
+    public void mergeStatsInto( final RunningStats target ) {
+        
+        runningStats.mergeInto(target);
+    }
+    
+    /**
+     * Adds this client's distinct value sketch to one covering several clients
+     *
+     * @param target The combined sketch
+     */
+    public void mergeDistinctInto( final DistinctSketch target ) {
+        
+        distinctSketch.mergeInto(target);
+    }
+    
+    /**
+     * Adds this client's frequent values to a set covering several clients
+     *
+     * @param target The combined frequent values
+     */
+    public void mergeTopValuesInto( final TopValues target ) {
+        
+        topValues.mergeInto(target);
+    }
+    
+    /**
+     * Adds every sketch of this client to a set covering several clients
+     *
+     * @param target The combined sketches
+     */
+    public void mergeSketchesInto( final SketchSet target ) {
+        
+        runningStats.mergeInto(target.getRunningStats());
+        quantileSketch.mergeInto(target.getQuantileSketch());
+        distinctSketch.mergeInto(target.getDistinctSketch());
+        topValues.mergeInto(target.getTopValues());
+    }
+    
+    /**
+     * @return Every value this client has submitted with its arrival time. Safe to read while the
+     * client keeps submitting.
+     */
+    public IntHistory getHistory() {
+        
+        return clientSubmission;
+    }
+    
     /**
-     * Writes the response {@link Request} to outputstream in UTF to send to the client
+     * Queues the response {@link Request} to be written to the client. Responses queued close
+     * together are written and flushed as one batch.
      *
      * @param response A response that is made by the server to appease a request
      */
     public void respondToClient( Request response ) {
         
+        if (channelSession != null) {
+            channelSession.send(response);
+            return;
+        }
+        outboundQueue.add(response);
+    }
+    
+    /**
+     * Runs a task that sends a stream of responses, on the stream executor if one was set
+     *
+     * @param stream Sends the responses, waiting on {@link #awaitBacklogBelow(int)} between them
+     */
+    void runStream( final Runnable stream ) {
+        
+        if (streamExecutor == null) {
+            stream.run();
+            return;
+        }
         try {
-            this.out.writeObject(response.toJSONString());
+            streamExecutor.execute(stream);
+        } catch (RejectedExecutionException e) {
+            //The Server is shutting down
+        }
+    }
+    
+    /**
+     * Waits until fewer than the given number of responses are queued and not yet written to the
+     * client, so that a long stream of responses goes no faster than the client takes them
+     *
+     * @param limit The most responses that may still be queued
+     *
+     * @return Validation if the client may still be sent responses
+     */
+    boolean awaitBacklogBelow( final int limit ) throws InterruptedException {
+        
+        if (channelSession != null) {
+            return channelSession.awaitBacklogBelow(limit);
+        }
+        return !isStopped && outboundQueue.awaitBacklogBelow(limit);
+    }
+    
+    private void writeResponses( List<Request> responses ) throws IOException {
+        
+        if (encoding == Request.Encoding.BINARY) {
+            for (int i = 0; i < responses.size(); ++i) {
+                binaryCodec.write(this.binaryOut, responses.get(i));
+            }
+            this.binaryOut.flush();
+        } else {
+            for (int i = 0; i < responses.size(); ++i) {
+                this.out.writeObject(responses.get(i).toJSONString());
+            }
             this.out.flush();
-        } catch (IOException e) {
-            //TODO Handler ("Could not write requestToServer");
-            e.printStackTrace();
         }
     }
     
+    /**
+     * Writes the blocking connection's responses, and hands the {@link Server} a failed write so
+     * the client is dropped instead of having more responses queued to a dead socket
+     */
+    private final class ResponseWriter implements OutboundQueue.Writer {
+        
+        @Override
+        public void write( final List<Request> responses ) throws IOException {
+            
+            writeResponses(responses);
+        }
+        
+        @Override
+        public void onWriteFailed( final IOException e ) {
+            
+            if (!isStopped) {
+                serverCCHandler.onConnectionBroken(clientID, "Could not write responses: " + e.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * Called by the {@link ChannelSession} once its channel has closed without the client sending
+     * DISCONNECT, so the {@link Server} removes the client just as if it had
+     */
+    void onChannelClosed() {
+        
+        if (!isStopped) {
+            serverCCHandler.onRequestReceived(RequestFactory.clientDisconnect(clientID));
+        }
+    }
+    
+    /**
+     * @return The address the client connected to, as reported when it connected
+     */
+    public String getAddress() {
+        
+        return address;
+    }
+    
     /**
      * Attempts to send a disconnect from server response, only when the socket connection is open.
      * Otherwise, interrupt the thread and close the inputs and outputs and the socket.
      *
      * @return Validation if termination was success
      */
-    public synchronized boolean terminateConnection() {
+    public boolean terminateConnection() {
         
+        terminateLock.lock();
+        try {
+            return terminateLocked();
+        } finally {
+            terminateLock.unlock();
+        }
+    }
+    
+    private boolean terminateLocked() {
+        
+        if (channelSession != null) {
+            channelSession.send(RequestFactory.serverDisconnect());
+            channelSession.closeAfterFlush();
+            this.isStopped = true;
+            return this.isStopped;
+        }
         try {
             try {
                 Request disconnectClient = RequestFactory.serverDisconnect();
-                this.out.writeObject(disconnectClient.toJSONString());
-                this.out.flush();
-                this.wait(500);
+                outboundQueue.writeNow(disconnectClient);
+                terminateWait.await(500, TimeUnit.MILLISECONDS);
             } catch (SocketException e) {
                 //TODO Handler
                 //Already closed
@@ -216,14 +864,19 @@ public class ClientConnection implements Runnable {
             
             this.clientConnectionThread.interrupt();
             try {
-                this.wait(2000);
+                terminateWait.await(2000, TimeUnit.MILLISECONDS);
             } catch (InterruptedException e) {
                 //TODO Make handler for this
                 //Wait for interrupt
             }
             
-            this.in.close();
-            this.out.close();
+            if (encoding == Request.Encoding.BINARY) {
+                this.binaryIn.close();
+                this.binaryOut.close();
+            } else {
+                this.in.close();
+                this.out.close();
+            }
             
             this.isStopped = true;
             
@@ -238,6 +891,24 @@ public class ClientConnection implements Runnable {
         return this.isStopped;
     }
     
+    /**
+     * A query the client subscribed to, and how many values had been submitted when it was last
+     * pushed
+     */
+    private static class Subscription {
+        
+        private final Request query;
+        //The same for every client's subscription to the same query, whatever its ID and correlation
+        private final String sharedKey;
+        private long pushedVersion = -1;
+        
+        private Subscription( final Request query ) {
+            
+            this.query = query;
+            this.sharedKey = new Request.Builder().from(query).id(0).correlation(0).build().toJSONString();
+        }
+    }
+    
     /**
      * The communication interface for the ClientConnection to the {@link Server}.
      */
@@ -248,5 +919,20 @@ public class ClientConnection implements Runnable {
          * The server must deal with the request and send a response back
          */
         void onRequestReceived( Request request );
+        
+        /**
+         * Callback to the {@link Server} to answer a query over every client's data without
+         * sending the answer, as for a push to a subscription
+         *
+         * @return The answer, not yet correlated with the query, or null if the topic is not one
+         * of the aggregates kept over every client
+         */
+        Request answerForAll( Request query );
+        
+        /**
+         * Callback to the {@link Server} to inform that the client can no longer be written to.
+         * May be called from any thread that wrote to the client, so the server must not block it.
+         */
+        void onConnectionBroken( long clientID, String reason );
     }
 }
@@ -0,0 +1,84 @@
+package back.network.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The connected clients, keyed by the sequential IDs the {@link Server} hands out. The accept
+ * loop registers clients while request handlers, broadcasts and shutdown look them up, iterate
+ * and remove them on other threads, so every operation is thread-safe and none takes a lock
+ * shared by all clients. A separate live counter answers how many clients are connected in
+ * constant time.
+ */
+class ClientRegistry {
+    
+    private final Map<Long, ClientConnection> connections = new ConcurrentHashMap<>();
+    private final AtomicInteger liveCount = new AtomicInteger(0);
+    
+    /**
+     * @param clientID         The ID assigned to the client
+     * @param clientConnection The connection serving the client
+     */
+    void register( final long clientID, final ClientConnection clientConnection ) {
+        
+        if (connections.put(clientID, clientConnection) == null) {
+            liveCount.incrementAndGet();
+        }
+    }
+    
+    /**
+     * @return The connection of the client, or null if it is not connected
+     */
+    ClientConnection get( final long clientID ) {
+        
+        return connections.get(clientID);
+    }
+    
+    /**
+     * @return The connection that was removed, or null if the client was not connected
+     */
+    ClientConnection remove( final long clientID ) {
+        
+        final ClientConnection clientConnection = connections.remove(clientID);
+        if (clientConnection != null) {
+            liveCount.decrementAndGet();
+        }
+        return clientConnection;
+    }
+    
+    /**
+     * @return The number of connected clients
+     */
+    int size() {
+        
+        return liveCount.get();
+    }
+    
+    /**
+     * @return A live view of the connections that may be iterated while clients connect and
+     * disconnect. Iteration sees every client connected throughout and may or may not see the
+     * others.
+     */
+    Collection<ClientConnection> connections() {
+        
+        return connections.values();
+    }
+    
+    /**
+     * @return A snapshot of the connections, oldest client first
+     */
+    List<ClientConnection> inIdOrder() {
+        
+        final List<Map.Entry<Long, ClientConnection>> entries = new ArrayList<>(connections.entrySet());
+        entries.sort(Map.Entry.comparingByKey());
+        final List<ClientConnection> ordered = new ArrayList<>(entries.size());
+        for (Map.Entry<Long, ClientConnection> entry : entries) {
+            ordered.add(entry.getValue());
+        }
+        return ordered;
+    }
+}
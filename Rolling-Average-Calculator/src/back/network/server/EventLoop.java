@@ -0,0 +1,123 @@
+package back.network.server;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Multiplexes many {@link ChannelSession}s over a single {@link Selector} so that a handful of
+ * threads can serve every connected client. All reads, writes and interest changes for a
+ * session happen on the thread running its loop; other threads hand work over through queues.
+ */
+class EventLoop implements Runnable {
+    
+    private static final int SELECT_TIMEOUT_MS = 2000;
+    
+    private final Selector selector;
+    private final Queue<ChannelSession> pendingRegistrations = new ConcurrentLinkedQueue<>();
+    private final Queue<ChannelSession> pendingWrites = new ConcurrentLinkedQueue<>();
+    private volatile boolean isStopped = false;
+    
+    /**
+     * Creates new EventLoop with its own selector
+     *
+     * @throws IOException If the selector could not be opened
+     */
+    EventLoop() throws IOException {
+        
+        this.selector = Selector.open();
+    }
+    
+    /**
+     * Queues the session to be registered with this loop's selector.
+     *
+     * @param session A session whose channel has just been accepted
+     */
+    void register( final ChannelSession session ) {
+        
+        pendingRegistrations.add(session);
+        selector.wakeup();
+    }
+    
+    /**
+     * Informs the loop that the session has output waiting to be written.
+     *
+     * @param session The session with queued output
+     */
+    void requestWrite( final ChannelSession session ) {
+        
+        pendingWrites.add(session);
+        selector.wakeup();
+    }
+    
+    /**
+     * Selects ready channels until {@link #shutdown()} is called, then closes every session
+     * still registered.
+     */
+    @Override
+    public void run() {
+        
+        while (!isStopped) {
+            try {
+                selector.select(SELECT_TIMEOUT_MS);
+            } catch (IOException e) {
+                break;
+            }
+            
+            ChannelSession session;
+            while ((session = pendingRegistrations.poll()) != null) {
+                try {
+                    session.register(selector);
+                } catch (IOException e) {
+                    session.disconnect();
+                }
+            }
+            while ((session = pendingWrites.poll()) != null) {
+                session.enableWrite();
+            }
+            
+            final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                final SelectionKey key = keys.next();
+                keys.remove();
+                session = (ChannelSession) key.attachment();
+                try {
+                    if (key.isReadable()) {
+                        session.onReadable();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        session.onWritable();
+                    }
+                } catch (IOException | CancelledKeyException e) {
+                    session.disconnect();
+                } catch (RuntimeException e) {
+                    //Only this client is dropped; the loop keeps serving the others
+                    e.printStackTrace();
+                    session.disconnect();
+                }
+            }
+        }
+        
+        for (SelectionKey key : selector.keys()) {
+            ( (ChannelSession) key.attachment() ).close();
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            //Nothing left to release
+        }
+    }
+    
+    /**
+     * Stops the loop. Sessions are closed by the loop thread as it exits.
+     */
+    void shutdown() {
+        
+        isStopped = true;
+        selector.wakeup();
+    }
+}
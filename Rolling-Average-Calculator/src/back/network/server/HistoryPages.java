@@ -0,0 +1,226 @@
+package back.network.server;
+
+import back.storage.HistoryMerge;
+import back.storage.IntHistory;
+import utility.request.Request;
+import utility.request.RequestFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Answers HISTORY requests by reading one or more {@link IntHistory}s as one sequence, in the
+ * order given, or for an ordered request merged by arrival time with a {@link HistoryMerge} that
+ * only reads as far as the page goes. A request with a time range only reads the values that arrived in it, found by
+ * binary search in each history, and offsets count from the start of the range. A request with
+ * an offset or limit gets only that page. A
+ * streamed request gets its entries as {@link Request.Response#PARTIAL} chunks of at most
+ * {@link #CHUNK_SIZE} entries followed by one final {@link Request.Response#OK} chunk, so neither
+ * end has to hold the whole history in one message. The next chunk is only made once fewer than
+ * {@link #MAX_CHUNKS_IN_FLIGHT} responses wait to be written to the client, so a slow client holds
+ * back its stream rather than filling the server's memory with encoded chunks. Streams are made
+ * on the connection's stream executor when it has one, so that the waiting never holds up an
+ * {@link EventLoop}.
+ * <p>
+ * Each history holds off compaction until the response is sent, since compacting would shift the
+ * indexes of its values and the pages or chunks after it would skip over values.
+ */
+final class HistoryPages {
+    
+    static final int CHUNK_SIZE = 1024;
+    static final int MAX_CHUNKS_IN_FLIGHT = 4;
+    
+    private HistoryPages() {
+        
+    }
+    
+    /**
+     * @param recipient The connection of the client that made the request
+     * @param request   The HISTORY request
+     * @param sources   The histories to read, in order
+     */
+    static void respond( final ClientConnection recipient, final Request request, final Collection<IntHistory> sources ) {
+        
+        if (request.isStream()) {
+            recipient.runStream(() -> respondHolding(recipient, request, sources));
+        } else {
+            respondHolding(recipient, request, sources);
+        }
+    }
+    
+    private static void respondHolding( final ClientConnection recipient, final Request request, final Collection<IntHistory> sources ) {
+        
+        final long start = request.hasOffset() ? Math.max(0, request.getOffset()) : 0;
+        final long end = request.hasLimit() ? start + Math.max(0, request.getLimit()) : Long.MAX_VALUE;
+        final List<IntHistory> held = new ArrayList<>(sources.size());
+        final List<Slice> slices = new ArrayList<>(sources.size());
+        try {
+            for (IntHistory source : sources) {
+                source.holdCompaction();
+                held.add(source);
+                slices.add(new Slice(source, request));
+            }
+            respond(recipient, request, slices, start, end);
+        } finally {
+            for (IntHistory source : held) {
+                source.releaseCompaction();
+            }
+        }
+    }
+    
+    private static void respond( final ClientConnection recipient, final Request request, final List<Slice> slices, final long start, final long end ) {
+        
+        final Reader reader = request.isOrdered() && slices.size() > 1 ? merge(slices, start, end) : new Concatenation(slices, start, end);
+        
+        if (!request.isStream()) {
+            final List<Integer> page = reader.next((int) Math.min(Integer.MAX_VALUE, end - start));
+            final Request response;
+            if (request.hasOffset() || request.hasLimit()) {
+                response = RequestFactory.serverHistoryResponse(Request.Response.OK, request.getRange(), page, start);
+            } else {
+                response = RequestFactory.serverHistoryResponse(Request.Response.OK, request.getRange(), page);
+            }
+            recipient.respondToClient(response.inReplyTo(request));
+            return;
+        }
+        
+        long chunkOffset = start;
+        List<Integer> chunk = reader.next((int) Math.min(CHUNK_SIZE, end - chunkOffset));
+        while (chunk.size() == CHUNK_SIZE) {
+            Request partial = RequestFactory.serverHistoryResponse(Request.Response.PARTIAL, request.getRange(), chunk, chunkOffset);
+            recipient.respondToClient(partial.inReplyTo(request));
+            if (!awaitRoom(recipient)) {
+                return;
+            }
+            chunkOffset += chunk.size();
+            chunk = reader.next((int) Math.min(CHUNK_SIZE, end - chunkOffset));
+        }
+        Request last = RequestFactory.serverHistoryResponse(Request.Response.OK, request.getRange(), chunk, chunkOffset);
+        recipient.respondToClient(last.inReplyTo(request));
+    }
+    
+    /**
+     * Reads the slices as one sequence ordered by arrival time, from the page's first value on
+     */
+    private static Reader merge( final List<Slice> slices, final long start, final long end ) {
+        
+        final List<IntHistory> histories = new ArrayList<>(slices.size());
+        final long[] from = new long[slices.size()];
+        final long[] to = new long[slices.size()];
+        for (int i = 0; i < slices.size(); ++i) {
+            histories.add(slices.get(i).history);
+            from[i] = slices.get(i).first;
+            to[i] = slices.get(i).last;
+        }
+        final HistoryMerge merge = new HistoryMerge(histories, from, to);
+        merge.skip(start);
+        return merge::next;
+    }
+    
+    /**
+     * @return Validation if the client is still there to take the next chunk
+     */
+    private static boolean awaitRoom( final ClientConnection recipient ) {
+        
+        try {
+            return recipient.awaitBacklogBelow(MAX_CHUNKS_IN_FLIGHT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+    
+    /**
+     * Reads a page's values in pieces
+     */
+    private interface Reader {
+        
+        /**
+         * @return The next values, fewer than the most only once the page is read
+         */
+        List<Integer> next( final int max );
+    }
+    
+    /**
+     * Reads the slices one after another, each through its own cursor made when it is reached
+     */
+    private static final class Concatenation implements Reader {
+        
+        private final List<Slice> slices;
+        private final long end;
+        private long position;
+        private long base = 0;
+        private int index = 0;
+        private IntHistory.Cursor cursor = null;
+        
+        private Concatenation( final List<Slice> slices, final long start, final long end ) {
+            
+            this.slices = slices;
+            this.position = start;
+            this.end = end;
+        }
+        
+        @Override
+        public List<Integer> next( final int max ) {
+            
+            final List<Integer> values = new ArrayList<>(Math.max(0, Math.min(max, CHUNK_SIZE)));
+            while (values.size() < max && position < end) {
+                if (cursor == null) {
+                    //Pass over whole slices that end before the position
+                    while (index < slices.size() && base + slices.get(index).size() <= position) {
+                        base += slices.get(index++).size();
+                    }
+                    if (index == slices.size()) {
+                        break;
+                    }
+                    cursor = slices.get(index).cursor(position - base, end - base);
+                }
+                final List<Integer> read = cursor.next(max - values.size());
+                if (read.isEmpty()) {
+                    base += slices.get(index++).size();
+                    position = Math.max(position, base);
+                    cursor = null;
+                    continue;
+                }
+                values.addAll(read);
+                position += read.size();
+            }
+            return values;
+        }
+    }
+    
+    /**
+     * The part of a history that a request covers, fixed when the request is answered so that
+     * values appended meanwhile do not shift the pages. The history must hold off compaction
+     * before the slice is made.
+     */
+    private static final class Slice {
+        
+        private final IntHistory history;
+        private final long first;
+        private final long last;
+        
+        private Slice( final IntHistory history, final Request request ) {
+            
+            this.history = history;
+            this.first = TimeRanges.first(history, request);
+            this.last = Math.max(first, TimeRanges.last(history, request));
+        }
+        
+        private long size() {
+            
+            return last - first;
+        }
+        
+        private List<Integer> toList( final long from, final long to ) {
+            
+            return history.toList(first + Math.max(0, from), first + Math.min(size(), to));
+        }
+        
+        private IntHistory.Cursor cursor( final long from, final long to ) {
+            
+            return history.cursor(first + Math.max(0, from), first + Math.min(size(), to));
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package back.network.server;
+
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads and writes the small subset of the Java serialization stream format that the
+ * {@link back.network.client.Client} speaks: the stream header, the client ID as block data,
+ * and JSON strings written with writeObject(). This lets a {@link ChannelSession} talk to an
+ * unchanged client without wrapping a non-blocking channel in ObjectInput/OutputStreams.
+ */
+final class ObjectStreamFrames {
+    
+    static final int HEADER_BYTES = 4;
+    
+    private static final short STREAM_MAGIC = (short) 0xaced;
+    private static final short STREAM_VERSION = 5;
+    private static final byte TC_BLOCKDATA = 0x77;
+    private static final byte TC_RESET = 0x79;
+    private static final byte TC_STRING = 0x74;
+    private static final byte TC_LONGSTRING = 0x7C;
+    private static final int MAX_SHORT_STRING_BYTES = 0xFFFF;
+    
+    private ObjectStreamFrames() {
+        
+    }
+    
+    /**
+     * @param clientID The ID assigned to the client
+     *
+     * @return The stream header followed by the client ID, as ObjectOutputStream.writeLong() writes it
+     */
+    static ByteBuffer handshake( final long clientID ) {
+        
+        final ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + 2 + Long.BYTES);
+        buffer.putShort(STREAM_MAGIC).putShort(STREAM_VERSION);
+        buffer.put(TC_BLOCKDATA).put((byte) Long.BYTES).putLong(clientID);
+        buffer.flip();
+        return buffer;
+    }
+    
+    /**
+     * Consumes the stream header written when the client creates its ObjectOutputStream.
+     *
+     * @param in The bytes received so far
+     *
+     * @return True once the header has been consumed, false if more bytes are needed
+     *
+     * @throws StreamCorruptedException If the client did not open with a serialization header
+     */
+    static boolean readHeader( final ByteBuffer in ) throws StreamCorruptedException {
+        
+        if (in.remaining() < HEADER_BYTES) {
+            return false;
+        }
+        if (in.getShort() != STREAM_MAGIC || in.getShort() != STREAM_VERSION) {
+            throw new StreamCorruptedException("Invalid stream header");
+        }
+        return true;
+    }
+    
+    /**
+     * Encodes a string the same way ObjectOutputStream.writeObject() does for a new String.
+     *
+     * @param value The string to write
+     *
+     * @return A buffer ready to be written to a channel
+     */
+    static ByteBuffer encodeString( final String value ) {
+        
+        final int length = modifiedUtf8Length(value);
+        final ByteBuffer buffer;
+        if (length <= MAX_SHORT_STRING_BYTES) {
+            buffer = ByteBuffer.allocate(1 + 2 + length);
+            buffer.put(TC_STRING).putShort((short) length);
+        } else {
+            buffer = ByteBuffer.allocate(1 + Long.BYTES + length);
+            buffer.put(TC_LONGSTRING).putLong(length);
+        }
+        for (int i = 0; i < value.length(); ++i) {
+            final char c = value.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                buffer.put((byte) c);
+            } else if (c <= 0x07FF) {
+                buffer.put((byte) ( 0xC0 | ( ( c >> 6 ) & 0x1F ) ));
+                buffer.put((byte) ( 0x80 | ( c & 0x3F ) ));
+            } else {
+                buffer.put((byte) ( 0xE0 | ( ( c >> 12 ) & 0x0F ) ));
+                buffer.put((byte) ( 0x80 | ( ( c >> 6 ) & 0x3F ) ));
+                buffer.put((byte) ( 0x80 | ( c & 0x3F ) ));
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+    
+    /**
+     * Attempts to decode the next string written with writeObject(). Resets are skipped.
+     *
+     * @param in The bytes received so far
+     *
+     * @return The string, or null if the buffer does not yet hold a complete one. In that case
+     * the buffer position is left where it was.
+     *
+     * @throws StreamCorruptedException If the next object is not a string
+     */
+    static String decodeString( final ByteBuffer in ) throws StreamCorruptedException {
+        
+        while (in.hasRemaining() && in.get(in.position()) == TC_RESET) {
+            in.get();
+        }
+        if (!in.hasRemaining()) {
+            return null;
+        }
+        
+        final int start = in.position();
+        final byte tag = in.get();
+        final long length;
+        if (tag == TC_STRING) {
+            if (in.remaining() < 2) {
+                in.position(start);
+                return null;
+            }
+            length = in.getShort() & 0xFFFF;
+        } else if (tag == TC_LONGSTRING) {
+            if (in.remaining() < Long.BYTES) {
+                in.position(start);
+                return null;
+            }
+            length = in.getLong();
+            if (length < 0 || length > Integer.MAX_VALUE) {
+                throw new StreamCorruptedException("Invalid string length " + length);
+            }
+        } else {
+            throw new StreamCorruptedException(String.format("Unexpected type code 0x%02X", tag));
+        }
+        
+        if (in.remaining() < length) {
+            in.position(start);
+            return null;
+        }
+        return decodeModifiedUtf8(in, (int) length);
+    }
+    
+    private static int modifiedUtf8Length( final String value ) {
+        
+        int length = 0;
+        for (int i = 0; i < value.length(); ++i) {
+            final char c = value.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                length += 1;
+            } else if (c <= 0x07FF) {
+                length += 2;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+    
+    private static String decodeModifiedUtf8( final ByteBuffer in, final int length ) throws StreamCorruptedException {
+        
+        final char[] chars = new char[length];
+        final int end = in.position() + length;
+        int count = 0;
+        while (in.position() < end) {
+            final int a = in.get() & 0xFF;
+            if (a < 0x80) {
+                chars[count++] = (char) a;
+            } else if (( a & 0xE0 ) == 0xC0 && in.position() < end) {
+                final int b = in.get() & 0xFF;
+                chars[count++] = (char) ( ( ( a & 0x1F ) << 6 ) | ( b & 0x3F ) );
+            } else if (( a & 0xF0 ) == 0xE0 && in.position() + 1 < end) {
+                final int b = in.get() & 0xFF;
+                final int c = in.get() & 0xFF;
+                chars[count++] = (char) ( ( ( a & 0x0F ) << 12 ) | ( ( b & 0x3F ) << 6 ) | ( c & 0x3F ) );
+            } else {
+                throw new StreamCorruptedException("Malformed string data");
+            }
+        }
+        return new String(chars, 0, count);
+    }
+}
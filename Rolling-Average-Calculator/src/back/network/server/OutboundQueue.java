@@ -0,0 +1,231 @@
+package back.network.server;
+
+import utility.request.Request;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Coalesces the responses of one blocking {@link ClientConnection}. Responses queued from any
+ * thread are drained together, handed to the {@link Writer} as one batch and flushed once, so a
+ * burst of responses becomes one buffered write instead of one syscall each.
+ * <p>
+ * With no delay, whichever thread queues a response while no drain is pending drains everything
+ * queued so far itself. With a delay, the drain runs on the shared scheduler once the delay has
+ * passed, gathering every response queued in the meantime.
+ * <p>
+ * The first write that fails is reported to the {@link Writer} and every response queued after it
+ * is dropped, since the connection is about to be torn down.
+ * <p>
+ * The responses queued but not yet written are counted, so that a producer of many responses can
+ * wait for the client to take some before it makes more.
+ * <p>
+ * Writes are guarded by a {@link ReentrantLock} rather than a monitor, so a virtual thread
+ * blocked in a slow socket write gives up its carrier instead of pinning it.
+ */
+class OutboundQueue {
+    
+    private final Queue<Request> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean isDrainScheduled = new AtomicBoolean(false);
+    private final AtomicBoolean isBroken = new AtomicBoolean(false);
+    private final List<Request> batch = new ArrayList<>();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final Condition written = writeLock.newCondition();
+    //Responses queued but not yet written
+    private final AtomicInteger backlog = new AtomicInteger(0);
+    private final Writer writer;
+    private final ScheduledExecutorService scheduler;
+    private final long maxDelayMicros;
+    
+    /**
+     * Creates new OutboundQueue that drains on the thread queuing the response
+     *
+     * @param writer Writes and flushes each drained batch
+     */
+    OutboundQueue( final Writer writer ) {
+        
+        this(writer, null, 0);
+    }
+    
+    /**
+     * Creates new OutboundQueue that holds responses for up to the given delay
+     *
+     * @param writer         Writes and flushes each drained batch
+     * @param scheduler      Runs delayed drains, may be null when there is no delay
+     * @param maxDelayMicros The longest a response may wait before it is written
+     */
+    OutboundQueue( final Writer writer, final ScheduledExecutorService scheduler, final long maxDelayMicros ) {
+        
+        this.writer = writer;
+        this.scheduler = scheduler;
+        this.maxDelayMicros = scheduler == null ? 0 : maxDelayMicros;
+    }
+    
+    /**
+     * Queues a response. Safe to call from any thread.
+     *
+     * @param response The response to send
+     */
+    void add( final Request response ) {
+        
+        add(response, null);
+    }
+    
+    /**
+     * Queues a response without ever writing on the calling thread. With no delay, the drain runs
+     * on the given executor instead. Safe to call from any thread.
+     *
+     * @param response The response to send
+     * @param executor Runs the drain when there is no delay
+     */
+    void addLater( final Request response, final Executor executor ) {
+        
+        add(response, executor);
+    }
+    
+    private void add( final Request response, final Executor executor ) {
+        
+        if (isBroken.get()) {
+            return;
+        }
+        backlog.incrementAndGet();
+        pending.add(response);
+        if (!isDrainScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        if (maxDelayMicros > 0) {
+            scheduler.schedule(this::drain, maxDelayMicros, TimeUnit.MICROSECONDS);
+        } else if (executor != null) {
+            try {
+                executor.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                //The executor is shutting down, so nothing else would write the response
+                drain();
+            }
+        } else {
+            drain();
+        }
+    }
+    
+    /**
+     * @return The number of responses queued and not yet written
+     */
+    int getBacklog() {
+        
+        return backlog.get();
+    }
+    
+    /**
+     * Writes everything queued so far on the calling thread without waiting for the delay.
+     */
+    void drain() {
+        
+        writeLock.lock();
+        try {
+            isDrainScheduled.set(false);
+            Request response;
+            while ((response = pending.poll()) != null) {
+                batch.add(response);
+            }
+            if (batch.isEmpty()) {
+                return;
+            }
+            try {
+                writer.write(batch);
+            } catch (IOException e) {
+                pending.clear();
+                if (isBroken.compareAndSet(false, true)) {
+                    writer.onWriteFailed(e);
+                }
+            } finally {
+                onWritten(batch.size());
+                batch.clear();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+    
+    /**
+     * Writes everything queued so far followed by the given response on the calling thread,
+     * reporting failures to the caller instead of logging them.
+     *
+     * @param response The last response to write, such as a disconnect
+     */
+    void writeNow( final Request response ) throws IOException {
+        
+        writeLock.lock();
+        try {
+            Request queued;
+            while ((queued = pending.poll()) != null) {
+                batch.add(queued);
+            }
+            final int drained = batch.size();
+            batch.add(response);
+            try {
+                writer.write(batch);
+            } finally {
+                onWritten(drained);
+                batch.clear();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+    
+    /**
+     * Waits until fewer than the given number of queued responses are left to write.
+     *
+     * @param limit The most responses that may still be queued
+     *
+     * @return Validation if the client may still be sent responses, false once a write has failed
+     */
+    boolean awaitBacklogBelow( final int limit ) throws InterruptedException {
+        
+        writeLock.lock();
+        try {
+            while (!isBroken.get() && backlog.get() >= limit) {
+                written.await();
+            }
+            return !isBroken.get();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+    
+    /**
+     * Counts responses taken off the queue and wakes whoever waits for the backlog to shrink.
+     * Called holding the write lock.
+     */
+    private void onWritten( final int count ) {
+        
+        if (count > 0) {
+            backlog.addAndGet(-count);
+        }
+        written.signalAll();
+    }
+    
+    /**
+     * Writes a drained batch of responses to the client and flushes once.
+     */
+    interface Writer {
+        
+        void write( final List<Request> responses ) throws IOException;
+        
+        /**
+         * Called once, on the thread whose drain failed, when a batch could not be written
+         */
+        void onWriteFailed( final IOException e );
+    }
+}
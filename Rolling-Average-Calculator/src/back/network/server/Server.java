@@ -1,39 +1,97 @@
 package back.network.server;
 
+import back.aggregate.Ewma;
+import back.aggregate.DistinctSketch;
+import back.aggregate.GlobalAggregates;
+import back.aggregate.QuantileSketch;
+import back.aggregate.RollingWindow;
+import back.aggregate.RunningStats;
+import back.aggregate.SketchSet;
+import back.aggregate.TopValues;
+import back.storage.IntHistory;
+import back.storage.RetentionPolicy;
+import back.storage.SegmentStore;
+import back.storage.SnapshotFile;
+import back.storage.SubmissionLog;
 import utility.request.Request;
+import utility.request.RequestFactory;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.*;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
 
 public class Server implements Runnable, ClientConnection.ClientConnectionHandler {
     
     private static final int TIMEOUT_DELAY_MS = 2000;
     private static final int WAIT_DELAY_MS = 1000;
+    private static final int DEFAULT_WINDOW_CAPACITY = 100;
+    private static final long DEFAULT_EWMA_HALF_LIFE_MS = 60000;
+    private static final long DEFAULT_PUSH_INTERVAL_MS = 1000;
+    private static final int EVENT_LOOP_COUNT = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
     
     private ServerHandler SSHandler;
     
     private ServerSocket serverSocket = null;
-    private ExecutorService threadPool = Executors.newFixedThreadPool(4);
+    private ExecutorService threadPool;
+    private boolean isVirtualThreadFallback = false;
+    private ServerSocketChannel serverChannel = null;
+    private Selector acceptSelector = null;
+    private EventLoop[] eventLoops = new EventLoop[0];
+    private final Mode mode;
+    private ScheduledExecutorService responseScheduler = null;
+    private long maxResponseDelayMicros = 0;
+    private ScheduledExecutorService pushScheduler = null;
+    //Writes responses made on threads that must not wait on a client's socket
+    private final ExecutorService responseWriters = Executors.newCachedThreadPool();
+    private long pushIntervalMs = DEFAULT_PUSH_INTERVAL_MS;
+    private Path submissionLogFile = null;
+    private SubmissionLog.FsyncPolicy fsyncPolicy = SubmissionLog.FsyncPolicy.ALWAYS;
+    private long fsyncIntervalMs = 0;
+    private SubmissionLog submissionLog = null;
+    private Path historyDirectory = null;
+    private SegmentStore historyStore = null;
+    private Path snapshotFile = null;
+    private long snapshotIntervalMs = 0;
+    private ScheduledExecutorService snapshotScheduler = null;
+    private final ReentrantReadWriteLock snapshotLock = new ReentrantReadWriteLock();
+    private RetentionPolicy retentionPolicy = null;
+    private long compactionIntervalMs = 0;
+    private ScheduledExecutorService compactionScheduler = null;
     
     private volatile boolean isStopped = false;
     private String serverAddress;
     private int serverPort;
     
-    private Map<Long, ClientConnection> clientIdConnection = new HashMap<Long, ClientConnection>();
+    private final ClientRegistry clientRegistry = new ClientRegistry();
     private AtomicLong clientId = new AtomicLong(0);
-    private List<Integer> listOfClientSubmission = new ArrayList<>();
     
-    private int count = 0;
-    private double sum = 0;
-    private double average;
+    private Supplier<RollingWindow> rollingWindowFactory = () -> RollingWindow.ofCount(DEFAULT_WINDOW_CAPACITY);
+    private Supplier<Ewma> ewmaFactory = () -> Ewma.ofHalfLife(DEFAULT_EWMA_HALF_LIFE_MS);
+    private GlobalAggregates globalAggregates = new GlobalAggregates(rollingWindowFactory.get(), ewmaFactory.get());
+    //The sketches of clients that have disconnected or were served before a restart
+    private SketchSet pastClients = new SketchSet();
     
     /**
      * Creates new Server with address and port
@@ -43,8 +101,26 @@ public class Server implements Runnable, ClientConnection.ClientConnectionHandle
      */
     public Server( String address, int port ) {
         
+        this(address, port, Mode.THREAD_POOL);
+    }
+    
+    /**
+     * Creates new Server with address, port and the way client connections are served
+     *
+     * @param address The IPv4 or IPv6 address to create the network server.
+     * @param port    The port number to open for the network server.
+     * @param mode    How client connections are served.
+     */
+    public Server( String address, int port, Mode mode ) {
+        
         this.serverPort = port;
         this.serverAddress = address;
+        this.mode = mode;
+        this.threadPool = mode == Mode.VIRTUAL_THREAD ? newVirtualThreadExecutor() : Executors.newFixedThreadPool(4);
+        if (this.threadPool == null) {
+            this.isVirtualThreadFallback = true;
+            this.threadPool = Executors.newCachedThreadPool();
+        }
     }
     
     /**
@@ -57,12 +133,148 @@ public class Server implements Runnable, ClientConnection.ClientConnectionHandle
         SSHandler = handler;
     }
     
+    /**
+     * Lets each blocking {@link ClientConnection} hold responses for up to the given delay so
+     * they are written and flushed in larger batches. Must be set before the Server runs.
+     *
+     * @param delay The longest a response may wait before it is written, zero to write at once
+     * @param unit  The unit of the delay
+     */
+    public void setMaxResponseDelay( final long delay, final TimeUnit unit ) {
+        
+        this.maxResponseDelayMicros = unit.toMicros(delay);
+        if (maxResponseDelayMicros > 0 && responseScheduler == null) {
+            responseScheduler = Executors.newSingleThreadScheduledExecutor();
+        }
+    }
+    
+    /**
+     * Choose how often subscribed clients may be pushed updated aggregates. Changes within one
+     * interval are coalesced into a single push. Must be set before the Server runs. The default
+     * is one second.
+     *
+     * @param interval The shortest time between two pushes of the same subscription
+     * @param unit     The unit of the interval
+     */
+    public void setPushInterval( final long interval, final TimeUnit unit ) {
+        
+        this.pushIntervalMs = Math.max(1, unit.toMillis(interval));
+    }
+    
+    /**
+     * Choose the window that ROLLING_AVERAGE requests are answered over, for example
+     * {@code () -> RollingWindow.ofDuration(60000)}. Each client gets its own window and one more
+     * covers every client. Must be set before the Server runs. The default is the last 100 values.
+     *
+     * @param rollingWindowFactory Creates a new, empty window each time it is called
+     */
+    public void setRollingWindow( final Supplier<RollingWindow> rollingWindowFactory ) {
+        
+        this.rollingWindowFactory = rollingWindowFactory;
+        this.globalAggregates = new GlobalAggregates(rollingWindowFactory.get(), ewmaFactory.get());
+    }
+    
+    /**
+     * Choose how EWMA requests weigh values, for example {@code () -> Ewma.ofAlpha(0.1)}. Each
+     * client gets its own average and one more covers every client. Must be set before the
+     * Server runs. The default halves a value's weight every minute.
+     *
+     * @param ewmaFactory Creates a new, empty average each time it is called
+     */
+    public void setEwma( final Supplier<Ewma> ewmaFactory ) {
+        
+        this.ewmaFactory = ewmaFactory;
+        this.globalAggregates = new GlobalAggregates(rollingWindowFactory.get(), ewmaFactory.get());
+    }
+    
+    /**
+     * Keep a log of every submission in the given file and, when the Server runs, rebuild the
+     * server-wide aggregates from whatever the file already holds. Client IDs continue after the
+     * highest one in the log. Must be set before the Server runs.
+     *
+     * @param file     The log file, created if it does not exist
+     * @param policy   When logged submissions are forced to disk
+     * @param interval The longest logged submissions may wait to be forced with
+     *                 {@link SubmissionLog.FsyncPolicy#INTERVAL}
+     * @param unit     The unit of the interval
+     */
+    public void setSubmissionLog( final Path file, final SubmissionLog.FsyncPolicy policy, final long interval, final TimeUnit unit ) {
+        
+        this.submissionLogFile = file;
+        this.fsyncPolicy = policy;
+        this.fsyncIntervalMs = unit.toMillis(interval);
+    }
+    
+    /**
+     * Keep every client's history in memory-mapped segment files in the given directory rather
+     * than on the heap, so long-lived clients can submit far more values than the heap holds. The
+     * files are deleted when the Server terminates. Must be set before the Server runs.
+     *
+     * @param directory Where to create the segment files
+     */
+    public void setHistoryStore( final Path directory ) {
+        
+        this.historyDirectory = directory;
+    }
+    
+    /**
+     * Save the server-wide aggregates to the given file periodically and when the Server
+     * terminates, together with how far through the submission log they are. When the Server
+     * runs, the aggregates are restored from the file and only the part of the log written after
+     * it is replayed, so restarting takes about as long as replaying one interval of submissions
+     * however long the log has grown. Clients come back with new IDs, so only the sketches behind
+     * STATS, PERCENTILE, DISTINCT and TOPVALUES are kept for them, merged into one set. While
+     * snapshots are on, submissions take a shared read lock that saving holds for writing just
+     * long enough to copy the aggregates. Must be set before the Server runs.
+     *
+     * @param file     The snapshot file, replaced each time a snapshot is saved
+     * @param interval How often to save a snapshot
+     * @param unit     The unit of the interval
+     */
+    public void setSnapshots( final Path file, final long interval, final TimeUnit unit ) {
+        
+        this.snapshotFile = file;
+        this.snapshotIntervalMs = Math.max(1, unit.toMillis(interval));
+    }
+    
+    /**
+     * Compact every client's history in the background once per interval, folding values older
+     * than the policy keeps into time buckets and freeing the memory, and segment files, that
+     * held them. Submissions are only held off while a history's chunk table is shifted. HISTORY
+     * then only returns the values still kept, with offsets counting from the oldest of them;
+     * counts, averages and time ranges still cover every value. Must be set before the Server
+     * runs.
+     *
+     * @param policy   How long to keep values at each resolution
+     * @param interval How often to compact
+     * @param unit     The unit of the interval
+     */
+    public void setRetention( final RetentionPolicy policy, final long interval, final TimeUnit unit ) {
+        
+        this.retentionPolicy = policy;
+        this.compactionIntervalMs = Math.max(1, unit.toMillis(interval));
+    }
+    
     /**
      * Creates new thread for every new connection from clients
      */
     @Override
     public void run() {
         
+        if (isVirtualThreadFallback) {
+            SSHandler.onModeUnavailable("Virtual threads need Java 21, so each connection gets a platform thread instead");
+        }
+        if (!openSubmissionLog() || !openHistoryStore()) {
+            return;
+        }
+        startPushing();
+        startSnapshots();
+        startCompaction();
+        if (mode == Mode.SELECTOR) {
+            runSelector();
+            return;
+        }
+        
         openServerSocket();
         SSHandler.onOpenSocketSuccess();
         ClientConnection clientConnection;
@@ -93,13 +305,301 @@ public class Server implements Runnable, ClientConnection.ClientConnectionHandle
                 SSHandler.onClientConnected(clientSocket.getLocalAddress().toString(), curClientID);
                 clientConnection = new ClientConnection(clientSocket, curClientID);
                 clientConnection.setServerCCHandler(this);
-                clientIdConnection.put(curClientID, clientConnection);
-                Thread clientConnectionThread = new Thread(clientConnection);
-                this.threadPool.execute(clientConnectionThread);
+                clientConnection.setGlobalAggregates(globalAggregates);
+                clientConnection.setRollingWindow(rollingWindowFactory.get());
+                clientConnection.setEwma(ewmaFactory.get());
+                clientConnection.setSubmissionLog(submissionLog);
+                clientConnection.setResponseWriters(responseWriters);
+                if (snapshotFile != null) {
+                    clientConnection.setSnapshotLock(snapshotLock.readLock());
+                }
+                if (historyStore != null) {
+                    clientConnection.setHistoryStore(historyStore);
+                }
+                if (maxResponseDelayMicros > 0) {
+                    clientConnection.setMaxResponseDelay(responseScheduler, maxResponseDelayMicros);
+                }
+                clientRegistry.register(curClientID, clientConnection);
+                if (mode == Mode.VIRTUAL_THREAD) {
+                    // Virtual threads are cheap enough to block in the read loop directly
+                    clientConnection.setReadOnCallingThread(true);
+                    this.threadPool.execute(clientConnection);
+                } else {
+                    Thread clientConnectionThread = new Thread(clientConnection);
+                    this.threadPool.execute(clientConnectionThread);
+                }
+                
+            }
+        }
+        
+    }
+    
+    /**
+     * Accepts connections without blocking and spreads them over a fixed set of {@link EventLoop}s.
+     * Each client is served by a {@link ChannelSession} rather than by its own threads.
+     */
+    private void runSelector() {
+        
+        if (!openServerChannel()) {
+            return;
+        }
+        SSHandler.onOpenSocketSuccess();
+        
+        while (!isStopped) {
+            try {
+                if (acceptSelector.select(TIMEOUT_DELAY_MS) == 0) {
+                    // Restart accept
+                    continue;
+                }
+                acceptSelector.selectedKeys().clear();
                 
+                SocketChannel clientChannel;
+                while ((clientChannel = serverChannel.accept()) != null) {
+                    long curClientID = clientId.getAndIncrement();
+                    
+                    SSHandler.onClientConnected(clientChannel.socket().getLocalAddress().toString(), curClientID);
+                    EventLoop eventLoop = eventLoops[(int) ( curClientID % eventLoops.length )];
+                    ChannelSession channelSession = new ChannelSession(clientChannel, eventLoop);
+                    ClientConnection clientConnection = new ClientConnection(channelSession, curClientID);
+                    clientConnection.setServerCCHandler(this);
+                    clientConnection.setGlobalAggregates(globalAggregates);
+                    clientConnection.setRollingWindow(rollingWindowFactory.get());
+                    clientConnection.setEwma(ewmaFactory.get());
+                    clientConnection.setSubmissionLog(submissionLog);
+                    clientConnection.setResponseWriters(responseWriters);
+                    if (snapshotFile != null) {
+                        clientConnection.setSnapshotLock(snapshotLock.readLock());
+                    }
+                    if (historyStore != null) {
+                        clientConnection.setHistoryStore(historyStore);
+                    }
+                    //The pool has no blocking readers to run, so streamed responses are made on it
+                    clientConnection.setStreamExecutor(threadPool);
+                    clientRegistry.register(curClientID, clientConnection);
+                    channelSession.open(clientConnection, curClientID);
+                }
+            } catch (ClosedSelectorException e) {
+                break;
+            } catch (IOException e) {
+                if (isStopped) {
+                    System.out.println("ServerAdapter has stopped");
+                    break;
+                }
+                SSHandler.onOpenSocketFailure("Could not accept client channel");
+                this.isStopped = true;
+                break;
+            }
+        }
+    }
+    
+    /**
+     * Restores the latest snapshot if snapshots were set, then opens the submission log if one
+     * was set, replaying whatever the snapshot does not cover into the server-wide aggregates
+     *
+     * @return Validation if the Server may go on to accept clients
+     */
+    private boolean openSubmissionLog() {
+        
+        long replayFrom = restoreSnapshot();
+        if (submissionLogFile == null) {
+            return true;
+        }
+        AtomicLong highestClientId = new AtomicLong(-1);
+        try {
+            try {
+                submissionLog = openSubmissionLog(replayFrom, highestClientId);
+            } catch (IOException e) {
+                if (replayFrom == 0) {
+                    throw e;
+                }
+                //The snapshot does not belong to this log, which is the one to trust
+                e.printStackTrace();
+                resetAggregates();
+                submissionLog = openSubmissionLog(0, highestClientId);
+            }
+        } catch (IOException e) {
+            SSHandler.onOpenSocketFailure("Could not open submission log " + submissionLogFile);
+            return false;
+        }
+        clientId.accumulateAndGet(highestClientId.get() + 1, Math::max);
+        return true;
+    }
+    
+    private SubmissionLog openSubmissionLog( final long replayFrom, final AtomicLong highestClientId ) throws IOException {
+        
+        return SubmissionLog.open(submissionLogFile, fsyncPolicy, fsyncIntervalMs, replayFrom, ( loggedClientId, timeMs, values ) -> {
+            long batchSum = 0;
+            for (int i = 0; i < values.size(); ++i) {
+                batchSum += values.get(i);
+            }
+            globalAggregates.addAll(values, batchSum, timeMs);
+            pastClients.addAll(values);
+            highestClientId.accumulateAndGet(loggedClientId, Math::max);
+        });
+    }
+    
+    /**
+     * Restores the aggregates from the snapshot file if snapshots were set and one was saved. If
+     * it cannot be read, the aggregates are left empty to be rebuilt from the whole log.
+     *
+     * @return The position in the submission log to replay from
+     */
+    private long restoreSnapshot() {
+        
+        if (snapshotFile == null) {
+            return 0;
+        }
+        try {
+            SnapshotFile snapshot = SnapshotFile.read(snapshotFile);
+            if (snapshot == null) {
+                return 0;
+            }
+            if (submissionLogFile != null && snapshot.getLogPosition() == SnapshotFile.NO_LOG) {
+                //Saved without a log, so it cannot say where in the log to replay from
+                return 0;
+            }
+            DataInput in = snapshot.getState();
+            long nextClientId = in.readLong();
+            globalAggregates.readFrom(in);
+            pastClients.readFrom(in);
+            clientId.accumulateAndGet(nextClientId, Math::max);
+            return Math.max(0, snapshot.getLogPosition());
+        } catch (IOException e) {
+            e.printStackTrace();
+            resetAggregates();
+            return 0;
+        }
+    }
+    
+    private void resetAggregates() {
+        
+        globalAggregates = new GlobalAggregates(rollingWindowFactory.get(), ewmaFactory.get());
+        pastClients = new SketchSet();
+    }
+    
+    /**
+     * Starts saving snapshots once per snapshot interval if snapshots were set
+     */
+    private void startSnapshots() {
+        
+        if (snapshotFile == null) {
+            return;
+        }
+        snapshotScheduler = Executors.newSingleThreadScheduledExecutor();
+        snapshotScheduler.scheduleWithFixedDelay(() -> {
+            try {
+                saveSnapshot();
+            } catch (RuntimeException e) {
+                //Try again next interval
+                e.printStackTrace();
+            }
+        }, snapshotIntervalMs, snapshotIntervalMs, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Starts compacting client histories once per compaction interval if retention was set
+     */
+    private void startCompaction() {
+        
+        if (retentionPolicy == null) {
+            return;
+        }
+        compactionScheduler = Executors.newSingleThreadScheduledExecutor();
+        compactionScheduler.scheduleWithFixedDelay(() -> {
+            try {
+                final long now = System.currentTimeMillis();
+                for (ClientConnection clientConnection : clientRegistry.connections()) {
+                    clientConnection.getHistory().compact(retentionPolicy, now);
+                }
+            } catch (RuntimeException e) {
+                //Try again next interval
+                e.printStackTrace();
+            }
+        }, compactionIntervalMs, compactionIntervalMs, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Saves the aggregates with the position in the submission log they are complete up to.
+     * Submissions are only held off while the aggregates are copied; waiting for the log to
+     * reach disk and writing the file happen after.
+     */
+    private void saveSnapshot() {
+        
+        try {
+            ByteArrayOutputStream state = new ByteArrayOutputStream();
+            CompletableFuture<Long> logPosition = writeState(new DataOutputStream(state));
+            SnapshotFile.write(snapshotFile, logPosition.get(), state.toByteArray());
+        } catch (IOException | ExecutionException e) {
+            //The previous snapshot is still in place
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * @return The position in the submission log the state is complete up to
+     */
+    private CompletableFuture<Long> writeState( final DataOutputStream out ) throws IOException {
+        
+        snapshotLock.writeLock().lock();
+        try {
+            CompletableFuture<Long> logPosition = submissionLog != null ? submissionLog.checkpoint() : CompletableFuture.completedFuture(SnapshotFile.NO_LOG);
+            out.writeLong(clientId.get());
+            globalAggregates.writeTo(out);
+            SketchSet everyClient = new SketchSet();
+            pastClients.mergeInto(everyClient);
+            for (ClientConnection clientConnection : clientRegistry.connections()) {
+                clientConnection.mergeSketchesInto(everyClient);
             }
+            everyClient.writeTo(out);
+            out.flush();
+            return logPosition;
+        } finally {
+            snapshotLock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Opens the store for client histories if a directory was set
+     *
+     * @return Validation if the Server may go on to accept clients
+     */
+    private boolean openHistoryStore() {
+        
+        if (historyDirectory == null) {
+            return true;
+        }
+        try {
+            historyStore = SegmentStore.open(historyDirectory);
+        } catch (IOException e) {
+            SSHandler.onOpenSocketFailure("Could not open history store " + historyDirectory);
+            return false;
         }
+        return true;
+    }
+    
+    /**
+     * Starts pushing updates to subscribed clients once per push interval. Each answer over every
+     * client is made once per push and shared by every subscription to it, and blocking
+     * connections are written to by the response writers, so that a slow client holds up neither
+     * the push thread nor the other clients.
+     */
+    private void startPushing() {
         
+        pushScheduler = Executors.newSingleThreadScheduledExecutor();
+        pushScheduler.scheduleAtFixedRate(() -> {
+            long globalCount = globalAggregates.getCount();
+            Map<String, Request> answersForAll = new HashMap<>();
+            for (ClientConnection clientConnection : clientRegistry.connections()) {
+                try {
+                    clientConnection.pushSubscriptions(globalCount, answersForAll);
+                } catch (RuntimeException e) {
+                    //Keep pushing to the other clients
+                    e.printStackTrace();
+                }
+            }
+        }, pushIntervalMs, pushIntervalMs, TimeUnit.MILLISECONDS);
     }
     
     /**
@@ -109,7 +609,7 @@ public class Server implements Runnable, ClientConnection.ClientConnectionHandle
     public synchronized boolean terminate() {
         
         //Shutdown each clientSocket gracefully by alerting each client
-        for (ClientConnection curClientConnection : clientIdConnection.values()) {
+        for (ClientConnection curClientConnection : clientRegistry.connections()) {
             try {
                 curClientConnection.terminateConnection();
                 this.wait(WAIT_DELAY_MS);
@@ -124,11 +624,42 @@ public class Server implements Runnable, ClientConnection.ClientConnectionHandle
         // ThreadPool
         try {
             this.isStopped = true;
-            this.serverSocket.close();
+            if (this.serverSocket != null) {
+                this.serverSocket.close();
+            }
+            if (this.serverChannel != null) {
+                this.acceptSelector.close();
+                this.serverChannel.close();
+            }
+            for (EventLoop eventLoop : eventLoops) {
+                eventLoop.shutdown();
+            }
+            if (this.responseScheduler != null) {
+                this.responseScheduler.shutdown();
+            }
+            if (this.pushScheduler != null) {
+                this.pushScheduler.shutdown();
+            }
+            if (this.compactionScheduler != null) {
+                this.compactionScheduler.shutdown();
+            }
             
             this.threadPool.shutdown();
+            this.responseWriters.shutdown();
             
-            this.threadPool.awaitTermination(60000, TimeUnit.NANOSECONDS);
+            this.threadPool.awaitTermination(TIMEOUT_DELAY_MS, TimeUnit.MILLISECONDS);
+            if (this.snapshotScheduler != null) {
+                this.snapshotScheduler.shutdown();
+                this.snapshotScheduler.awaitTermination(TIMEOUT_DELAY_MS, TimeUnit.MILLISECONDS);
+                //So that the next start has nothing to replay
+                saveSnapshot();
+            }
+            if (this.submissionLog != null) {
+                this.submissionLog.close();
+            }
+            if (this.historyStore != null) {
+                this.historyStore.close();
+            }
             if (threadPool.isTerminated()) {
                 SSHandler.onShutdownSuccess();
             } else {
@@ -137,7 +668,7 @@ public class Server implements Runnable, ClientConnection.ClientConnectionHandle
             }
             
         } catch (IOException e) {
-            SSHandler.onShutdownFailure("IOException: Error closing server");
+            SSHandler.onShutdownFailure("IOException: Error closing server or submission log");
         } catch (InterruptedException e) {
             SSHandler.onShutdownFailure("Server shutdown was interrupted ");
         }
@@ -146,6 +677,22 @@ public class Server implements Runnable, ClientConnection.ClientConnectionHandle
         return this.isStopped;
     }
     
+    /**
+     * Creates an executor that starts a new virtual thread for every task. Virtual threads need
+     * Java 21, so it is looked up reflectively.
+     *
+     * @return An executor for one blocking {@link ClientConnection} per task, or null if this
+     * runtime has no virtual threads
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+    
     /**
      * Opens the server socket with designated port and address
      */
@@ -167,47 +714,205 @@ public class Server implements Runnable, ClientConnection.ClientConnectionHandle
         
     }
     
+    /**
+     * Opens a non-blocking server channel with designated port and address and starts the
+     * {@link EventLoop}s that will serve accepted clients
+     *
+     * @return Validation if the channel and event loops are ready
+     */
+    private boolean openServerChannel() {
+        
+        try {
+            
+            InetAddress address = InetAddress.getByName(this.serverAddress);
+            this.serverChannel = ServerSocketChannel.open();
+            this.serverChannel.bind(new InetSocketAddress(address, this.serverPort), 50);
+            this.serverChannel.configureBlocking(false);
+            this.acceptSelector = Selector.open();
+            this.serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+            
+            this.eventLoops = new EventLoop[EVENT_LOOP_COUNT];
+            for (int i = 0; i < eventLoops.length; ++i) {
+                eventLoops[i] = new EventLoop();
+                new Thread(eventLoops[i], "EventLoop-" + i).start();
+            }
+            return true;
+            
+        } catch (UnknownHostException e) {
+            SSHandler.onOpenSocketFailure("Could not get host: " + serverAddress);
+        } catch (IOException e) {
+            SSHandler.onOpenSocketFailure("Could not open server port " + serverPort);
+        }
+        return false;
+    }
+    
     /**
      * Takes the response from Server Thread Handler and interrupts the thread that holds ClientID
      *
      * @param clientID Integer value unique to the client
      */
     private void terminateThread( long clientID ) {
-        //TODO Take response from handler and close thread with clientID
         
-        if (clientIdConnection.containsKey(clientID)) {
-            try {
-                clientIdConnection.get(clientID).terminateConnection();
-                this.wait(WAIT_DELAY_MS);
-                clientIdConnection.remove(clientID);
-                System.out.println("Dunzo");
-            } catch (InterruptedException e) {
-                SSHandler.onShutdownFailure("ClientConnection shutdown was interrupted ");
+        ClientConnection clientConnection;
+        //Moved over in one step so that a snapshot counts the client's sketches exactly once
+        snapshotLock.readLock().lock();
+        try {
+            clientConnection = clientRegistry.remove(clientID);
+            if (clientConnection != null) {
+                clientConnection.mergeSketchesInto(pastClients);
             }
+        } finally {
+            snapshotLock.readLock().unlock();
         }
+        if (clientConnection != null) {
+            clientConnection.terminateConnection();
+            SSHandler.onClientDisconnected(clientConnection.getAddress(), clientID);
+        }
+    }
+    
+    /**
+     * Drops a client whose responses can no longer be written. Terminating waits on the
+     * connection, so it runs on its own thread rather than the one whose write failed.
+     */
+    @Override
+    public void onConnectionBroken( final long clientID, final String reason ) {
         
-        
+        SSHandler.onConnectionBroken(reason);
+        Thread terminator = new Thread(() -> terminateThread(clientID), "Terminate-" + clientID);
+        terminator.setDaemon(true);
+        terminator.start();
     }
     
+    /**
+     * Answers the requests that need every client's data. Submissions are added to the
+     * {@link GlobalAggregates} by each ClientConnection directly, so nothing here takes a lock
+     * shared by all clients.
+     *
+     * @param request A request forwarded by the ClientConnection of the client that made it
+     */
     @Override
-    public synchronized void onRequestReceived( Request request ) {
+    public void onRequestReceived( Request request ) {
+        
+        ClientConnection clientConnection = clientRegistry.get(request.getId());
+        if (clientConnection == null) {
+            return;
+        }
         
-        //TODO Fill this in
+        Request response = null;
         switch (request.getTopic()) {
             case SUBMIT:
-                break;
-            case AVERAGE:
-                break;
-            case COUNT:
+            case SUBMIT_BATCH:
+                //Added to the GlobalAggregates by the ClientConnection
                 break;
             case HISTORY:
+                //Read in client ID order so that pages of the same history line up
+                HistoryPages.respond(clientConnection, request, histories(clientRegistry.inIdOrder()));
                 break;
             case USERS:
+                response = RequestFactory.serverUsersRequest(Request.Response.OK, clientRegistry.size());
                 break;
             case DISCONNECT:
+                terminateThread(request.getId());
                 break;
+            default:
+                response = answerForAll(request);
+                break;
+        }
+        
+        if (response != null) {
+            clientConnection.respondToClient(response.inReplyTo(request));
+        }
+    }
+    
+    /**
+     * Answers a query over every client's data without sending the answer, so that one answer can
+     * be pushed to every subscription to the same query
+     *
+     * @param query A query on one of the aggregates kept over every client
+     *
+     * @return The answer, not yet correlated with the query, or null if the topic is not one of
+     * those aggregates
+     */
+    @Override
+    public Request answerForAll( Request query ) {
+        
+        switch (query.getTopic()) {
+            case AVERAGE:
+                int average = globalAggregates.getAverage();
+                if (query.hasTimeRange()) {
+                    average = TimeRanges.summarize(query, histories(clientRegistry.connections())).getAverage();
+                } else if (query.hasWindow()) {
+                    average = globalAggregates.summarize(query.getWindow(), System.currentTimeMillis()).getAverage();
+                }
+                return RequestFactory.serverAverageResponse(Request.Response.OK, Request.Range.ALL, average);
+            case ROLLING_AVERAGE:
+                return RequestFactory.serverRollingAverageResponse(Request.Response.OK, Request.Range.ALL, globalAggregates.getRollingAverage(System.currentTimeMillis()));
+            case EWMA:
+                return RequestFactory.serverEwmaResponse(Request.Response.OK, Request.Range.ALL, globalAggregates.getEwma());
+            case STATS:
+                RunningStats stats = new RunningStats();
+                pastClients.getRunningStats().mergeInto(stats);
+                for (ClientConnection curClientConnection : clientRegistry.connections()) {
+                    curClientConnection.mergeStatsInto(stats);
+                }
+                return ClientConnection.statsResponse(Request.Range.ALL, stats);
+            case PERCENTILE:
+                QuantileSketch merged = new QuantileSketch();
+                pastClients.getQuantileSketch().mergeInto(merged);
+                for (ClientConnection curClientConnection : clientRegistry.connections()) {
+                    curClientConnection.mergeQuantilesInto(merged);
+                }
+                return ClientConnection.percentileResponse(query, merged);
+            case DISTINCT:
+                DistinctSketch distinct = new DistinctSketch();
+                pastClients.getDistinctSketch().mergeInto(distinct);
+                for (ClientConnection curClientConnection : clientRegistry.connections()) {
+                    curClientConnection.mergeDistinctInto(distinct);
+                }
+                return RequestFactory.serverDistinctResponse(Request.Response.OK, Request.Range.ALL, distinct.getEstimate());
+            case TOPVALUES:
+                TopValues top = new TopValues();
+                pastClients.getTopValues().mergeInto(top);
+                for (ClientConnection curClientConnection : clientRegistry.connections()) {
+                    curClientConnection.mergeTopValuesInto(top);
+                }
+                return ClientConnection.topValuesResponse(query, top);
+            case COUNT:
+                long count = globalAggregates.getCount();
+                if (query.hasTimeRange()) {
+                    count = TimeRanges.count(query, histories(clientRegistry.connections()));
+                }
+                return RequestFactory.serverCountResponse(Request.Response.OK, Request.Range.ALL, (int) Math.min(Integer.MAX_VALUE, count));
+            default:
+                return null;
         }
+    }
+    
+    private static List<IntHistory> histories( final Collection<ClientConnection> clientConnections ) {
         
+        List<IntHistory> histories = new ArrayList<>(clientConnections.size());
+        for (ClientConnection curClientConnection : clientConnections) {
+            histories.add(curClientConnection.getHistory());
+        }
+        return histories;
+    }
+    
+    /**
+     * How the Server serves its client connections
+     */
+    public enum Mode {
+        /**
+         * Blocking sockets, each {@link ClientConnection} reading on its own thread
+         */
+        THREAD_POOL,
+        /**
+         * Blocking sockets, each {@link ClientConnection} reading on its own virtual thread
+         */
+        VIRTUAL_THREAD,
+        /**
+         * Non-blocking channels multiplexed over a small set of {@link EventLoop} threads
+         */
+        SELECTOR,
     }
     
     /**
@@ -229,5 +934,10 @@ public class Server implements Runnable, ClientConnection.ClientConnectionHandle
         
         void onConnectionBroken( final String reason );
         
+        /**
+         * The chosen {@link Mode} is not available on this runtime, so the server runs another
+         */
+        void onModeUnavailable( final String reason );
+        
     }
 }
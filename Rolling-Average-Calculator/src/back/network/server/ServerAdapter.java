@@ -2,7 +2,11 @@ package back.network.server;
 
 import back.interfacing.ServerUI;
 import back.network.client.ClientAdapter;
+import back.storage.RetentionPolicy;
+import back.storage.SubmissionLog;
 
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
@@ -22,6 +26,14 @@ public class ServerAdapter implements Server.ServerHandler {
     private boolean isShuttingDown = false;
     private Server server;
     private Thread threadServer;
+    private Path submissionLogFile = null;
+    private SubmissionLog.FsyncPolicy fsyncPolicy;
+    private long fsyncIntervalMs;
+    private Path historyDirectory = null;
+    private Path snapshotFile = null;
+    private long snapshotIntervalMs;
+    private RetentionPolicy retentionPolicy;
+    private long compactionIntervalMs;
     
     private ReentrantLock stateLock;
     
@@ -36,6 +48,60 @@ public class ServerAdapter implements Server.ServerHandler {
         UIHandler = handler;
     }
     
+    /**
+     * Keep every submission in a log file so that a server spun up again on the same file starts
+     * from the aggregates it had. Applies to servers spun up after this call.
+     *
+     * @param file           The log file, created if it does not exist
+     * @param policy         When logged submissions are forced to disk
+     * @param syncIntervalMs The longest logged submissions may wait to be forced with
+     *                       {@link SubmissionLog.FsyncPolicy#INTERVAL}
+     */
+    public void setSubmissionLog( final Path file, final SubmissionLog.FsyncPolicy policy, final long syncIntervalMs ) {
+        
+        this.submissionLogFile = file;
+        this.fsyncPolicy = policy;
+        this.fsyncIntervalMs = syncIntervalMs;
+    }
+    
+    /**
+     * Keep client histories in memory-mapped files in the given directory rather than on the
+     * heap. Applies to servers spun up after this call.
+     *
+     * @param directory Where to create the segment files
+     */
+    public void setHistoryStore( final Path directory ) {
+        
+        this.historyDirectory = directory;
+    }
+    
+    /**
+     * Save the server's aggregates to a snapshot file periodically and on shutdown, so that a
+     * server spun up again restores them from the latest snapshot and replays only the part of
+     * the submission log written after it. Applies to servers spun up after this call.
+     *
+     * @param file       The snapshot file
+     * @param intervalMs How often to save a snapshot
+     */
+    public void setSnapshots( final Path file, final long intervalMs ) {
+        
+        this.snapshotFile = file;
+        this.snapshotIntervalMs = intervalMs;
+    }
+    
+    /**
+     * Compact client histories in the background, keeping older values only as time buckets.
+     * Applies to servers spun up after this call.
+     *
+     * @param policy     How long to keep values at each resolution
+     * @param intervalMs How often to compact
+     */
+    public void setRetention( final RetentionPolicy policy, final long intervalMs ) {
+        
+        this.retentionPolicy = policy;
+        this.compactionIntervalMs = intervalMs;
+    }
+    
     /**
      * Create the network server and start listening for {@link ClientAdapter}s.
      *
@@ -44,10 +110,34 @@ public class ServerAdapter implements Server.ServerHandler {
      */
     public void spinUp( final String ipAddress, final String port ) {
         
+        spinUp(ipAddress, port, Server.Mode.THREAD_POOL);
+    }
+    
+    /**
+     * Create the network server and start listening for {@link ClientAdapter}s.
+     *
+     * @param ipAddress The IPv4 or IPv6 address to create the network server.
+     * @param port      The port number to open for the network server.
+     * @param mode      How the server serves its client connections.
+     */
+    public void spinUp( final String ipAddress, final String port, final Server.Mode mode ) {
+        
         new Thread(() -> {
             stateLock = new ReentrantLock();
-            server = new Server(ipAddress, Integer.parseInt(port));
+            server = new Server(ipAddress, Integer.parseInt(port), mode);
             server.setSSHandler(this);
+            if (submissionLogFile != null) {
+                server.setSubmissionLog(submissionLogFile, fsyncPolicy, fsyncIntervalMs, TimeUnit.MILLISECONDS);
+            }
+            if (historyDirectory != null) {
+                server.setHistoryStore(historyDirectory);
+            }
+            if (snapshotFile != null) {
+                server.setSnapshots(snapshotFile, snapshotIntervalMs, TimeUnit.MILLISECONDS);
+            }
+            if (retentionPolicy != null) {
+                server.setRetention(retentionPolicy, compactionIntervalMs, TimeUnit.MILLISECONDS);
+            }
             threadServer = new Thread(server);
             threadServer.start();
             if (threadServer.isAlive()) {
@@ -179,4 +269,15 @@ public class ServerAdapter implements Server.ServerHandler {
         System.out.println(failure);
         stateLock.unlock();
     }
+    
+    @Override
+    public void onModeUnavailable( String reason ) {
+        
+        while (!stateLock.isHeldByCurrentThread()) {
+            stateLock.lock();
+        }
+        final String fallback = "SSHandler: Server mode unavailable: " + reason;
+        System.out.println(fallback);
+        stateLock.unlock();
+    }
 }
\ No newline at end of file
@@ -0,0 +1,77 @@
+package back.network.server;
+
+import back.aggregate.WindowSummary;
+import back.storage.IntHistory;
+import utility.request.Request;
+
+import java.util.Collection;
+
+/**
+ * Answers requests that only cover the values which arrived between two times. The bounds are
+ * found by binary search over each history's arrival times, so only the values in the range are
+ * read. Values a history has compacted are counted through its buckets, which are added whole
+ * where the range starts or ends inside one. Each history reads its kept values and its buckets
+ * under one lock, so a compaction running meanwhile neither counts a chunk twice nor loses it.
+ */
+final class TimeRanges {
+    
+    private TimeRanges() {
+        
+    }
+    
+    /**
+     * @return The index of the first value in the history that the request covers
+     */
+    static long first( final IntHistory history, final Request request ) {
+        
+        return request.hasSince() ? Math.min(last(history, request), history.firstIndexAt(request.getSince())) : 0;
+    }
+    
+    /**
+     * @return The index after the last value in the history that the request covers
+     */
+    static long last( final IntHistory history, final Request request ) {
+        
+        return request.hasUntil() ? history.firstIndexAt(request.getUntil()) : history.size();
+    }
+    
+    /**
+     * @param request   A request with a time range
+     * @param histories The histories to count in
+     *
+     * @return How many values arrived in the range, without reading any of them
+     */
+    static long count( final Request request, final Collection<IntHistory> histories ) {
+        
+        long count = 0;
+        for (IntHistory history : histories) {
+            count += history.countBetween(since(request), until(request));
+        }
+        return count;
+    }
+    
+    /**
+     * @param request   A request with a time range
+     * @param histories The histories to read
+     *
+     * @return The count, sum, minimum and maximum of the values that arrived in the range
+     */
+    static WindowSummary summarize( final Request request, final Collection<IntHistory> histories ) {
+        
+        final WindowSummary summary = new WindowSummary();
+        for (IntHistory history : histories) {
+            history.summarizeBetween(since(request), until(request), summary);
+        }
+        return summary;
+    }
+    
+    private static long since( final Request request ) {
+        
+        return request.hasSince() ? request.getSince() : Long.MIN_VALUE;
+    }
+    
+    private static long until( final Request request ) {
+        
+        return request.hasUntil() ? request.getUntil() : Long.MAX_VALUE;
+    }
+}
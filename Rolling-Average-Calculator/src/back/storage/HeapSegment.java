@@ -0,0 +1,78 @@
+package back.storage;
+
+import back.aggregate.IntKernels;
+import back.aggregate.WindowSummary;
+
+import java.util.function.IntConsumer;
+
+/**
+ * A {@link WritableSegment} held in a pair of primitive arrays on the heap
+ */
+final class HeapSegment extends WritableSegment {
+    
+    private final int[] values;
+    private final long[] times;
+    
+    HeapSegment( final int size ) {
+        
+        this.values = new int[size];
+        this.times = new long[size];
+    }
+    
+    @Override
+    void put( final int offset, final int value, final long timeMs ) {
+        
+        values[offset] = value;
+        times[offset] = timeMs;
+    }
+    
+    @Override
+    int value( final int offset ) {
+        
+        return values[offset];
+    }
+    
+    @Override
+    long time( final int offset ) {
+        
+        return times[offset];
+    }
+    
+    @Override
+    long sum( final int from, final int to ) {
+        
+        return IntKernels.sum(values, from, to);
+    }
+    
+    @Override
+    void summarize( final int from, final int to, final WindowSummary summary ) {
+        
+        IntKernels.summarize(values, from, to, summary);
+    }
+    
+    @Override
+    void forEach( final int from, final int to, final IntConsumer consumer ) {
+        
+        for (int i = from; i < to; ++i) {
+            consumer.accept(values[i]);
+        }
+    }
+    
+    @Override
+    void copyValues( final int from, final int[] destination, final int destinationFrom, final int length ) {
+        
+        System.arraycopy(values, from, destination, destinationFrom, length);
+    }
+    
+    @Override
+    void copyTimes( final int from, final long[] destination, final int destinationFrom, final int length ) {
+        
+        System.arraycopy(times, from, destination, destinationFrom, length);
+    }
+    
+    @Override
+    HistorySegment pack() {
+        
+        return new PackedSegment(values, times, values.length);
+    }
+}
@@ -0,0 +1,221 @@
+package back.storage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Reads ranges of many histories as one sequence ordered by arrival time, without copying them.
+ * Each history is read a chunk at a time, and the chunks' heads are k-way merged with a heap of
+ * one source per history, so reading N values from k histories costs O(N log k) and only the
+ * chunks the values come from are ever decoded. Values that arrived at the same time keep the
+ * order of the histories they came from.
+ * <p>
+ * A merge reads its histories by index, so each must hold off compaction until the merge is done.
+ */
+public final class HistoryMerge {
+    
+    private final List<Source> sources;
+    private final PriorityQueue<Source> heads;
+    private boolean isStarted = false;
+    
+    /**
+     * Creates new HistoryMerge over a range of each history
+     *
+     * @param histories The histories to merge, each already in arrival order
+     * @param from      For each history, the index of its first value to merge
+     * @param to        For each history, the index after its last value to merge
+     */
+    public HistoryMerge( final List<IntHistory> histories, final long[] from, final long[] to ) {
+        
+        this.sources = new ArrayList<>(histories.size());
+        for (int i = 0; i < histories.size(); ++i) {
+            sources.add(new Source(histories.get(i), i, from[i], Math.max(from[i], to[i])));
+        }
+        this.heads = new PriorityQueue<>(Math.max(1, sources.size()));
+    }
+    
+    /**
+     * Moves past the first values of the merged sequence without reading them. The arrival time
+     * they end at is found by binary search, counting each history's values before a time with
+     * {@link IntHistory#firstIndexAt(long)}, and the values that arrived at that very time are
+     * taken from the histories in order. Must be called before any value is read.
+     *
+     * @param count The number of values to pass over
+     */
+    public void skip( final long count ) {
+        
+        if (isStarted) {
+            throw new IllegalStateException("Values have already been read");
+        }
+        if (count <= 0) {
+            return;
+        }
+        long low = Long.MAX_VALUE;
+        long high = Long.MIN_VALUE;
+        for (Source source : sources) {
+            if (source.position < source.end) {
+                low = Math.min(low, source.history.getTime(source.position));
+                high = Math.max(high, source.history.getTime(source.end - 1));
+            }
+        }
+        if (low > high || countBefore(high) + countAt(high) <= count) {
+            for (Source source : sources) {
+                source.position = source.end;
+            }
+            return;
+        }
+        //The latest time with no more than count values before it, by whose end more than count have arrived
+        while (low < high) {
+            final long middle = low + ( high - low + 1 ) / 2;
+            if (countBefore(middle) <= count) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        long remaining = count;
+        for (Source source : sources) {
+            final long at = source.indexAt(low);
+            remaining -= at - source.position;
+            source.position = at;
+        }
+        for (Source source : sources) {
+            final long taken = Math.min(remaining, source.indexAt(low + 1) - source.position);
+            source.position += taken;
+            remaining -= taken;
+        }
+    }
+    
+    /**
+     * @return If any values are left to read
+     */
+    public boolean hasNext() {
+        
+        start();
+        return !heads.isEmpty();
+    }
+    
+    /**
+     * @param max The most values to read
+     *
+     * @return A boxed copy of the next values in arrival order, fewer than the most only once
+     * every range is read
+     */
+    public List<Integer> next( final int max ) {
+        
+        start();
+        final List<Integer> values = new ArrayList<>(Math.max(0, Math.min(max, IntHistory.READ_BLOCK_SIZE)));
+        Source source;
+        while (values.size() < max && ( source = heads.poll() ) != null) {
+            //Take every value that is still no later than the next history's head
+            final Source next = heads.peek();
+            do {
+                values.add(source.values[source.head++]);
+            } while (values.size() < max && source.head < source.length && ( next == null || source.compareTo(next) <= 0 ));
+            if (source.fill()) {
+                heads.add(source);
+            }
+        }
+        return values;
+    }
+    
+    private void start() {
+        
+        if (isStarted) {
+            return;
+        }
+        isStarted = true;
+        for (Source source : sources) {
+            if (source.fill()) {
+                heads.add(source);
+            }
+        }
+    }
+    
+    /**
+     * @return The number of values in every range that arrived before the time
+     */
+    private long countBefore( final long timeMs ) {
+        
+        long count = 0;
+        for (Source source : sources) {
+            count += source.indexAt(timeMs) - source.position;
+        }
+        return count;
+    }
+    
+    /**
+     * @return The number of values in every range that arrived at exactly the time
+     */
+    private long countAt( final long timeMs ) {
+        
+        long count = 0;
+        for (Source source : sources) {
+            count += source.indexAt(timeMs + 1) - source.indexAt(timeMs);
+        }
+        return count;
+    }
+    
+    /**
+     * The unmerged part of one history's range, with the chunk being merged copied out
+     */
+    private static class Source implements Comparable<Source> {
+        
+        private final IntHistory history;
+        private final int order;
+        private final long end;
+        private long position;
+        private int[] values;
+        private long[] times;
+        private int head = 0;
+        private int length = 0;
+        
+        private Source( final IntHistory history, final int order, final long from, final long to ) {
+            
+            this.history = history;
+            this.order = order;
+            this.position = from;
+            this.end = to;
+        }
+        
+        /**
+         * @return The index in the range of the first value that arrived at or after the time
+         */
+        private long indexAt( final long timeMs ) {
+            
+            return Math.max(position, Math.min(end, history.firstIndexAt(timeMs)));
+        }
+        
+        /**
+         * Copies out the next chunk once the current one is merged
+         *
+         * @return Validation if a value is left to merge
+         */
+        private boolean fill() {
+            
+            if (head < length) {
+                return true;
+            }
+            if (position >= end) {
+                return false;
+            }
+            if (values == null) {
+                final int capacity = (int) Math.min(IntHistory.READ_BLOCK_SIZE, end - position);
+                values = new int[capacity];
+                times = new long[capacity];
+            }
+            head = 0;
+            length = history.read(position, values, times, (int) Math.min(values.length, end - position));
+            position += length;
+            return length > 0;
+        }
+        
+        @Override
+        public int compareTo( final Source other ) {
+            
+            final int byTime = Long.compare(times[head], other.times[other.head]);
+            return byTime != 0 ? byTime : Integer.compare(order, other.order);
+        }
+    }
+}
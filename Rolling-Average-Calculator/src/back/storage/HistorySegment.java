@@ -0,0 +1,63 @@
+package back.storage;
+
+import back.aggregate.WindowSummary;
+
+import java.util.function.IntConsumer;
+
+/**
+ * A fixed number of values and their arrival times, the unit an {@link IntHistory} grows by, as
+ * read by queries. Only a {@link WritableSegment} can be appended to.
+ * Offsets are relative to the segment and are not checked beyond what the storage does.
+ */
+abstract class HistorySegment {
+    
+    abstract int value( int offset );
+    
+    abstract long time( int offset );
+    
+    /**
+     * @param timeMs The arrival time to look for
+     * @param length How many values the segment holds
+     *
+     * @return The offset of the first value that arrived at or after the time, or the length if
+     * none did
+     */
+    int firstOffsetAt( final long timeMs, final int length ) {
+        
+        int low = 0;
+        int high = length;
+        while (low < high) {
+            final int middle = ( low + high ) >>> 1;
+            if (time(middle) < timeMs) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+    
+    abstract long sum( int from, int to );
+    
+    abstract void summarize( int from, int to, WindowSummary summary );
+    
+    abstract void forEach( int from, int to, IntConsumer consumer );
+    
+    /**
+     * Copies values into an array
+     */
+    abstract void copyValues( int from, int[] destination, int destinationFrom, int length );
+    
+    /**
+     * Copies arrival times into an array
+     */
+    abstract void copyTimes( int from, long[] destination, int destinationFrom, int length );
+    
+    /**
+     * Called once the history no longer uses the segment, so any storage behind it can be
+     * reclaimed. Nothing to do for segments the garbage collector frees.
+     */
+    void release() {
+        
+    }
+}
@@ -0,0 +1,589 @@
+package back.storage;
+
+import back.aggregate.BucketSeries;
+import back.aggregate.WindowSummary;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntConsumer;
+
+/**
+ * An append-only history of int values, each with the time it arrived, stored in fixed-size
+ * primitive chunks. Appending never copies earlier values: when the last chunk is full a new one
+ * is added, and only the small tables of chunk references are ever resized. Sums and iteration
+ * run straight over the chunks without boxing.
+ * <p>
+ * Chunks are kept on the heap, or, for a history made with a {@link SegmentStore}, in segments of
+ * memory-mapped files, which lets a history grow far beyond the heap. Queries then read the mapped
+ * pages directly. If the store cannot map another file the history carries on with heap chunks.
+ * A heap chunk is packed into a compressed {@link PackedSegment} as soon as it is full, and sums
+ * and summaries over whole packed chunks come from its header without decoding it.
+ * <p>
+ * Arrival times never go backwards, so the values that arrived between two times are found by
+ * binary search with {@link #firstIndexAt(long)} rather than by scanning.
+ * <p>
+ * {@link #compact(RetentionPolicy, long)} folds whole chunks older than a
+ * {@link RetentionPolicy} keeps into time buckets and frees them. Indexes then count from the
+ * oldest value still kept, and only queries over time ranges, through
+ * {@link #summarizeCompacted(long, long, WindowSummary)}, still see the compacted values. A reader
+ * that keeps indexes across several calls, like a paged response, holds compaction off with
+ * {@link #holdCompaction()} so that they go on pointing at the same values.
+ * <p>
+ * Every method is synchronized so that one thread may append while others read.
+ */
+public class IntHistory {
+    
+    private static final int CHUNK_SHIFT = 12;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    
+    /**
+     * The most values one call to {@link #read(long, int[], long[], int)} copies
+     */
+    public static final int READ_BLOCK_SIZE = CHUNK_SIZE;
+    
+    private final SegmentStore store;
+    private HistorySegment[] chunks = new HistorySegment[4];
+    //The last chunk, until it is full
+    private WritableSegment tail = null;
+    private long size = 0;
+    private long lastTimeMs = Long.MIN_VALUE;
+    private long compactedCount = 0;
+    private long appendedSum = 0;
+    private BucketSeries[] rollups = null;
+    private int compactionHolds = 0;
+    private final Object compactionLock = new Object();
+    
+    /**
+     * Creates new IntHistory that keeps its values on the heap
+     */
+    public IntHistory() {
+        
+        this(null);
+    }
+    
+    /**
+     * Creates new IntHistory that keeps its values in memory-mapped segments
+     *
+     * @param store Where to take segments from, or null to keep the values on the heap
+     */
+    public IntHistory( final SegmentStore store ) {
+        
+        this.store = store;
+    }
+    
+    /**
+     * @param value  The value to append
+     * @param timeMs When the value arrived. A time earlier than the last one, as after the clock
+     *               is set back, is recorded as the last one.
+     */
+    public synchronized void add( final int value, final long timeMs ) {
+        
+        final int offset = (int) ( size & CHUNK_MASK );
+        if (offset == 0) {
+            addChunk();
+        }
+        final int chunkIndex = (int) ( size >>> CHUNK_SHIFT );
+        lastTimeMs = Math.max(lastTimeMs, timeMs);
+        tail.put(offset, value, lastTimeMs);
+        ++size;
+        appendedSum += value;
+        if (offset == CHUNK_MASK) {
+            chunks[chunkIndex] = tail.pack();
+            tail = null;
+        }
+    }
+    
+    /**
+     * @param values The values to append, in order
+     * @param timeMs When the values arrived
+     */
+    public synchronized void addAll( final List<Integer> values, final long timeMs ) {
+        
+        for (int i = 0; i < values.size(); ++i) {
+            add(values.get(i), timeMs);
+        }
+    }
+    
+    /**
+     * @return How many values are kept, not counting those compacted into buckets
+     */
+    public synchronized long size() {
+        
+        return size;
+    }
+    
+    /**
+     * @return How many values have ever been appended, including those compacted into buckets
+     */
+    public synchronized long getAppendedCount() {
+        
+        return compactedCount + size;
+    }
+    
+    /**
+     * @return The mean of every value ever appended, including those compacted into buckets, or 0
+     * if there are none. The count and sum change together under the history's lock, so a reader
+     * on another thread never sees half of a submission.
+     */
+    public synchronized int getAppendedAverage() {
+        
+        final long count = compactedCount + size;
+        return count == 0 ? 0 : (int) ( appendedSum / count );
+    }
+    
+    /**
+     * @param index The position of the value, starting at 0 for the oldest value kept
+     *
+     * @return The value at the index
+     *
+     * @throws IndexOutOfBoundsException If the index is not below {@link #size()}
+     */
+    public synchronized int get( final long index ) {
+        
+        checkIndex(index);
+        return chunks[(int) ( index >>> CHUNK_SHIFT )].value((int) ( index & CHUNK_MASK ));
+    }
+    
+    /**
+     * @param index The position of the value, starting at 0 for the oldest value kept
+     *
+     * @return When the value at the index arrived
+     *
+     * @throws IndexOutOfBoundsException If the index is not below {@link #size()}
+     */
+    public synchronized long getTime( final long index ) {
+        
+        checkIndex(index);
+        return chunks[(int) ( index >>> CHUNK_SHIFT )].time((int) ( index & CHUNK_MASK ));
+    }
+    
+    /**
+     * Finds where the values that arrived at or after a time start, by binary search over the
+     * chunks' last arrival times and then within the one chunk the time falls in. The values
+     * between two times are those from {@code firstIndexAt(since)} up to
+     * {@code firstIndexAt(until)}.
+     *
+     * @param timeMs The arrival time to look for
+     *
+     * @return The index of the first value that arrived at or after the time, or {@link #size()}
+     * if none did
+     */
+    public synchronized long firstIndexAt( final long timeMs ) {
+        
+        int low = 0;
+        int high = (int) ( ( size + CHUNK_MASK ) >>> CHUNK_SHIFT );
+        while (low < high) {
+            final int middle = ( low + high ) >>> 1;
+            if (chunks[middle].time(chunkLength(middle) - 1) < timeMs) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        if ((long) low << CHUNK_SHIFT >= size) {
+            return size;
+        }
+        return ( (long) low << CHUNK_SHIFT ) + chunks[low].firstOffsetAt(timeMs, chunkLength(low));
+    }
+    
+    /**
+     * @return The sum of every value, without overflow
+     */
+    public synchronized long sum() {
+        
+        long sum = 0;
+        for (long start = 0; start < size; start += CHUNK_SIZE) {
+            sum += chunks[(int) ( start >>> CHUNK_SHIFT )].sum(0, (int) Math.min(CHUNK_SIZE, size - start));
+        }
+        return sum;
+    }
+    
+    /**
+     * @return The count, sum, minimum and maximum of every value
+     */
+    public synchronized WindowSummary summarize() {
+        
+        final WindowSummary summary = new WindowSummary();
+        for (long start = 0; start < size; start += CHUNK_SIZE) {
+            chunks[(int) ( start >>> CHUNK_SHIFT )].summarize(0, (int) Math.min(CHUNK_SIZE, size - start), summary);
+        }
+        return summary;
+    }
+    
+    /**
+     * Adds the count, sum, minimum and maximum of a range of values to a summary
+     *
+     * @param from    The index of the first value to include
+     * @param to      The index after the last value to include
+     * @param summary The summary to add to, which may already hold other values
+     */
+    public synchronized void summarize( final long from, final long to, final WindowSummary summary ) {
+        
+        long index = Math.max(0, from);
+        final long end = Math.min(size, to);
+        while (index < end) {
+            final int offset = (int) ( index & CHUNK_MASK );
+            final int length = (int) Math.min(CHUNK_SIZE - offset, end - index);
+            chunks[(int) ( index >>> CHUNK_SHIFT )].summarize(offset, offset + length, summary);
+            index += length;
+        }
+    }
+    
+    /**
+     * Adds every compacted bucket that overlaps a span of time to a summary. A bucket only partly
+     * inside the span is added whole. Together with {@link #summarize(long, long, WindowSummary)}
+     * over {@code firstIndexAt(since)} to {@code firstIndexAt(until)} this covers every value that
+     * arrived in the span, none twice.
+     *
+     * @param sinceMs The start of the span
+     * @param untilMs The end of the span, exclusive
+     * @param summary The summary to add to, which may already hold other values
+     */
+    public synchronized void summarizeCompacted( final long sinceMs, final long untilMs, final WindowSummary summary ) {
+        
+        if (rollups == null) {
+            return;
+        }
+        for (BucketSeries level : rollups) {
+            level.summarize(sinceMs, untilMs, summary);
+        }
+    }
+    
+    /**
+     * Adds every value that arrived in a span of time to a summary: the values still kept, found
+     * by binary search, and the compacted buckets that overlap the span. Both are read under one
+     * lock, so a compaction cannot move values from one to the other in between.
+     *
+     * @param sinceMs The start of the span
+     * @param untilMs The end of the span, exclusive
+     * @param summary The summary to add to, which may already hold other values
+     */
+    public synchronized void summarizeBetween( final long sinceMs, final long untilMs, final WindowSummary summary ) {
+        
+        final long to = firstIndexAt(untilMs);
+        summarize(Math.min(to, firstIndexAt(sinceMs)), to, summary);
+        summarizeCompacted(sinceMs, untilMs, summary);
+    }
+    
+    /**
+     * Counts every value that arrived in a span of time as {@link #summarizeBetween} does, without
+     * reading any of the values still kept
+     *
+     * @param sinceMs The start of the span
+     * @param untilMs The end of the span, exclusive
+     *
+     * @return How many values arrived in the span
+     */
+    public synchronized long countBetween( final long sinceMs, final long untilMs ) {
+        
+        final WindowSummary compacted = new WindowSummary();
+        summarizeCompacted(sinceMs, untilMs, compacted);
+        return Math.max(0, firstIndexAt(untilMs) - firstIndexAt(sinceMs)) + compacted.getCount();
+    }
+    
+    /**
+     * Folds every whole chunk of values older than the policy's raw age into its finest buckets,
+     * moves buckets past each level's age on to the next level, and frees the chunks. Appends and
+     * queries are only held off while references are taken and the chunk tables shifted; the
+     * values are read into buckets outside the lock, since full chunks are never written again.
+     * Values in the chunk still being appended to are kept until it fills, whatever their age.
+     * Nothing is compacted while a reader holds compaction off; the next call catches up.
+     *
+     * @param policy What to keep, the same on every call for one history
+     * @param nowMs  The time ages are measured back from
+     */
+    public void compact( final RetentionPolicy policy, final long nowMs ) {
+        
+        synchronized (compactionLock) {
+            final HistorySegment[] expired;
+            synchronized (this) {
+                if (compactionHolds > 0) {
+                    return;
+                }
+                final int expiredChunks = (int) ( firstIndexAt(nowMs - policy.getRawMs()) >>> CHUNK_SHIFT );
+                expired = Arrays.copyOf(chunks, expiredChunks);
+            }
+            
+            final BucketSeries rolledUp = policy.getLevelCount() == 0 ? null : new BucketSeries(policy.getWidthMs(0));
+            if (rolledUp != null) {
+                for (HistorySegment chunk : expired) {
+                    rollUp(chunk, rolledUp);
+                }
+            }
+            
+            synchronized (this) {
+                //A reader may have taken indexes while the chunks were rolled up
+                if (compactionHolds > 0) {
+                    return;
+                }
+                dropChunks(expired.length);
+                if (rollups == null) {
+                    rollups = new BucketSeries[policy.getLevelCount()];
+                    for (int level = 0; level < rollups.length; ++level) {
+                        rollups[level] = new BucketSeries(policy.getWidthMs(level));
+                    }
+                }
+                if (rolledUp != null) {
+                    rolledUp.moveAll(rollups[0]);
+                }
+                for (int level = 0; level < rollups.length; ++level) {
+                    if (policy.getKeepMs(level) != RetentionPolicy.FOREVER) {
+                        final BucketSeries next = level + 1 < rollups.length ? rollups[level + 1] : null;
+                        rollups[level].moveBefore(nowMs - policy.getKeepMs(level), next);
+                    }
+                }
+            }
+            for (HistorySegment chunk : expired) {
+                chunk.release();
+            }
+        }
+    }
+    
+    /**
+     * Stops {@link #compact} from dropping values until {@link #releaseCompaction()} is called as
+     * many times, so that indexes taken meanwhile keep pointing at the same values
+     */
+    public synchronized void holdCompaction() {
+        
+        ++compactionHolds;
+    }
+    
+    /**
+     * Undoes one {@link #holdCompaction()}
+     */
+    public synchronized void releaseCompaction() {
+        
+        if (compactionHolds == 0) {
+            throw new IllegalStateException("Compaction is not held");
+        }
+        --compactionHolds;
+    }
+    
+    /**
+     * Passes every value, oldest first, to the consumer. The history is locked throughout, so the
+     * consumer should not block.
+     *
+     * @param consumer Receives each value
+     */
+    public synchronized void forEach( final IntConsumer consumer ) {
+        
+        for (long start = 0; start < size; start += CHUNK_SIZE) {
+            chunks[(int) ( start >>> CHUNK_SHIFT )].forEach(0, (int) Math.min(CHUNK_SIZE, size - start), consumer);
+        }
+    }
+    
+    /**
+     * @return A boxed copy of every value, for building responses
+     */
+    public synchronized List<Integer> toList() {
+        
+        return toList(0, size);
+    }
+    
+    /**
+     * @param from The index of the first value to copy
+     * @param to   The index after the last value to copy
+     *
+     * @return A boxed copy of the values in the range, clamped to the history
+     */
+    public synchronized List<Integer> toList( final long from, final long to ) {
+        
+        final long start = Math.max(0, from);
+        final long end = Math.min(size, to);
+        final List<Integer> values = new ArrayList<>((int) Math.max(0, end - start));
+        final int[] scratch = new int[(int) Math.min(CHUNK_SIZE, Math.max(0, end - start))];
+        long index = start;
+        while (index < end) {
+            final int offset = (int) ( index & CHUNK_MASK );
+            final int length = (int) Math.min(CHUNK_SIZE - offset, end - index);
+            chunks[(int) ( index >>> CHUNK_SHIFT )].copyValues(offset, scratch, 0, length);
+            for (int i = 0; i < length; ++i) {
+                values.add(scratch[i]);
+            }
+            index += length;
+        }
+        return values;
+    }
+    
+    /**
+     * Reads a range in pieces, as for a streamed response. Unlike calling {@link #toList(long,
+     * long)} for each piece, the cursor decodes each packed chunk once, however small the pieces.
+     * Compaction should be held off while it is read, as the range is kept as indexes.
+     *
+     * @param from The index of the first value to read
+     * @param to   The index after the last value to read
+     *
+     * @return A cursor over the range, clamped to the history
+     */
+    public synchronized Cursor cursor( final long from, final long to ) {
+        
+        return new Cursor(Math.max(0, from), Math.min(size, to));
+    }
+    
+    /**
+     * Copies values and their arrival times into arrays, as for merging histories by time. The
+     * copy stops at the end of the chunk holding the first index, so that reading a history a
+     * chunk at a time decodes each packed chunk once.
+     *
+     * @param from   The index of the first value to copy
+     * @param values The array to copy the values into, from its start
+     * @param times  The array to copy the times into, from its start
+     * @param length The most values to copy, at most {@link #READ_BLOCK_SIZE}
+     *
+     * @return The number of values copied, zero once the index is past the end of the history
+     */
+    public synchronized int read( final long from, final int[] values, final long[] times, final int length ) {
+        
+        if (from < 0 || from >= size) {
+            return 0;
+        }
+        final int offset = (int) ( from & CHUNK_MASK );
+        final int count = (int) Math.min(Math.min(CHUNK_SIZE - offset, size - from), Math.max(0, length));
+        final HistorySegment chunk = chunks[(int) ( from >>> CHUNK_SHIFT )];
+        chunk.copyValues(offset, values, 0, count);
+        chunk.copyTimes(offset, times, 0, count);
+        return count;
+    }
+    
+    private void checkIndex( final long index ) {
+        
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+    }
+    
+    /**
+     * Adds a full chunk to buckets, one call per run of values in the same bucket. A chunk that
+     * falls in one bucket is added from its summary, which a packed chunk has without decoding.
+     */
+    private static void rollUp( final HistorySegment chunk, final BucketSeries buckets ) {
+        
+        long bucketStart = buckets.alignDown(chunk.time(0));
+        if (bucketStart == buckets.alignDown(chunk.time(CHUNK_SIZE - 1))) {
+            final WindowSummary summary = new WindowSummary();
+            chunk.summarize(0, CHUNK_SIZE, summary);
+            buckets.add(summary.getCount(), summary.getSum(), summary.getMin(), summary.getMax(), bucketStart);
+            return;
+        }
+        final int[] values = new int[CHUNK_SIZE];
+        final long[] times = new long[CHUNK_SIZE];
+        chunk.copyValues(0, values, 0, CHUNK_SIZE);
+        chunk.copyTimes(0, times, 0, CHUNK_SIZE);
+        long count = 0;
+        long sum = 0;
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        for (int offset = 0; offset < CHUNK_SIZE; ++offset) {
+            final long start = buckets.alignDown(times[offset]);
+            if (start != bucketStart) {
+                buckets.add(count, sum, min, max, bucketStart);
+                bucketStart = start;
+                count = 0;
+                sum = 0;
+                min = Integer.MAX_VALUE;
+                max = Integer.MIN_VALUE;
+            }
+            final int value = values[offset];
+            ++count;
+            sum += value;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+        buckets.add(count, sum, min, max, bucketStart);
+    }
+    
+    /**
+     * @return How many values the chunk at the index holds
+     */
+    private int chunkLength( final int chunkIndex ) {
+        
+        return (int) Math.min(CHUNK_SIZE, size - ( (long) chunkIndex << CHUNK_SHIFT ));
+    }
+    
+    /**
+     * Forgets the oldest chunks, shifting the rest down
+     */
+    private void dropChunks( final int count ) {
+        
+        if (count == 0) {
+            return;
+        }
+        final int remaining = chunks.length - count;
+        System.arraycopy(chunks, count, chunks, 0, remaining);
+        Arrays.fill(chunks, remaining, chunks.length, null);
+        size -= (long) count << CHUNK_SHIFT;
+        compactedCount += (long) count << CHUNK_SHIFT;
+    }
+    
+    private void addChunk() {
+        
+        final int chunkIndex = (int) ( size >>> CHUNK_SHIFT );
+        if (chunkIndex == chunks.length) {
+            chunks = Arrays.copyOf(chunks, chunks.length * 2);
+        }
+        WritableSegment chunk = store == null ? null : store.allocate(CHUNK_SIZE);
+        if (chunk == null) {
+            chunk = new HeapSegment(CHUNK_SIZE);
+        }
+        chunks[chunkIndex] = chunk;
+        tail = chunk;
+    }
+    
+    /**
+     * Reads a range of a history in order, keeping the chunk it is in decoded between calls.
+     * A cursor is meant for one thread at a time.
+     */
+    public final class Cursor {
+        
+        private final int[] decoded = new int[CHUNK_SIZE];
+        private long decodedChunk = -1;
+        private int decodedLength = 0;
+        private long position;
+        private final long end;
+        
+        private Cursor( final long position, final long end ) {
+            
+            this.position = position;
+            this.end = end;
+        }
+        
+        /**
+         * @return If any values in the range are left to read
+         */
+        public boolean hasNext() {
+            
+            return position < end;
+        }
+        
+        /**
+         * @param max The most values to read
+         *
+         * @return A boxed copy of the next values, empty once the range is read
+         */
+        public List<Integer> next( final int max ) {
+            
+            synchronized (IntHistory.this) {
+                final long stop = Math.min(Math.min(end, size), position + Math.max(0, max));
+                final List<Integer> values = new ArrayList<>((int) Math.max(0, stop - position));
+                while (position < stop) {
+                    final long chunkIndex = position >>> CHUNK_SHIFT;
+                    final int offset = (int) ( position & CHUNK_MASK );
+                    final int length = (int) Math.min(CHUNK_SIZE - offset, stop - position);
+                    if (chunkIndex != decodedChunk || offset + length > decodedLength) {
+                        //Decode as far into the chunk as the range goes, so later calls reuse it
+                        decodedChunk = chunkIndex;
+                        decodedLength = (int) Math.min(CHUNK_SIZE, Math.min(end, size) - ( chunkIndex << CHUNK_SHIFT ));
+                        chunks[(int) chunkIndex].copyValues(0, decoded, 0, decodedLength);
+                    }
+                    for (int i = offset; i < offset + length; ++i) {
+                        values.add(decoded[i]);
+                    }
+                    position += length;
+                }
+                return values;
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package back.storage;
+
+import back.aggregate.IntKernels;
+import back.aggregate.WindowSummary;
+
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.file.Path;
+import java.util.function.IntConsumer;
+
+/**
+ * A {@link WritableSegment} held in a slice of a memory-mapped file, as a run of packed ints
+ * followed by a run of packed longs. Reads and writes go straight to the mapped pages, so the
+ * values take no heap beyond the two buffer views.
+ */
+final class MappedSegment extends WritableSegment {
+    
+    private final IntBuffer values;
+    private final LongBuffer times;
+    private final SegmentStore store;
+    private final Path file;
+    
+    /**
+     * @param values A view over the values, only ever read and written at absolute offsets
+     * @param times  A view over the times, only ever read and written at absolute offsets
+     * @param store  The store the segment was allocated from
+     * @param file   The file the segment was carved from
+     */
+    MappedSegment( final IntBuffer values, final LongBuffer times, final SegmentStore store, final Path file ) {
+        
+        this.values = values;
+        this.times = times;
+        this.store = store;
+        this.file = file;
+    }
+    
+    @Override
+    void put( final int offset, final int value, final long timeMs ) {
+        
+        values.put(offset, value);
+        times.put(offset, timeMs);
+    }
+    
+    @Override
+    int value( final int offset ) {
+        
+        return values.get(offset);
+    }
+    
+    @Override
+    long time( final int offset ) {
+        
+        return times.get(offset);
+    }
+    
+    @Override
+    long sum( final int from, final int to ) {
+        
+        return IntKernels.sum(values, from, to);
+    }
+    
+    @Override
+    void summarize( final int from, final int to, final WindowSummary summary ) {
+        
+        IntKernels.summarize(values, from, to, summary);
+    }
+    
+    @Override
+    void forEach( final int from, final int to, final IntConsumer consumer ) {
+        
+        for (int i = from; i < to; ++i) {
+            consumer.accept(values.get(i));
+        }
+    }
+    
+    @Override
+    void copyValues( final int from, final int[] destination, final int destinationFrom, final int length ) {
+        
+        final IntBuffer view = values.duplicate();
+        view.position(from);
+        view.get(destination, destinationFrom, length);
+    }
+    
+    @Override
+    void copyTimes( final int from, final long[] destination, final int destinationFrom, final int length ) {
+        
+        final LongBuffer view = times.duplicate();
+        view.position(from);
+        view.get(destination, destinationFrom, length);
+    }
+    
+    @Override
+    void release() {
+        
+        store.release(file);
+    }
+}
@@ -0,0 +1,99 @@
+package back.storage;
+
+import back.aggregate.IntKernels;
+import back.aggregate.WindowSummary;
+import utility.request.HistoryBlock;
+
+import java.nio.ByteBuffer;
+import java.util.function.IntConsumer;
+
+/**
+ * A full {@link HistorySegment} compressed into a {@link HistoryBlock}, usually a few bytes per
+ * value instead of twelve. The block header answers sums and summaries over the whole segment,
+ * so only ranges that start or end inside it are decoded. A packed segment is only ever made from
+ * a full one, so it has nothing to write.
+ */
+final class PackedSegment extends HistorySegment {
+    
+    private final HistoryBlock block;
+    
+    /**
+     * @param values The values to pack
+     * @param times  The arrival time of each value
+     * @param length How many values to pack, from the start of the arrays
+     */
+    PackedSegment( final int[] values, final long[] times, final int length ) {
+        
+        final HistoryBlock.Encoding encoding = HistoryBlock.encode(values, times, 0, length);
+        final ByteBuffer buffer = ByteBuffer.allocate(encoding.length());
+        encoding.write(buffer);
+        buffer.flip();
+        this.block = HistoryBlock.read(buffer);
+    }
+    
+    @Override
+    int value( final int offset ) {
+        
+        return block.value(offset);
+    }
+    
+    @Override
+    long time( final int offset ) {
+        
+        return block.time(offset);
+    }
+    
+    @Override
+    int firstOffsetAt( final long timeMs, final int length ) {
+        
+        return Math.min(length, block.firstIndexAt(timeMs));
+    }
+    
+    @Override
+    long sum( final int from, final int to ) {
+        
+        if (from == 0 && to == block.getCount()) {
+            return block.getSum();
+        }
+        return IntKernels.sum(decode(from, to), 0, to - from);
+    }
+    
+    @Override
+    void summarize( final int from, final int to, final WindowSummary summary ) {
+        
+        if (from == 0 && to == block.getCount()) {
+            if (to > 0) {
+                summary.add(to, block.getSum(), block.getMin(), block.getMax());
+            }
+            return;
+        }
+        IntKernels.summarize(decode(from, to), 0, to - from, summary);
+    }
+    
+    @Override
+    void forEach( final int from, final int to, final IntConsumer consumer ) {
+        
+        for (int value : decode(from, to)) {
+            consumer.accept(value);
+        }
+    }
+    
+    @Override
+    void copyValues( final int from, final int[] destination, final int destinationFrom, final int length ) {
+        
+        block.copyValues(from, destination, destinationFrom, length);
+    }
+    
+    @Override
+    void copyTimes( final int from, final long[] destination, final int destinationFrom, final int length ) {
+        
+        block.copyTimes(from, destination, destinationFrom, length);
+    }
+    
+    private int[] decode( final int from, final int to ) {
+        
+        final int[] values = new int[Math.max(0, to - from)];
+        block.copyValues(from, values, 0, values.length);
+        return values;
+    }
+}
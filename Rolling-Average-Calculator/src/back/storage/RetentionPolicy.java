@@ -0,0 +1,122 @@
+package back.storage;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long an {@link IntHistory} keeps its values at each resolution: every value for a while,
+ * then only the count, sum, minimum and maximum of fixed-width buckets, each level coarser than
+ * the one before. Ages are measured back from the time of compaction, so
+ * <pre>
+ * RetentionPolicy.keepRaw(1, TimeUnit.DAYS)
+ *         .thenRollUp(1, TimeUnit.MINUTES, 30, TimeUnit.DAYS)
+ *         .thenRollUp(1, TimeUnit.HOURS, RetentionPolicy.FOREVER, TimeUnit.MILLISECONDS)
+ * </pre>
+ * keeps a day of values, then minute buckets until they are 30 days old, then hourly buckets for
+ * good. Buckets older than the last level keeps are dropped, as are values older than the raw age
+ * when there are no levels at all.
+ * <p>
+ * Policies are immutable; {@link #thenRollUp} returns a new one.
+ */
+public final class RetentionPolicy {
+    
+    /**
+     * The age of a level that keeps its buckets for good
+     */
+    public static final long FOREVER = Long.MAX_VALUE;
+    
+    private final long rawMs;
+    private final long[] widthsMs;
+    private final long[] keepsMs;
+    
+    private RetentionPolicy( final long rawMs, final long[] widthsMs, final long[] keepsMs ) {
+        
+        this.rawMs = rawMs;
+        this.widthsMs = widthsMs;
+        this.keepsMs = keepsMs;
+    }
+    
+    /**
+     * @param age  How long to keep every value
+     * @param unit The unit of the age
+     *
+     * @return A policy that drops values older than the age, until levels are added
+     */
+    public static RetentionPolicy keepRaw( final long age, final TimeUnit unit ) {
+        
+        final long rawMs = unit.toMillis(age);
+        if (rawMs <= 0) {
+            throw new IllegalArgumentException("Raw age must be positive: " + rawMs + "ms");
+        }
+        return new RetentionPolicy(rawMs, new long[0], new long[0]);
+    }
+    
+    /**
+     * @param width     The span of each bucket, a whole multiple of the previous level's
+     * @param widthUnit The unit of the width
+     * @param age       How old buckets get before moving to the next level, or {@link #FOREVER}
+     * @param ageUnit   The unit of the age
+     *
+     * @return This policy with one more level
+     *
+     * @throws IllegalArgumentException If the previous level already keeps buckets forever, or
+     *                                  the level is not coarser and longer-lived than the previous
+     */
+    public RetentionPolicy thenRollUp( final long width, final TimeUnit widthUnit, final long age, final TimeUnit ageUnit ) {
+        
+        final int levels = widthsMs.length;
+        final long widthMs = widthUnit.toMillis(width);
+        final long keepMs = age == FOREVER ? FOREVER : ageUnit.toMillis(age);
+        final long previousKeepMs = levels == 0 ? rawMs : keepsMs[levels - 1];
+        if (previousKeepMs == FOREVER) {
+            throw new IllegalArgumentException("The previous level keeps its buckets forever");
+        }
+        if (widthMs <= 0 || ( levels > 0 && widthMs % widthsMs[levels - 1] != 0 )) {
+            throw new IllegalArgumentException("Bucket width must be a positive multiple of the previous one: " + widthMs + "ms");
+        }
+        if (keepMs < previousKeepMs) {
+            throw new IllegalArgumentException("Buckets must be kept at least as long as the previous level: " + keepMs + "ms");
+        }
+        final long[] widths = Arrays.copyOf(widthsMs, levels + 1);
+        final long[] keeps = Arrays.copyOf(keepsMs, levels + 1);
+        widths[levels] = widthMs;
+        keeps[levels] = keepMs;
+        return new RetentionPolicy(rawMs, widths, keeps);
+    }
+    
+    /**
+     * @return How long every value is kept
+     */
+    public long getRawMs() {
+        
+        return rawMs;
+    }
+    
+    /**
+     * @return How many levels of buckets the policy keeps
+     */
+    public int getLevelCount() {
+        
+        return widthsMs.length;
+    }
+    
+    /**
+     * @param level The level, starting at 0 for the finest
+     *
+     * @return The span of each bucket in the level
+     */
+    public long getWidthMs( final int level ) {
+        
+        return widthsMs[level];
+    }
+    
+    /**
+     * @param level The level, starting at 0 for the finest
+     *
+     * @return How old buckets in the level get before moving on, or {@link #FOREVER}
+     */
+    public long getKeepMs( final int level ) {
+        
+        return keepsMs[level];
+    }
+}
@@ -0,0 +1,182 @@
+package back.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Hands out history segments carved from memory-mapped files, so that histories can grow far
+ * beyond the heap. Each file holds {@link #SEGMENTS_PER_FILE} segments and is mapped once when the
+ * previous file is used up; the segments of many histories share a file. The operating system
+ * pages the files in and out as they are read, and the garbage collector never sees the values.
+ * <p>
+ * The files are scratch space for the running server rather than a durable copy, which is the
+ * job of the {@link SubmissionLog}. A file is deleted once every segment in it has been released
+ * by compaction, and the rest when the store is closed, although the mappings, and so the disk
+ * space, are only freed once the histories using them are gone.
+ * <p>
+ * Every method may be called from any thread.
+ */
+public class SegmentStore implements Closeable {
+    
+    /**
+     * How many segments each file is divided into
+     */
+    public static final int SEGMENTS_PER_FILE = 256;
+    
+    private final Path directory;
+    private final Map<Path, Integer> liveSegments = new HashMap<>();
+    private Path currentFile = null;
+    private MappedByteBuffer current = null;
+    private int segmentSize = 0;
+    private int segmentsLeft = 0;
+    private long mappedBytes = 0;
+    private boolean isClosed = false;
+    
+    private SegmentStore( final Path directory ) {
+        
+        this.directory = directory;
+    }
+    
+    /**
+     * @param directory Where to create the segment files, created if it does not exist
+     *
+     * @return An empty store
+     *
+     * @throws IOException If the directory cannot be created
+     */
+    public static SegmentStore open( final Path directory ) throws IOException {
+        
+        Files.createDirectories(directory);
+        return new SegmentStore(directory);
+    }
+    
+    /**
+     * @return How many bytes of segment files have been mapped so far
+     */
+    public synchronized long getMappedBytes() {
+        
+        return mappedBytes;
+    }
+    
+    /**
+     * Deletes the segment files. Histories already using them keep working.
+     */
+    @Override
+    public synchronized void close() {
+        
+        isClosed = true;
+        current = null;
+        currentFile = null;
+        for (Path file : liveSegments.keySet()) {
+            delete(file);
+        }
+        liveSegments.clear();
+    }
+    
+    /**
+     * @param size How many values the segment holds, the same for every call
+     *
+     * @return A new mapped segment, or null if no more files can be mapped, in which case the
+     * history should keep the values on the heap instead
+     */
+    synchronized WritableSegment allocate( final int size ) {
+        
+        if (isClosed) {
+            return null;
+        }
+        if (segmentsLeft == 0 || size != segmentSize) {
+            try {
+                mapFile(size);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+        final int bytes = bytesPerSegment(size);
+        final int start = ( SEGMENTS_PER_FILE - segmentsLeft ) * bytes;
+        --segmentsLeft;
+        liveSegments.merge(currentFile, 1, Integer::sum);
+        final IntBuffer values = slice(start, size * Integer.BYTES).asIntBuffer();
+        final LongBuffer times = slice(start + size * Integer.BYTES, size * Long.BYTES).asLongBuffer();
+        return new MappedSegment(values, times, this, currentFile);
+    }
+    
+    /**
+     * Deletes a file once none of its segments are used and no more will be handed out from it
+     *
+     * @param file The file the released segment was carved from
+     */
+    synchronized void release( final Path file ) {
+        
+        final Integer live = liveSegments.get(file);
+        if (live == null) {
+            return;
+        }
+        if (live > 1) {
+            liveSegments.put(file, live - 1);
+            return;
+        }
+        liveSegments.put(file, 0);
+        if (!file.equals(currentFile)) {
+            liveSegments.remove(file);
+            delete(file);
+        }
+    }
+    
+    private ByteBuffer slice( final int start, final int length ) {
+        
+        final ByteBuffer view = current.duplicate();
+        view.position(start);
+        view.limit(start + length);
+        return view.slice().order(ByteOrder.nativeOrder());
+    }
+    
+    private void mapFile( final int size ) throws IOException {
+        
+        //A unique name, so stores sharing a directory never map each other's files
+        final Path file = Files.createTempFile(directory, "segments-", ".dat");
+        final long length = (long) SEGMENTS_PER_FILE * bytesPerSegment(size);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            //The mapping outlives the channel
+            current = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+        } catch (IOException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+        if (currentFile != null && liveSegments.get(currentFile) == 0) {
+            //Every segment of the previous file was released before it was used up
+            liveSegments.remove(currentFile);
+            delete(currentFile);
+        }
+        liveSegments.put(file, 0);
+        currentFile = file;
+        mappedBytes += length;
+        segmentSize = size;
+        segmentsLeft = SEGMENTS_PER_FILE;
+    }
+    
+    private static void delete( final Path file ) {
+        
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            //Still mapped on platforms that lock mapped files; left for the operator
+        }
+    }
+    
+    private static int bytesPerSegment( final int size ) {
+        
+        return size * ( Integer.BYTES + Long.BYTES );
+    }
+}
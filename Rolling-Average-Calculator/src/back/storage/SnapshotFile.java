@@ -0,0 +1,132 @@
+package back.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * A saved copy of the server's aggregates together with the position in the
+ * {@link SubmissionLog} they are complete up to, so that a restart restores them and only
+ * replays the records after that position instead of the whole log.
+ * <p>
+ * The state is written to a temporary file in the same directory, forced to disk and then
+ * renamed over the previous snapshot, so a crash while saving leaves the previous snapshot in
+ * place. A CRC32 over the whole file catches a snapshot that was damaged some other way.
+ */
+public class SnapshotFile {
+    
+    /**
+     * The log position of a snapshot taken without a submission log
+     */
+    public static final long NO_LOG = -1;
+    
+    private static final int MAGIC = 0x52414353;
+    private static final byte VERSION = 2;
+    private static final int HEADER_SIZE = Integer.BYTES + 1 + Long.BYTES + Integer.BYTES;
+    
+    private final long logPosition;
+    private final byte[] state;
+    
+    private SnapshotFile( final long logPosition, final byte[] state ) {
+        
+        this.logPosition = logPosition;
+        this.state = state;
+    }
+    
+    /**
+     * Replaces the snapshot in the file, if any, with a new one
+     *
+     * @param file        The snapshot file
+     * @param logPosition The position in the submission log the state is complete up to, or
+     *                    {@link #NO_LOG}
+     * @param state       The aggregates, in whatever form the caller reads them back
+     *
+     * @throws IOException If the snapshot cannot be written, in which case the previous one is
+     *                     left as it was
+     */
+    public static void write( final Path file, final long logPosition, final byte[] state ) throws IOException {
+        
+        final ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + state.length + Integer.BYTES);
+        buffer.putInt(MAGIC).put(VERSION).putLong(logPosition).putInt(state.length).put(state);
+        buffer.putInt(checksum(buffer.array(), buffer.position()));
+        buffer.flip();
+        
+        final Path directory = file.toAbsolutePath().getParent();
+        final Path temporary = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(true);
+            }
+            Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+    
+    /**
+     * @param file The snapshot file
+     *
+     * @return The snapshot in the file, or null if there is none
+     *
+     * @throws IOException If the file cannot be read or does not hold a whole snapshot
+     */
+    public static SnapshotFile read( final Path file ) throws IOException {
+        
+        final byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(file);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (bytes.length < HEADER_SIZE + Integer.BYTES || buffer.getInt() != MAGIC || buffer.get() != VERSION) {
+            throw new IOException("Not a snapshot");
+        }
+        final long logPosition = buffer.getLong();
+        final int length = buffer.getInt();
+        if (length != bytes.length - HEADER_SIZE - Integer.BYTES) {
+            throw new IOException("Snapshot is cut short");
+        }
+        if (checksum(bytes, bytes.length - Integer.BYTES) != buffer.getInt(bytes.length - Integer.BYTES)) {
+            throw new IOException("Snapshot is damaged");
+        }
+        final byte[] state = new byte[length];
+        buffer.get(state);
+        return new SnapshotFile(logPosition, state);
+    }
+    
+    /**
+     * @return The position in the submission log to replay from, or {@link #NO_LOG}
+     */
+    public long getLogPosition() {
+        
+        return logPosition;
+    }
+    
+    /**
+     * @return The aggregates, to read in the order they were written
+     */
+    public DataInput getState() {
+        
+        return new DataInputStream(new ByteArrayInputStream(state));
+    }
+    
+    private static int checksum( final byte[] bytes, final int length ) {
+        
+        final CRC32 crc = new CRC32();
+        crc.update(bytes, 0, length);
+        return (int) crc.getValue();
+    }
+}
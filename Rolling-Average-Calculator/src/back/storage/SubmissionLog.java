@@ -0,0 +1,515 @@
+package back.storage;
+
+import utility.request.WireFormat;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of every submission, so the server can rebuild its aggregates after a
+ * restart. Each record holds the client ID, the arrival time and the values, as varints, and is
+ * followed by a CRC32 so that a record torn by a crash is found and cut off when the log is next
+ * opened.
+ * <p>
+ * Appending only queues the record. One writer thread takes everything queued since its last
+ * write and writes it through the {@link FileChannel} at once, so submissions arriving while a
+ * write or fsync is in progress are committed together in the next one. How often the file is
+ * forced to disk is set by the {@link FsyncPolicy}.
+ * <p>
+ * A {@link #checkpoint()} marks the position a {@link SnapshotFile} of the aggregates is complete
+ * up to, and the log can be opened to replay only what follows such a position.
+ * <p>
+ * Every method may be called from any thread.
+ */
+public class SubmissionLog implements Closeable {
+    
+    private static final int MAGIC = 0x5241434C;
+    private static final byte VERSION = 1;
+    private static final int HEADER_SIZE = Integer.BYTES + 1;
+    private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final Record CLOSE = new Record(0, 0, new int[0], null, false);
+    
+    private final FileChannel channel;
+    private final FsyncPolicy policy;
+    private final long syncIntervalMs;
+    private final BlockingQueue<Record> pending = new LinkedBlockingQueue<>();
+    private final Thread writerThread;
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer writeBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    //Only touched by the writer thread once it has started
+    private long position = 0;
+    private volatile boolean isClosed = false;
+    private volatile IOException failure = null;
+    
+    private SubmissionLog( final FileChannel channel, final FsyncPolicy policy, final long syncIntervalMs ) {
+        
+        this.channel = channel;
+        this.policy = policy;
+        this.syncIntervalMs = Math.max(1, syncIntervalMs);
+        this.writerThread = new Thread(this::writeLoop, "SubmissionLog-writer");
+        this.writerThread.setDaemon(true);
+    }
+    
+    /**
+     * Opens the log, creating it if it does not exist, and replays every record in it before
+     * anything new can be appended. A torn record at the end, left by a crash during a write, is
+     * cut off along with anything after it.
+     *
+     * @param file           The log file
+     * @param policy         When appended records are forced to disk
+     * @param syncIntervalMs The longest unforced records may wait with {@link FsyncPolicy#INTERVAL}
+     * @param handler        Receives every record already in the log, oldest first
+     *
+     * @return The log, ready to append to
+     *
+     * @throws IOException If the file cannot be opened or is not a submission log
+     */
+    public static SubmissionLog open( final Path file, final FsyncPolicy policy, final long syncIntervalMs, final ReplayHandler handler ) throws IOException {
+        
+        return open(file, policy, syncIntervalMs, 0, handler);
+    }
+    
+    /**
+     * Opens the log like {@link #open(Path, FsyncPolicy, long, ReplayHandler)}, but only replays
+     * the records from a position returned by {@link #commit()} or {@link #checkpoint()} onwards.
+     *
+     * @param file           The log file
+     * @param policy         When appended records are forced to disk
+     * @param syncIntervalMs The longest unforced records may wait with {@link FsyncPolicy#INTERVAL}
+     * @param replayFrom     Where to start replaying, or 0 to replay everything
+     * @param handler        Receives every record from the position onwards, oldest first
+     *
+     * @return The log, ready to append to
+     *
+     * @throws IOException If the file cannot be opened, is not a submission log or ends before
+     *                     the position
+     */
+    public static SubmissionLog open( final Path file, final FsyncPolicy policy, final long syncIntervalMs, final long replayFrom, final ReplayHandler handler ) throws IOException {
+        
+        final FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            final SubmissionLog log = new SubmissionLog(channel, policy, syncIntervalMs);
+            final long end = log.replay(replayFrom, handler);
+            if (end < channel.size()) {
+                channel.truncate(end);
+            }
+            channel.position(end);
+            log.position = end;
+            log.writerThread.start();
+            return log;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+    
+    /**
+     * Queues one submitted value to be written
+     *
+     * @param clientId The client that submitted the value
+     * @param timeMs   When the value arrived
+     * @param value    The value
+     */
+    public void append( final long clientId, final long timeMs, final int value ) {
+        
+        enqueue(new Record(clientId, timeMs, new int[]{ value }, null, false));
+    }
+    
+    /**
+     * Queues values submitted together to be written as one record
+     *
+     * @param clientId The client that submitted the values
+     * @param timeMs   When the values arrived
+     * @param values   The values, in order
+     */
+    public void append( final long clientId, final long timeMs, final List<Integer> values ) {
+        
+        final int[] copy = new int[values.size()];
+        for (int i = 0; i < copy.length; ++i) {
+            copy[i] = values.get(i);
+        }
+        enqueue(new Record(clientId, timeMs, copy, null, false));
+    }
+    
+    /**
+     * @return A future completed once everything appended before this call has been written,
+     * and forced to disk if the {@link FsyncPolicy} is {@link FsyncPolicy#ALWAYS}, with the
+     * position in the log just after it. It completes exceptionally if the log has failed or is
+     * closed.
+     */
+    public CompletableFuture<Long> commit() {
+        
+        return mark(false);
+    }
+    
+    /**
+     * Like {@link #commit()}, but forces the log to disk whatever the {@link FsyncPolicy}, so
+     * that a snapshot taken at this point never gets ahead of the log after a crash
+     *
+     * @return A future completed with the position in the log just after everything appended
+     * before this call, once that is on disk
+     */
+    public CompletableFuture<Long> checkpoint() {
+        
+        return mark(true);
+    }
+    
+    private CompletableFuture<Long> mark( final boolean isForced ) {
+        
+        final CompletableFuture<Long> committed = new CompletableFuture<>();
+        if (!enqueue(new Record(0, 0, null, committed, isForced))) {
+            committed.completeExceptionally(failure != null ? failure : new IOException("Submission log is closed"));
+        }
+        return committed;
+    }
+    
+    /**
+     * Writes and forces everything appended so far, then closes the file. Records appended after
+     * this are dropped.
+     */
+    @Override
+    public void close() throws IOException {
+        
+        if (isClosed) {
+            return;
+        }
+        isClosed = true;
+        pending.add(CLOSE);
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+    
+    private boolean enqueue( final Record record ) {
+        
+        if (isClosed || failure != null) {
+            return false;
+        }
+        pending.add(record);
+        return true;
+    }
+    
+    private void writeLoop() {
+        
+        final List<Record> batch = new ArrayList<>();
+        boolean isUnsynced = false;
+        long lastSyncMs = System.currentTimeMillis();
+        try {
+            while (true) {
+                Record first;
+                if (isUnsynced) {
+                    first = pending.poll(Math.max(0, lastSyncMs + syncIntervalMs - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                } else {
+                    first = pending.take();
+                }
+                if (first == null) {
+                    //The interval passed without another write to force along with
+                    channel.force(false);
+                    isUnsynced = false;
+                    lastSyncMs = System.currentTimeMillis();
+                    continue;
+                }
+                batch.add(first);
+                pending.drainTo(batch);
+                
+                write(batch);
+                final boolean isClosing = batch.contains(CLOSE);
+                final long now = System.currentTimeMillis();
+                if (policy == FsyncPolicy.ALWAYS || isClosing || isForced(batch) || ( policy == FsyncPolicy.INTERVAL && now - lastSyncMs >= syncIntervalMs )) {
+                    channel.force(false);
+                    isUnsynced = false;
+                    lastSyncMs = now;
+                } else {
+                    isUnsynced = policy == FsyncPolicy.INTERVAL;
+                }
+                for (Record record : batch) {
+                    if (record.committed != null) {
+                        record.committed.complete(record.position);
+                    }
+                }
+                batch.clear();
+                if (isClosing) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            failure = e;
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            failure = new IOException("Submission log writer was interrupted", e);
+        }
+        //Nothing queued from here on will be written
+        batch.addAll(pending);
+        for (Record record : batch) {
+            if (record.committed != null) {
+                record.committed.completeExceptionally(failure);
+            }
+        }
+    }
+    
+    private static boolean isForced( final List<Record> batch ) {
+        
+        for (Record record : batch) {
+            if (record.isForced) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Encodes the batch into as few buffers as fit and writes each with one call where the
+     * channel allows. Every commit in the batch is given the position just after the records
+     * before it.
+     */
+    private void write( final List<Record> batch ) throws IOException {
+        
+        writeBuffer.clear();
+        for (Record record : batch) {
+            if (record.values == null) {
+                record.position = position + writeBuffer.position();
+                continue;
+            }
+            if (record == CLOSE) {
+                continue;
+            }
+            final int bodyLength = record.bodyLength();
+            final int frameLength = WireFormat.varIntLength(bodyLength) + bodyLength + Integer.BYTES;
+            if (writeBuffer.remaining() < frameLength) {
+                writeOut(writeBuffer);
+                if (frameLength > writeBuffer.capacity()) {
+                    writeBuffer = ByteBuffer.allocate(Math.max(frameLength, writeBuffer.capacity() * 2));
+                }
+                writeBuffer.clear();
+            }
+            WireFormat.putVarInt(writeBuffer, bodyLength);
+            final int bodyStart = writeBuffer.position();
+            record.writeBody(writeBuffer);
+            writeBuffer.putInt(checksum(writeBuffer, bodyStart, bodyLength));
+        }
+        writeOut(writeBuffer);
+    }
+    
+    private void writeOut( final ByteBuffer buffer ) throws IOException {
+        
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer);
+        }
+        buffer.clear();
+    }
+    
+    private int checksum( final ByteBuffer buffer, final int from, final int length ) {
+        
+        crc.reset();
+        crc.update(buffer.array(), buffer.arrayOffset() + from, length);
+        return (int) crc.getValue();
+    }
+    
+    /**
+     * Reads the header, writing one if the file is empty, then hands every whole record from the
+     * given position onwards to the handler
+     *
+     * @return The position just after the last whole record
+     */
+    private long replay( final long replayFrom, final ReplayHandler handler ) throws IOException {
+        
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        if (channel.size() == 0 && replayFrom <= HEADER_SIZE) {
+            buffer.putInt(MAGIC).put(VERSION);
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, buffer.position());
+            }
+            return HEADER_SIZE;
+        }
+        
+        channel.position(0);
+        buffer.limit(HEADER_SIZE);
+        readMore(buffer);
+        buffer.flip();
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.get() != VERSION) {
+            throw new IOException("Not a submission log");
+        }
+        long end = Math.max(HEADER_SIZE, replayFrom);
+        if (end > channel.size()) {
+            throw new IOException("Submission log ends before position " + end);
+        }
+        channel.position(end);
+        buffer.clear();
+        boolean isEndOfFile = readMore(buffer);
+        buffer.flip();
+        while (true) {
+            final int start = buffer.position();
+            int bodyLength = -1;
+            try {
+                bodyLength = WireFormat.getVarInt(buffer);
+                if (bodyLength < 0 || bodyLength > MAX_RECORD_SIZE) {
+                    //Garbage rather than a record
+                    return end;
+                }
+            } catch (BufferUnderflowException e) {
+                //The length itself is cut short, so read on
+            } catch (IllegalArgumentException e) {
+                return end;
+            }
+            
+            if (bodyLength < 0 || buffer.remaining() < bodyLength + Integer.BYTES) {
+                buffer.position(start);
+                if (isEndOfFile) {
+                    return end;
+                }
+                final int needed = Math.max(0, bodyLength) + Integer.BYTES + 5;
+                if (needed > buffer.capacity()) {
+                    final ByteBuffer grown = ByteBuffer.allocate(needed);
+                    grown.put(buffer);
+                    buffer = grown;
+                } else {
+                    buffer.compact();
+                }
+                isEndOfFile = readMore(buffer);
+                buffer.flip();
+                continue;
+            }
+            
+            final int bodyStart = buffer.position();
+            if (checksum(buffer, bodyStart, bodyLength) != buffer.getInt(bodyStart + bodyLength)) {
+                return end;
+            }
+            final List<Integer> values;
+            final long clientId;
+            final long timeMs;
+            try {
+                clientId = WireFormat.getVarLong(buffer);
+                timeMs = WireFormat.getVarLong(buffer);
+                final int count = WireFormat.getVarInt(buffer);
+                if (count < 0 || count > bodyLength) {
+                    return end;
+                }
+                values = new ArrayList<>(count);
+                for (int i = 0; i < count; ++i) {
+                    values.add(WireFormat.unZigZag(WireFormat.getVarInt(buffer)));
+                }
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                return end;
+            }
+            if (buffer.position() != bodyStart + bodyLength) {
+                return end;
+            }
+            buffer.position(bodyStart + bodyLength + Integer.BYTES);
+            end += buffer.position() - start;
+            handler.onSubmission(clientId, timeMs, values);
+        }
+    }
+    
+    /**
+     * @return True if the end of the file was reached
+     */
+    private boolean readMore( final ByteBuffer buffer ) throws IOException {
+        
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer);
+            if (read < 0) {
+                return true;
+            }
+            if (read == 0) {
+                break;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * When appended records are forced from the operating system's cache to disk
+     */
+    public enum FsyncPolicy {
+        /**
+         * After every group commit, so a committed submission survives a power loss
+         */
+        ALWAYS,
+        /**
+         * At most once per sync interval, so a power loss may lose up to one interval of
+         * submissions
+         */
+        INTERVAL,
+        /**
+         * Never, leaving it to the operating system. Survives the server crashing but not the
+         * machine.
+         */
+        NEVER,
+    }
+    
+    /**
+     * Receives the records already in the log when it is opened
+     */
+    public interface ReplayHandler {
+        
+        /**
+         * @param clientId The client that submitted the values
+         * @param timeMs   When the values arrived
+         * @param values   The values, in order
+         */
+        void onSubmission( long clientId, long timeMs, List<Integer> values );
+    }
+    
+    /**
+     * One queued submission, or a request to be told when everything before it is committed
+     */
+    private static final class Record {
+        
+        private final long clientId;
+        private final long timeMs;
+        private final int[] values;
+        private final CompletableFuture<Long> committed;
+        private final boolean isForced;
+        //Set by the writer for a commit
+        private long position;
+        
+        private Record( final long clientId, final long timeMs, final int[] values, final CompletableFuture<Long> committed, final boolean isForced ) {
+            
+            this.clientId = clientId;
+            this.timeMs = timeMs;
+            this.values = values;
+            this.committed = committed;
+            this.isForced = isForced;
+        }
+        
+        private int bodyLength() {
+            
+            int length = WireFormat.varLongLength(clientId) + WireFormat.varLongLength(timeMs) + WireFormat.varIntLength(values.length);
+            for (int value : values) {
+                length += WireFormat.varIntLength(WireFormat.zigZag(value));
+            }
+            return length;
+        }
+        
+        private void writeBody( final ByteBuffer out ) {
+            
+            WireFormat.putVarLong(out, clientId);
+            WireFormat.putVarLong(out, timeMs);
+            WireFormat.putVarInt(out, values.length);
+            for (int value : values) {
+                WireFormat.putVarInt(out, WireFormat.zigZag(value));
+            }
+        }
+    }
+}
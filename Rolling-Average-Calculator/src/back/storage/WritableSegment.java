@@ -0,0 +1,20 @@
+package back.storage;
+
+/**
+ * A {@link HistorySegment} that an {@link IntHistory} appends to until it is full
+ */
+abstract class WritableSegment extends HistorySegment {
+    
+    abstract void put( int offset, int value, long timeMs );
+    
+    /**
+     * Called once the segment is full and will never be written again
+     *
+     * @return A segment holding the same values in less memory, or this one if it cannot be
+     * packed
+     */
+    HistorySegment pack() {
+        
+        return this;
+    }
+}
@@ -0,0 +1,141 @@
+package bench;
+
+import back.aggregate.IntKernels;
+import back.aggregate.WindowSummary;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Times the {@link IntKernels} against the boxed loop over a {@code List<Integer>} that client
+ * histories were summed with before. Each pass reads every value of a large array once: a sum,
+ * then a summary of count, sum, minimum and maximum. The kernels are run over an int array and
+ * over a direct int buffer, as a memory-mapped history segment is read.
+ * <p>
+ * Every variant is warmed up before it is timed, and its results are checked against the boxed
+ * loop's so that none of them can be optimized away or be quietly wrong. The best of the timed
+ * passes is reported, in milliseconds per pass and values per nanosecond.
+ * <p>
+ * Usage: {@code KernelBenchmark [values] [passes]}, by default 10,000,000 values and 10 passes.
+ * The boxed list needs roughly 20 bytes of heap per value, so give the JVM room, such as
+ * {@code -Xmx2g}.
+ */
+public class KernelBenchmark {
+    
+    private static final int WARMUP_PASSES = 5;
+    
+    private KernelBenchmark() {
+        
+    }
+    
+    /**
+     * @param args The number of values and of timed passes, each optional
+     */
+    public static void main( final String args[] ) {
+        
+        final int length = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+        final int passes = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        
+        final Random random = new Random(42);
+        final int[] values = new int[length];
+        final List<Integer> boxed = new ArrayList<>(length);
+        final IntBuffer buffer = ByteBuffer.allocateDirect(length * Integer.BYTES).order(ByteOrder.nativeOrder()).asIntBuffer();
+        for (int i = 0; i < length; ++i) {
+            //Spread across the int range, so boxing cannot lean on the small value cache
+            values[i] = random.nextInt();
+            boxed.add(values[i]);
+            buffer.put(i, values[i]);
+        }
+        
+        final long expectedSum = boxedSum(boxed);
+        final WindowSummary expected = boxedSummary(boxed);
+        System.out.println(length + " values, best of " + passes + " passes, Java " + System.getProperty("java.version"));
+        System.out.printf("%-30s %10s %12s %10s%n", "variant", "ms/pass", "values/ns", "speedup");
+        
+        final double boxedSumMs = time("boxed List<Integer> sum", length, passes, -1, () -> check(boxedSum(boxed), expectedSum));
+        time("IntKernels.sum int[]", length, passes, boxedSumMs, () -> check(IntKernels.sum(values, 0, length), expectedSum));
+        time("IntKernels.sum IntBuffer", length, passes, boxedSumMs, () -> check(IntKernels.sum(buffer, 0, length), expectedSum));
+        
+        final double boxedSummaryMs = time("boxed List<Integer> summary", length, passes, -1, () -> check(boxedSummary(boxed), expected));
+        time("IntKernels.summarize int[]", length, passes, boxedSummaryMs, () -> {
+            final WindowSummary summary = new WindowSummary();
+            IntKernels.summarize(values, 0, length, summary);
+            check(summary, expected);
+        });
+        time("IntKernels.summarize IntBuffer", length, passes, boxedSummaryMs, () -> {
+            final WindowSummary summary = new WindowSummary();
+            IntKernels.summarize(buffer, 0, length, summary);
+            check(summary, expected);
+        });
+    }
+    
+    /**
+     * Runs a pass until it is warm, then prints the fastest of the timed passes
+     *
+     * @param baselineMs The boxed loop's time to compare with, or a negative number for the
+     *                   boxed loop itself
+     *
+     * @return The fastest pass, in milliseconds
+     */
+    private static double time( final String name, final int length, final int passes, final double baselineMs, final Runnable pass ) {
+        
+        for (int i = 0; i < WARMUP_PASSES; ++i) {
+            pass.run();
+        }
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < passes; ++i) {
+            final long start = System.nanoTime();
+            pass.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        final double ms = best / 1e6;
+        final String speedup = baselineMs < 0 ? "1.0x" : String.format("%.1fx", baselineMs / ms);
+        System.out.printf("%-30s %10.2f %12.2f %10s%n", name, ms, length / (double) best, speedup);
+        return ms;
+    }
+    
+    /**
+     * The loop a client's boxed history was summed with
+     */
+    private static long boxedSum( final List<Integer> values ) {
+        
+        long sum = 0;
+        for (Integer value : values) {
+            sum += value;
+        }
+        return sum;
+    }
+    
+    private static WindowSummary boxedSummary( final List<Integer> values ) {
+        
+        long sum = 0;
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        for (Integer value : values) {
+            sum += value;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+        final WindowSummary summary = new WindowSummary();
+        summary.add(values.size(), sum, min, max);
+        return summary;
+    }
+    
+    private static void check( final long sum, final long expected ) {
+        
+        if (sum != expected) {
+            throw new IllegalStateException("Sum " + sum + " differs from " + expected);
+        }
+    }
+    
+    private static void check( final WindowSummary summary, final WindowSummary expected ) {
+        
+        if (summary.getCount() != expected.getCount() || summary.getSum() != expected.getSum() || summary.getMin() != expected.getMin() || summary.getMax() != expected.getMax()) {
+            throw new IllegalStateException("Summary differs from the boxed loop's");
+        }
+    }
+}
@@ -0,0 +1,331 @@
+package bench;
+
+import back.network.client.Client;
+import back.network.server.Server;
+import utility.request.Request;
+import utility.request.RequestFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares the ways a {@link Server} can serve blocking clients. For each mode a server is
+ * started in a fresh JVM, so no mode inherits another's threads or heap, and N {@link Client}s
+ * connect to it, each on its own thread, asking for the average and waiting for the answer in a
+ * loop until time runs out. Each round trip is one request and one response, so the timing is not
+ * held up by small writes waiting on delayed acknowledgements. Reported per mode:
+ * <ul>
+ * <li>throughput, in completed round trips per second</li>
+ * <li>round trip latency at the median, 99th percentile and worst</li>
+ * <li>round trips that got no answer within {@link #TIMEOUT_MS}, as happens to clients a fixed
+ * pool has no thread left for</li>
+ * <li>platform threads and heap the server took on to hold the connections, measured once every
+ * client is connected and before any load</li>
+ * </ul>
+ * Each client costs that JVM two platform threads of its own, its loop and its reader, which
+ * are left out of the server's thread count. Virtual threads need Java 21; on older runtimes the
+ * server falls back to a thread per connection, which it reports and the thread count makes
+ * plain.
+ * <p>
+ * Usage: {@code ThreadModeBenchmark [clients] [seconds] [encoding] [mode...]}, by default 200
+ * clients for 10 seconds each over BINARY against THREAD_POOL and VIRTUAL_THREAD.
+ */
+public class ThreadModeBenchmark {
+    
+    private static final String ADDRESS = "127.0.0.1";
+    private static final int FIRST_PORT = 9300;
+    private static final long TIMEOUT_MS = 2000;
+    private static final int CLIENT_THREADS_PER_CLIENT = 2;
+    private static final String RUN_ONE = "--run";
+    
+    private ThreadModeBenchmark() {
+        
+    }
+    
+    /**
+     * @param args The client count, the seconds of load per mode, the encoding and the modes to
+     *             compare, each optional
+     */
+    public static void main( final String args[] ) throws Exception {
+        
+        if (args.length == 5 && args[0].equals(RUN_ONE)) {
+            run(Server.Mode.valueOf(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]), Request.Encoding.valueOf(args[4]));
+            System.exit(0);
+        }
+        final int clients = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        final int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        final Request.Encoding encoding = args.length > 2 ? Request.Encoding.valueOf(args[2]) : Request.Encoding.BINARY;
+        final List<Server.Mode> modes = new ArrayList<>();
+        for (int i = 3; i < args.length; ++i) {
+            modes.add(Server.Mode.valueOf(args[i]));
+        }
+        if (modes.isEmpty()) {
+            modes.add(Server.Mode.THREAD_POOL);
+            modes.add(Server.Mode.VIRTUAL_THREAD);
+        }
+        
+        System.out.println(clients + " blocking " + encoding + " clients, " + seconds + "s per mode, Java " + System.getProperty("java.version"));
+        System.out.printf("%-15s %10s %10s %10s %10s %9s %14s %16s%n", "mode", "ops/s", "p50 us", "p99 us", "max us", "timeouts", "server threads", "heap KB/client");
+        for (Server.Mode mode : modes) {
+            fork(mode, clients, seconds, encoding);
+        }
+    }
+    
+    /**
+     * Runs one mode in a new JVM on the same class path, which prints its own row
+     */
+    private static void fork( final Server.Mode mode, final int clients, final int seconds, final Request.Encoding encoding ) throws IOException, InterruptedException {
+        
+        final String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        final Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), ThreadModeBenchmark.class.getName(), RUN_ONE, mode.name(), String.valueOf(clients), String.valueOf(seconds), encoding.name()).inheritIO().start();
+        if (process.waitFor() != 0) {
+            System.out.println(mode + ": run failed");
+        }
+    }
+    
+    /**
+     * Loads one server and prints its row. The JVM is left to exit rather than terminating the
+     * server, which would wait on every connection it still holds.
+     */
+    private static void run( final Server.Mode mode, final int clients, final int seconds, final Request.Encoding encoding ) throws InterruptedException {
+        
+        final int port = FIRST_PORT + mode.ordinal();
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        final Server server = new Server(ADDRESS, port, mode);
+        server.setSSHandler(new QuietServerHandler());
+        new Thread(server, "Server-" + mode).start();
+        Thread.sleep(500);
+        
+        final int threadsBefore = threads.getThreadCount();
+        final long heapBefore = usedHeapAfterGc();
+        
+        final CountDownLatch connected = new CountDownLatch(clients);
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(clients);
+        final AtomicLong deadline = new AtomicLong();
+        final AtomicLong timeouts = new AtomicLong();
+        final List<long[]> latencies = new ArrayList<>();
+        for (int i = 0; i < clients; ++i) {
+            final ClientLoop loop = new ClientLoop(port, encoding, connected, start, finished, deadline, timeouts);
+            synchronized (latencies) {
+                latencies.add(null);
+            }
+            final int index = i;
+            new Thread(() -> {
+                final long[] recorded = loop.run();
+                synchronized (latencies) {
+                    latencies.set(index, recorded);
+                }
+            }, "BenchClient-" + i).start();
+        }
+        if (!connected.await(60, TimeUnit.SECONDS)) {
+            System.out.println(mode + ": only " + ( clients - connected.getCount() ) + " clients connected");
+        }
+        //Give the server time to pick up every connection before measuring what they cost it
+        Thread.sleep(1000);
+        final int serverThreads = threads.getThreadCount() - threadsBefore - clients * CLIENT_THREADS_PER_CLIENT;
+        final long heapPerClient = ( usedHeapAfterGc() - heapBefore ) / Math.max(1, clients);
+        
+        deadline.set(System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds));
+        start.countDown();
+        finished.await(seconds + 2 * TIMEOUT_MS / 1000 + 10, TimeUnit.SECONDS);
+        
+        long[] all;
+        synchronized (latencies) {
+            int total = 0;
+            for (long[] recorded : latencies) {
+                total += recorded == null ? 0 : recorded.length;
+            }
+            all = new long[total];
+            int at = 0;
+            for (long[] recorded : latencies) {
+                if (recorded != null) {
+                    System.arraycopy(recorded, 0, all, at, recorded.length);
+                    at += recorded.length;
+                }
+            }
+        }
+        Arrays.sort(all);
+        System.out.printf("%-15s %10d %10d %10d %10d %9d %14d %16.1f%n", mode, all.length / seconds, percentile(all, 0.50) / 1000, percentile(all, 0.99) / 1000, all.length == 0 ? 0 : all[all.length - 1] / 1000, timeouts.get(), serverThreads, heapPerClient / 1024.0);
+    }
+    
+    private static long percentile( final long[] sorted, final double quantile ) {
+        
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[(int) Math.min(sorted.length - 1, Math.floor(quantile * sorted.length))];
+    }
+    
+    private static long usedHeapAfterGc() throws InterruptedException {
+        
+        for (int i = 0; i < 3; ++i) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        final Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+    
+    /**
+     * One blocking client: connects, waits for the start, then queries until the deadline,
+     * recording how long each round trip took
+     */
+    private static final class ClientLoop implements Client.ClientHandler {
+        
+        private final Client client;
+        private final CountDownLatch connected;
+        private final CountDownLatch start;
+        private final CountDownLatch finished;
+        private final AtomicLong deadline;
+        private final AtomicLong timeouts;
+        private volatile long clientId = -1;
+        
+        private ClientLoop( final int port, final Request.Encoding encoding, final CountDownLatch connected, final CountDownLatch start, final CountDownLatch finished, final AtomicLong deadline, final AtomicLong timeouts ) {
+            
+            this.client = new Client(ADDRESS, port, encoding);
+            this.client.setCCHandler(this);
+            this.connected = connected;
+            this.start = start;
+            this.finished = finished;
+            this.deadline = deadline;
+            this.timeouts = timeouts;
+        }
+        
+        /**
+         * @return The latency of every completed round trip, in nanoseconds
+         */
+        private long[] run() {
+            
+            long[] recorded = new long[1024];
+            int count = 0;
+            try {
+                client.run();
+                connected.countDown();
+                start.await();
+                while (System.nanoTime() < deadline.get()) {
+                    final long began = System.nanoTime();
+                    try {
+                        client.query(RequestFactory.clientAverageRequest(clientId, Request.Range.SELF)).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                    } catch (TimeoutException e) {
+                        timeouts.incrementAndGet();
+                        continue;
+                    }
+                    if (count == recorded.length) {
+                        recorded = Arrays.copyOf(recorded, count * 2);
+                    }
+                    recorded[count++] = System.nanoTime() - began;
+                }
+            } catch (Exception e) {
+                //A failed client stops recording; its round trips so far still count
+            } finally {
+                finished.countDown();
+            }
+            return Arrays.copyOf(recorded, count);
+        }
+        
+        @Override
+        public void onOpenSocketSuccess() {
+            
+        }
+        
+        @Override
+        public void onOpenSocketFailure( final String reason ) {
+            
+            System.err.println(reason);
+        }
+        
+        @Override
+        public void onServerConnected( final String address ) {
+            
+        }
+        
+        @Override
+        public void onConnectionBroken( final String reason ) {
+            
+        }
+        
+        @Override
+        public void onShutdownSuccess() {
+            
+        }
+        
+        @Override
+        public void onShutdownFailure( final String reason ) {
+            
+        }
+        
+        @Override
+        public void onIOSocketFailure( final String reason ) {
+            
+        }
+        
+        @Override
+        public void onClientIdObtained( final long id ) {
+            
+            clientId = id;
+        }
+        
+        @Override
+        public void onRequestFailure( final String reason ) {
+            
+        }
+    }
+    
+    /**
+     * Keeps the server's own reporting out of the benchmark's output
+     */
+    private static final class QuietServerHandler implements Server.ServerHandler {
+        
+        @Override
+        public void onOpenSocketSuccess() {
+            
+        }
+        
+        @Override
+        public void onOpenSocketFailure( final String reason ) {
+            
+            System.err.println(reason);
+        }
+        
+        @Override
+        public void onClientConnected( final String ipAddress, final long clientID ) {
+            
+        }
+        
+        @Override
+        public void onClientDisconnected( final String ipAddress, final long clientID ) {
+            
+        }
+        
+        @Override
+        public void onShutdownSuccess() {
+            
+        }
+        
+        @Override
+        public void onShutdownFailure( final String reason ) {
+            
+        }
+        
+        @Override
+        public void onConnectionBroken( final String reason ) {
+            
+        }
+        
+        @Override
+        public void onModeUnavailable( final String reason ) {
+            
+            System.err.println(reason);
+        }
+    }
+}
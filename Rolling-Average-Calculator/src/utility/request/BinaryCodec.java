@@ -0,0 +1,158 @@
+package utility.request;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+
+/**
+ * Frames {@link Request}s for the {@link Request.Encoding#BINARY} encoding: a varint body length
+ * followed by the body written by {@link Request#writeBinary(ByteBuffer)}. A client selects this
+ * encoding by opening the connection with {@link #PREAMBLE} and {@link #VERSION}, after which the
+ * server answers with its 8 byte client ID.
+ * <p>
+ * An instance keeps separate scratch buffers for reading and writing, so one instance can serve
+ * a connection's reader and writer at the same time. Writes must still come from one thread at a
+ * time.
+ */
+public class BinaryCodec {
+    
+    public static final int PREAMBLE = 'R';
+    public static final int VERSION = 1;
+    
+    /**
+     * The longest frame body either end accepts
+     */
+    public static final int MAX_FRAME_BYTES = 64 * 1024 * 1024;
+    private static final int INITIAL_BUFFER_BYTES = 256;
+    
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_BYTES);
+    private ByteBuffer writeBuffer = ByteBuffer.allocate(INITIAL_BUFFER_BYTES);
+    
+    /**
+     * Writes one framed request to the stream. The caller is responsible for flushing.
+     *
+     * @param out     The stream to write to
+     * @param request The request to write
+     */
+    public void write( final OutputStream out, final Request request ) throws IOException {
+        
+        final int length = request.binaryLength();
+        final int frameLength = WireFormat.varIntLength(length) + length;
+        if (writeBuffer.capacity() < frameLength) {
+            writeBuffer = ByteBuffer.allocate(Math.max(frameLength, writeBuffer.capacity() * 2));
+        }
+        writeBuffer.clear();
+        WireFormat.putVarInt(writeBuffer, length);
+        request.writeBinary(writeBuffer);
+        out.write(writeBuffer.array(), 0, writeBuffer.position());
+    }
+    
+    /**
+     * Blocks until one framed request has been read from the stream.
+     *
+     * @param in The stream to read from
+     *
+     * @return The request, or null if the frame body was malformed
+     *
+     * @throws EOFException If the stream ends
+     */
+    public Request read( final InputStream in ) throws IOException {
+        
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            final int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            if (shift >= 35) {
+                throw new StreamCorruptedException("Malformed frame length");
+            }
+            length |= ( b & 0x7F ) << shift;
+            if (b < 0x80) {
+                break;
+            }
+        }
+        if (length < 0 || length > MAX_FRAME_BYTES) {
+            throw new StreamCorruptedException("Invalid frame length " + length);
+        }
+        
+        if (readBuffer.capacity() < length) {
+            readBuffer = ByteBuffer.allocate(Math.max(length, readBuffer.capacity() * 2));
+        }
+        int offset = 0;
+        while (offset < length) {
+            final int read = in.read(readBuffer.array(), offset, length - offset);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            offset += read;
+        }
+        readBuffer.clear();
+        readBuffer.limit(length);
+        return new Request.Builder().fromBinary(readBuffer).build();
+    }
+    
+    /**
+     * @param request The request to frame
+     *
+     * @return A new buffer holding the framed request, ready to be written to a channel
+     */
+    public static ByteBuffer encode( final Request request ) {
+        
+        final int length = request.binaryLength();
+        final ByteBuffer buffer = ByteBuffer.allocate(WireFormat.varIntLength(length) + length);
+        WireFormat.putVarInt(buffer, length);
+        request.writeBinary(buffer);
+        buffer.flip();
+        return buffer;
+    }
+    
+    /**
+     * Attempts to decode the next framed request from bytes received so far.
+     *
+     * @param in      The received bytes, positioned at the start of a frame
+     * @param builder The builder that receives the decoded fields
+     *
+     * @return True if a whole frame was consumed, leaving the request in the builder; false if
+     * more bytes are needed, leaving the buffer position unchanged
+     *
+     * @throws StreamCorruptedException If the frame length is invalid
+     */
+    public static boolean decode( final ByteBuffer in, final Request.Builder builder ) throws StreamCorruptedException {
+        
+        final int start = in.position();
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (!in.hasRemaining()) {
+                in.position(start);
+                return false;
+            }
+            if (shift >= 35) {
+                throw new StreamCorruptedException("Malformed frame length");
+            }
+            final byte b = in.get();
+            length |= ( b & 0x7F ) << shift;
+            if (b >= 0) {
+                break;
+            }
+        }
+        if (length < 0 || length > MAX_FRAME_BYTES) {
+            throw new StreamCorruptedException("Invalid frame length " + length);
+        }
+        if (in.remaining() < length) {
+            in.position(start);
+            return false;
+        }
+        
+        final int limit = in.limit();
+        final int end = in.position() + length;
+        in.limit(end);
+        builder.fromBinary(in);
+        in.limit(limit);
+        in.position(end);
+        return true;
+    }
+}
@@ -0,0 +1,425 @@
+package utility.request;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * A compressed block of int values, optionally with a non-decreasing arrival time for each, used
+ * both for sealed chunks of stored history and for long entry lists in the binary
+ * {@link Request} encoding. Values from sensors change slowly and many arrive at the same time,
+ * so most values and times take one byte each rather than four and eight.
+ * <p>
+ * A block is laid out as
+ * <pre>
+ * flags          1 byte, {@link #HAS_TIMES} if the times column is present
+ * count          varint
+ * min, max       zig-zag varints
+ * sum            zig-zag varlong
+ * first time     zig-zag varlong      } only with {@link #HAS_TIMES}
+ * last time      varlong, from first  }
+ * times length   varint               }
+ * values length  varint
+ * times column   zig-zag varlong per value after the first: the change in the gap between times
+ * values column  zig-zag varint per value: the change from the previous value, or from 0
+ * </pre>
+ * The header alone answers count, sum, minimum and maximum over the whole block, and the first
+ * and last times, so whole-block aggregates never decode the columns. Values can be decoded
+ * without reading the times.
+ * <p>
+ * A block read with {@link #read(ByteBuffer)} is immutable and may be decoded by several threads
+ * at once.
+ */
+public final class HistoryBlock {
+    
+    /**
+     * Set in the flags byte when the block carries a time for each value
+     */
+    public static final int HAS_TIMES = 1;
+    
+    private final ByteBuffer columns;
+    private final boolean hasTimes;
+    private final int count;
+    private final int min;
+    private final int max;
+    private final long sum;
+    private final long firstTimeMs;
+    private final long lastTimeMs;
+    private final int valuesStart;
+    
+    private HistoryBlock( final ByteBuffer columns, final boolean hasTimes, final int count, final int min, final int max, final long sum, final long firstTimeMs, final long lastTimeMs, final int valuesStart ) {
+        
+        this.columns = columns;
+        this.hasTimes = hasTimes;
+        this.count = count;
+        this.min = min;
+        this.max = max;
+        this.sum = sum;
+        this.firstTimeMs = firstTimeMs;
+        this.lastTimeMs = lastTimeMs;
+        this.valuesStart = valuesStart;
+    }
+    
+    /**
+     * @param values The values to encode
+     * @param times  The arrival time of each value, never decreasing, or null to leave times out
+     * @param from   The index of the first value to encode
+     * @param length How many values to encode
+     *
+     * @return The number of bytes {@link #write} takes for the same arguments
+     */
+    public static int length( final int[] values, final long[] times, final int from, final int length ) {
+        
+        return encode(values, times, from, length).length();
+    }
+    
+    /**
+     * @param out    The buffer to write to, with at least {@link #length} bytes remaining
+     * @param values The values to encode
+     * @param times  The arrival time of each value, never decreasing, or null to leave times out
+     * @param from   The index of the first value to encode
+     * @param length How many values to encode
+     */
+    public static void write( final ByteBuffer out, final int[] values, final long[] times, final int from, final int length ) {
+        
+        encode(values, times, from, length).write(out);
+    }
+    
+    /**
+     * Summarizes values about to be written once, so the block's length can be taken to size a
+     * buffer and the block then written without reading the values for the header again. The
+     * values must not change until the block is written.
+     *
+     * @param values The values to encode
+     * @param times  The arrival time of each value, never decreasing, or null to leave times out
+     * @param from   The index of the first value to encode
+     * @param length How many values to encode
+     *
+     * @return The values ready to be written
+     */
+    public static Encoding encode( final int[] values, final long[] times, final int from, final int length ) {
+        
+        return new Encoding(values, times, from, length, new Header(values, times, from, length));
+    }
+    
+    private static void write( final ByteBuffer out, final int[] values, final long[] times, final int from, final int length, final Header header ) {
+        
+        out.put((byte) ( times != null ? HAS_TIMES : 0 ));
+        WireFormat.putVarInt(out, length);
+        WireFormat.putVarInt(out, WireFormat.zigZag(header.min));
+        WireFormat.putVarInt(out, WireFormat.zigZag(header.max));
+        WireFormat.putVarLong(out, WireFormat.zigZag(header.sum));
+        if (times != null) {
+            WireFormat.putVarLong(out, WireFormat.zigZag(header.firstTimeMs));
+            WireFormat.putVarLong(out, header.lastTimeMs - header.firstTimeMs);
+            WireFormat.putVarInt(out, header.timesLength);
+        }
+        WireFormat.putVarInt(out, header.valuesLength);
+        if (times != null) {
+            long previousDelta = 0;
+            for (int i = from + 1; i < from + length; ++i) {
+                final long delta = times[i] - times[i - 1];
+                WireFormat.putVarLong(out, WireFormat.zigZag(delta - previousDelta));
+                previousDelta = delta;
+            }
+        }
+        int previous = 0;
+        for (int i = from; i < from + length; ++i) {
+            WireFormat.putVarInt(out, WireFormat.zigZag(values[i] - previous));
+            previous = values[i];
+        }
+    }
+    
+    /**
+     * Reads a block's header and moves the buffer past the block. The block keeps a view over the
+     * buffer's bytes, which must not change afterwards.
+     *
+     * @param in The buffer, positioned at the start of a block
+     *
+     * @return The block
+     *
+     * @throws BufferUnderflowException If the buffer ends before the block does
+     * @throws IllegalArgumentException If the header is malformed
+     */
+    public static HistoryBlock read( final ByteBuffer in ) {
+        
+        final boolean hasTimes = ( in.get() & HAS_TIMES ) != 0;
+        final int count = WireFormat.getVarInt(in);
+        final int min = WireFormat.unZigZag(WireFormat.getVarInt(in));
+        final int max = WireFormat.unZigZag(WireFormat.getVarInt(in));
+        final long sum = WireFormat.unZigZag(WireFormat.getVarLong(in));
+        long firstTimeMs = 0;
+        long lastTimeMs = 0;
+        int timesLength = 0;
+        if (hasTimes) {
+            firstTimeMs = WireFormat.unZigZag(WireFormat.getVarLong(in));
+            lastTimeMs = firstTimeMs + WireFormat.getVarLong(in);
+            timesLength = WireFormat.getVarInt(in);
+        }
+        final int valuesLength = WireFormat.getVarInt(in);
+        //Every value takes at least one byte in each column it has
+        if (count < 0 || valuesLength < count || timesLength < 0 || ( hasTimes && timesLength < count - 1 )) {
+            throw new IllegalArgumentException("Malformed block header");
+        }
+        final int columnsLength = timesLength + valuesLength;
+        if (columnsLength < 0 || columnsLength > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        final ByteBuffer columns = in.slice();
+        columns.limit(columnsLength);
+        in.position(in.position() + columnsLength);
+        return new HistoryBlock(columns, hasTimes, count, min, max, sum, firstTimeMs, lastTimeMs, timesLength);
+    }
+    
+    public boolean hasTimes() {
+        
+        return hasTimes;
+    }
+    
+    public int getCount() {
+        
+        return count;
+    }
+    
+    /**
+     * @return The smallest value, or 0 if the block is empty
+     */
+    public int getMin() {
+        
+        return min;
+    }
+    
+    /**
+     * @return The largest value, or 0 if the block is empty
+     */
+    public int getMax() {
+        
+        return max;
+    }
+    
+    public long getSum() {
+        
+        return sum;
+    }
+    
+    /**
+     * @param index The position of the value in the block
+     *
+     * @return The value, decoding every value before it
+     */
+    public int value( final int index ) {
+        
+        final int[] value = new int[1];
+        copyValues(index, value, 0, 1);
+        return value[0];
+    }
+    
+    /**
+     * @param index The position of the value in the block
+     *
+     * @return When the value arrived, read from the header for the first and last value and
+     * otherwise decoding every time before it
+     *
+     * @throws IllegalStateException If the block has no times
+     */
+    public long time( final int index ) {
+        
+        if (hasTimes && index == 0) {
+            return firstTimeMs;
+        }
+        if (hasTimes && index == count - 1) {
+            return lastTimeMs;
+        }
+        final long[] time = new long[1];
+        copyTimes(index, time, 0, 1);
+        return time[0];
+    }
+    
+    /**
+     * Decodes a range of values
+     *
+     * @param from            The index of the first value to decode
+     * @param destination     The array to decode into
+     * @param destinationFrom Where in the array the first value goes
+     * @param length          How many values to decode
+     */
+    public void copyValues( final int from, final int[] destination, final int destinationFrom, final int length ) {
+        
+        checkRange(from, length);
+        final ByteBuffer in = columns.duplicate();
+        in.position(valuesStart);
+        int value = 0;
+        for (int i = 0; i < from; ++i) {
+            value += WireFormat.unZigZag(WireFormat.getVarInt(in));
+        }
+        for (int i = 0; i < length; ++i) {
+            value += WireFormat.unZigZag(WireFormat.getVarInt(in));
+            destination[destinationFrom + i] = value;
+        }
+    }
+    
+    /**
+     * Decodes a range of times
+     *
+     * @param from            The index of the first time to decode
+     * @param destination     The array to decode into
+     * @param destinationFrom Where in the array the first time goes
+     * @param length          How many times to decode
+     *
+     * @throws IllegalStateException If the block has no times
+     */
+    public void copyTimes( final int from, final long[] destination, final int destinationFrom, final int length ) {
+        
+        if (!hasTimes) {
+            throw new IllegalStateException("Block has no times");
+        }
+        checkRange(from, length);
+        final ByteBuffer in = columns.duplicate();
+        long time = firstTimeMs;
+        long delta = 0;
+        for (int i = 0; i < from + length; ++i) {
+            if (i > 0) {
+                delta += WireFormat.unZigZag(WireFormat.getVarLong(in));
+                time += delta;
+            }
+            if (i >= from) {
+                destination[destinationFrom + i - from] = time;
+            }
+        }
+    }
+    
+    /**
+     * Finds where the values that arrived at or after a time start, reading only as many times as
+     * it must
+     *
+     * @param timeMs The arrival time to look for
+     *
+     * @return The index of the first value that arrived at or after the time, or the count if none
+     * did
+     *
+     * @throws IllegalStateException If the block has no times
+     */
+    public int firstIndexAt( final long timeMs ) {
+        
+        if (!hasTimes) {
+            throw new IllegalStateException("Block has no times");
+        }
+        if (count == 0 || timeMs <= firstTimeMs) {
+            return 0;
+        }
+        if (timeMs > lastTimeMs) {
+            return count;
+        }
+        final ByteBuffer in = columns.duplicate();
+        long time = firstTimeMs;
+        long delta = 0;
+        for (int i = 1; i < count; ++i) {
+            delta += WireFormat.unZigZag(WireFormat.getVarLong(in));
+            time += delta;
+            if (time >= timeMs) {
+                return i;
+            }
+        }
+        return count;
+    }
+    
+    private void checkRange( final int from, final int length ) {
+        
+        if (from < 0 || length < 0 || from + length > count) {
+            throw new IndexOutOfBoundsException("Range: " + from + "+" + length + ", Count: " + count);
+        }
+    }
+    
+    /**
+     * Values summarized by {@link #encode} and ready to be written as a block
+     */
+    public static final class Encoding {
+        
+        private final int[] values;
+        private final long[] times;
+        private final int from;
+        private final int length;
+        private final Header header;
+        
+        private Encoding( final int[] values, final long[] times, final int from, final int length, final Header header ) {
+            
+            this.values = values;
+            this.times = times;
+            this.from = from;
+            this.length = length;
+            this.header = header;
+        }
+        
+        /**
+         * @return The number of bytes {@link #write(ByteBuffer)} takes
+         */
+        public int length() {
+            
+            return header.length() + header.timesLength + header.valuesLength;
+        }
+        
+        /**
+         * @param out The buffer to write to, with at least {@link #length()} bytes remaining
+         */
+        public void write( final ByteBuffer out ) {
+            
+            HistoryBlock.write(out, values, times, from, length, header);
+        }
+    }
+    
+    /**
+     * The summary and column lengths of values about to be written
+     */
+    private static final class Header {
+        
+        private final int length;
+        private final boolean hasTimes;
+        private int min = 0;
+        private int max = 0;
+        private long sum = 0;
+        private long firstTimeMs = 0;
+        private long lastTimeMs = 0;
+        private int timesLength = 0;
+        private int valuesLength = 0;
+        
+        private Header( final int[] values, final long[] times, final int from, final int length ) {
+            
+            this.length = length;
+            this.hasTimes = times != null;
+            if (length > 0) {
+                min = Integer.MAX_VALUE;
+                max = Integer.MIN_VALUE;
+            }
+            int previous = 0;
+            for (int i = from; i < from + length; ++i) {
+                final int value = values[i];
+                sum += value;
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+                valuesLength += WireFormat.varIntLength(WireFormat.zigZag(value - previous));
+                previous = value;
+            }
+            if (hasTimes && length > 0) {
+                firstTimeMs = times[from];
+                lastTimeMs = times[from + length - 1];
+                long previousDelta = 0;
+                for (int i = from + 1; i < from + length; ++i) {
+                    final long delta = times[i] - times[i - 1];
+                    timesLength += WireFormat.varLongLength(WireFormat.zigZag(delta - previousDelta));
+                    previousDelta = delta;
+                }
+            }
+        }
+        
+        /**
+         * @return The number of bytes before the columns
+         */
+        private int length() {
+            
+            int bytes = 1 + WireFormat.varIntLength(length) + WireFormat.varIntLength(WireFormat.zigZag(min)) + WireFormat.varIntLength(WireFormat.zigZag(max)) + WireFormat.varLongLength(WireFormat.zigZag(sum));
+            if (hasTimes) {
+                bytes += WireFormat.varLongLength(WireFormat.zigZag(firstTimeMs)) + WireFormat.varLongLength(lastTimeMs - firstTimeMs) + WireFormat.varIntLength(timesLength);
+            }
+            return bytes + WireFormat.varIntLength(valuesLength);
+        }
+    }
+}
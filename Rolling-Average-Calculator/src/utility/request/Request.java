@@ -1,11 +1,12 @@
 package utility.request;
 
-import com.sun.org.apache.regexp.internal.RE;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.Serializable;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -18,25 +19,92 @@ public class Request implements Serializable{
     private static final String RANGE_KEY = "RANGE";
     private static final String ENTRIES_KEY = "ENTRIES";
     private static final String RESPONSE_KEY = "RESPONSE";
+    private static final String CORRELATION_KEY = "CORRELATION";
+    private static final String OFFSET_KEY = "OFFSET";
+    private static final String LIMIT_KEY = "LIMIT";
+    private static final String STREAM_KEY = "STREAM";
+    private static final String WINDOW_KEY = "WINDOW";
+    private static final String VALUES_KEY = "VALUES";
+    private static final String SUBJECT_KEY = "SUBJECT";
+    private static final String ORDERED_KEY = "ORDERED";
+    private static final String SINCE_KEY = "SINCE";
+    private static final String UNTIL_KEY = "UNTIL";
+    private static final int HAS_ID_FLAG = 1;
+    private static final int HAS_RESPONSE_FLAG = 1 << 1;
+    private static final int HAS_RANGE_FLAG = 1 << 2;
+    private static final int HAS_AMOUNT_FLAG = 1 << 3;
+    private static final int HAS_ENTRIES_FLAG = 1 << 4;
+    private static final int HAS_CORRELATION_FLAG = 1 << 5;
+    private static final int HAS_OFFSET_FLAG = 1 << 6;
+    private static final int HAS_LIMIT_FLAG = 1 << 7;
+    private static final int IS_STREAM_FLAG = 1 << 8;
+    private static final int HAS_WINDOW_FLAG = 1 << 9;
+    private static final int HAS_VALUES_FLAG = 1 << 10;
+    private static final int HAS_SUBJECT_FLAG = 1 << 11;
+    private static final int IS_ORDERED_FLAG = 1 << 12;
+    private static final int HAS_SINCE_FLAG = 1 << 14;
+    private static final int HAS_UNTIL_FLAG = 1 << 15;
+    private static final int PACKED_ENTRIES_FLAG = 1 << 16;
+    /**
+     * Entry lists at least this long are written as a {@link HistoryBlock}, where slowly changing
+     * values take about a byte each
+     */
+    private static final int PACKED_ENTRIES_MIN = 64;
+    private static final Topic[] TOPICS = Topic.values();
+    private static final Range[] RANGES = Range.values();
+    private static final Response[] RESPONSES = Response.values();
     private List<Integer> entries;
+    private List<Double> values;
     private Topic topic;
+    private Topic subject;
     private Range range;
     private Response response;
     private long id;
     private int amount;
     private boolean hasAmount;
     private boolean hasId;
+    private long correlation;
+    private boolean hasCorrelation;
+    private long offset;
+    private boolean hasOffset;
+    private int limit;
+    private boolean hasLimit;
+    private boolean isStream;
+    private boolean isOrdered;
+    private long window;
+    private boolean hasWindow;
+    private long since;
+    private boolean hasSince;
+    private long until;
+    private boolean hasUntil;
+    private transient volatile HistoryBlock.Encoding packedEntries;
     
-    private Request( final List<Integer> entries, final Topic topic, final Range range, final Response response, final boolean hasId, final long id, final boolean hasAmount, final int amount ) {
+    private Request( final Builder builder ) {
         
-        this.entries = entries;
-        this.topic = topic;
-        this.range = range;
-        this.response = response;
-        this.hasId = hasId;
-        this.id = id;
-        this.hasAmount = hasAmount;
-        this.amount = amount;
+        this.entries = builder.entries;
+        this.values = builder.values;
+        this.topic = builder.topic;
+        this.subject = builder.subject;
+        this.range = builder.range;
+        this.response = builder.response;
+        this.hasId = builder.hasId;
+        this.id = builder.id;
+        this.hasAmount = builder.hasAmount;
+        this.amount = builder.amount;
+        this.hasCorrelation = builder.hasCorrelation;
+        this.correlation = builder.correlation;
+        this.hasOffset = builder.hasOffset;
+        this.offset = builder.offset;
+        this.hasLimit = builder.hasLimit;
+        this.limit = builder.limit;
+        this.isStream = builder.isStream;
+        this.isOrdered = builder.isOrdered;
+        this.hasWindow = builder.hasWindow;
+        this.window = builder.window;
+        this.hasSince = builder.hasSince;
+        this.since = builder.since;
+        this.hasUntil = builder.hasUntil;
+        this.until = builder.until;
     }
     
     public List<Integer> getEntries() {
@@ -44,11 +112,27 @@ public class Request implements Serializable{
         return entries;
     }
     
+    /**
+     * @return Fractional parameters or results, such as the quantiles of a PERCENTILE request
+     */
+    public List<Double> getValues() {
+        
+        return values;
+    }
+    
     public Topic getTopic() {
         
         return topic;
     }
     
+    /**
+     * @return The topic a SUBSCRIBE request asks to have pushed, or null
+     */
+    public Topic getSubject() {
+        
+        return subject;
+    }
+    
     public Range getRange() {
         
         return range;
@@ -69,6 +153,140 @@ public class Request implements Serializable{
         return amount;
     }
     
+    /**
+     * @return The number chosen by the client to match responses to this request, if
+     * {@link #hasCorrelation()}
+     */
+    public long getCorrelation() {
+        
+        return correlation;
+    }
+    
+    public boolean hasCorrelation() {
+        
+        return hasCorrelation;
+    }
+    
+    /**
+     * @return The position of the first entry asked for, or of the first entry carried by a
+     * HISTORY response, if {@link #hasOffset()}
+     */
+    public long getOffset() {
+        
+        return offset;
+    }
+    
+    public boolean hasOffset() {
+        
+        return hasOffset;
+    }
+    
+    /**
+     * @return The most entries asked for, if {@link #hasLimit()}
+     */
+    public int getLimit() {
+        
+        return limit;
+    }
+    
+    public boolean hasLimit() {
+        
+        return hasLimit;
+    }
+    
+    /**
+     * @return True if the client asked for the entries to be sent as a sequence of
+     * {@link Response#PARTIAL} chunks ending with one {@link Response#OK} chunk
+     */
+    public boolean isStream() {
+        
+        return isStream;
+    }
+    
+    /**
+     * @return True if a HISTORY ALL request asked for every client's entries merged in the order
+     * they arrived, rather than one client after another
+     */
+    public boolean isOrdered() {
+        
+        return isOrdered;
+    }
+    
+    /**
+     * @return How many milliseconds back from now the request covers, if {@link #hasWindow()}
+     */
+    public long getWindow() {
+        
+        return window;
+    }
+    
+    public boolean hasWindow() {
+        
+        return hasWindow;
+    }
+    
+    /**
+     * @return The earliest arrival time the request covers, in milliseconds since the epoch, if
+     * {@link #hasSince()}
+     */
+    public long getSince() {
+        
+        return since;
+    }
+    
+    public boolean hasSince() {
+        
+        return hasSince;
+    }
+    
+    /**
+     * @return The arrival time the request covers up to but not including, in milliseconds since
+     * the epoch, if {@link #hasUntil()}
+     */
+    public long getUntil() {
+        
+        return until;
+    }
+    
+    public boolean hasUntil() {
+        
+        return hasUntil;
+    }
+    
+    /**
+     * @return True if the request only covers values that arrived between two times
+     */
+    public boolean hasTimeRange() {
+        
+        return hasSince || hasUntil;
+    }
+    
+    /**
+     * @param correlation The number the client will use to match the response to this request
+     *
+     * @return A copy of this request carrying the correlation
+     */
+    public Request withCorrelation( final long correlation ) {
+        
+        return new Builder().from(this).correlation(correlation).build();
+    }
+    
+    /**
+     * Carries the correlation of the request over to this response, so a client with several
+     * requests in flight can tell which one it answers.
+     *
+     * @param request The request this is a response to
+     *
+     * @return This response if the request has no correlation, otherwise a correlated copy
+     */
+    public Request inReplyTo( final Request request ) {
+        
+        if (!request.hasCorrelation()) {
+            return this;
+        }
+        return withCorrelation(request.getCorrelation());
+    }
+    
     public String toJSONString() {
         
         try {
@@ -80,17 +298,47 @@ public class Request implements Serializable{
             if (response != null) {
                 intermediate.put(RESPONSE_KEY, response);
             }
+            if (subject != null) {
+                intermediate.put(SUBJECT_KEY, subject);
+            }
+            if (hasCorrelation) {
+                intermediate.put(CORRELATION_KEY, correlation);
+            }
             
             final JSONObject data = new JSONObject();
             if (entries != null) {
                 data.put(ENTRIES_KEY, entries);
             }
+            if (values != null) {
+                data.put(VALUES_KEY, values);
+            }
             if (range != null) {
                 data.put(RANGE_KEY, range);
             }
             if (hasAmount) {
                 data.put(AMOUNT_KEY, amount);
             }
+            if (hasOffset) {
+                data.put(OFFSET_KEY, offset);
+            }
+            if (hasLimit) {
+                data.put(LIMIT_KEY, limit);
+            }
+            if (isStream) {
+                data.put(STREAM_KEY, true);
+            }
+            if (isOrdered) {
+                data.put(ORDERED_KEY, true);
+            }
+            if (hasWindow) {
+                data.put(WINDOW_KEY, window);
+            }
+            if (hasSince) {
+                data.put(SINCE_KEY, since);
+            }
+            if (hasUntil) {
+                data.put(UNTIL_KEY, until);
+            }
             intermediate.put(DATA_KEY, data);
             return intermediate.toString();
         } catch (final JSONException exception) {
@@ -98,8 +346,203 @@ public class Request implements Serializable{
         }
     }
     
+    /**
+     * @return The number of bytes {@link #writeBinary(ByteBuffer)} writes, not counting the
+     * length prefix of the frame
+     */
+    public int binaryLength() {
+        
+        final int flags = binaryFlags();
+        int length = 1 + WireFormat.varIntLength(flags);
+        if (hasId) {
+            length += WireFormat.varLongLength(WireFormat.zigZag(id));
+        }
+        if (hasCorrelation) {
+            length += WireFormat.varLongLength(correlation);
+        }
+        if (response != null) {
+            length += 1;
+        }
+        if (subject != null) {
+            length += 1;
+        }
+        if (range != null) {
+            length += 1;
+        }
+        if (hasAmount) {
+            length += WireFormat.varIntLength(WireFormat.zigZag(amount));
+        }
+        if (isPacked()) {
+            length += packedEntries().length();
+        } else if (entries != null) {
+            length += WireFormat.varIntLength(entries.size());
+            for (int i = 0; i < entries.size(); ++i) {
+                length += WireFormat.varIntLength(WireFormat.zigZag(entries.get(i)));
+            }
+        }
+        if (hasOffset) {
+            length += WireFormat.varLongLength(offset);
+        }
+        if (hasLimit) {
+            length += WireFormat.varIntLength(limit);
+        }
+        if (hasWindow) {
+            length += WireFormat.varLongLength(window);
+        }
+        if (values != null) {
+            length += WireFormat.varIntLength(values.size()) + values.size() * Double.BYTES;
+        }
+        if (hasSince) {
+            length += WireFormat.varLongLength(since);
+        }
+        if (hasUntil) {
+            length += WireFormat.varLongLength(until);
+        }
+        return length;
+    }
+    
+    /**
+     * Writes the request as a topic byte, a varint of the fields present, then each present
+     * field. Integers are zig-zag varints, so a SUBMIT of a small value takes a handful of bytes.
+     * Long entry lists, such as large HISTORY responses, are written as a {@link HistoryBlock} of
+     * changes between values.
+     *
+     * @param out The buffer to write to, with at least {@link #binaryLength()} bytes remaining
+     */
+    public void writeBinary( final ByteBuffer out ) {
+        
+        out.put((byte) topic.ordinal());
+        WireFormat.putVarInt(out, binaryFlags());
+        if (hasId) {
+            WireFormat.putVarLong(out, WireFormat.zigZag(id));
+        }
+        if (hasCorrelation) {
+            WireFormat.putVarLong(out, correlation);
+        }
+        if (response != null) {
+            out.put((byte) response.ordinal());
+        }
+        if (subject != null) {
+            out.put((byte) subject.ordinal());
+        }
+        if (range != null) {
+            out.put((byte) range.ordinal());
+        }
+        if (hasAmount) {
+            WireFormat.putVarInt(out, WireFormat.zigZag(amount));
+        }
+        if (isPacked()) {
+            packedEntries().write(out);
+        } else if (entries != null) {
+            WireFormat.putVarInt(out, entries.size());
+            for (int i = 0; i < entries.size(); ++i) {
+                WireFormat.putVarInt(out, WireFormat.zigZag(entries.get(i)));
+            }
+        }
+        if (hasOffset) {
+            WireFormat.putVarLong(out, offset);
+        }
+        if (hasLimit) {
+            WireFormat.putVarInt(out, limit);
+        }
+        if (hasWindow) {
+            WireFormat.putVarLong(out, window);
+        }
+        if (values != null) {
+            WireFormat.putVarInt(out, values.size());
+            for (int i = 0; i < values.size(); ++i) {
+                out.putDouble(values.get(i));
+            }
+        }
+        if (hasSince) {
+            WireFormat.putVarLong(out, since);
+        }
+        if (hasUntil) {
+            WireFormat.putVarLong(out, until);
+        }
+    }
+    
+    private int binaryFlags() {
+        
+        int flags = 0;
+        if (hasId) {
+            flags |= HAS_ID_FLAG;
+        }
+        if (hasCorrelation) {
+            flags |= HAS_CORRELATION_FLAG;
+        }
+        if (response != null) {
+            flags |= HAS_RESPONSE_FLAG;
+        }
+        if (subject != null) {
+            flags |= HAS_SUBJECT_FLAG;
+        }
+        if (range != null) {
+            flags |= HAS_RANGE_FLAG;
+        }
+        if (hasAmount) {
+            flags |= HAS_AMOUNT_FLAG;
+        }
+        if (entries != null) {
+            flags |= HAS_ENTRIES_FLAG;
+        }
+        if (hasOffset) {
+            flags |= HAS_OFFSET_FLAG;
+        }
+        if (hasLimit) {
+            flags |= HAS_LIMIT_FLAG;
+        }
+        if (isStream) {
+            flags |= IS_STREAM_FLAG;
+        }
+        if (isOrdered) {
+            flags |= IS_ORDERED_FLAG;
+        }
+        if (hasWindow) {
+            flags |= HAS_WINDOW_FLAG;
+        }
+        if (values != null) {
+            flags |= HAS_VALUES_FLAG;
+        }
+        if (hasSince) {
+            flags |= HAS_SINCE_FLAG;
+        }
+        if (hasUntil) {
+            flags |= HAS_UNTIL_FLAG;
+        }
+        if (isPacked()) {
+            flags |= PACKED_ENTRIES_FLAG;
+        }
+        return flags;
+    }
+    
+    private boolean isPacked() {
+        
+        return entries != null && entries.size() >= PACKED_ENTRIES_MIN;
+    }
+    
+    /**
+     * Unboxes the entries and summarizes them for their block the first time the request is
+     * measured or written, and keeps the result for the rest, as a response pushed to many
+     * subscribers is encoded once for each
+     */
+    private HistoryBlock.Encoding packedEntries() {
+        
+        HistoryBlock.Encoding encoding = packedEntries;
+        if (encoding == null) {
+            final int[] array = new int[entries.size()];
+            for (int i = 0; i < array.length; ++i) {
+                array[i] = entries.get(i);
+            }
+            encoding = HistoryBlock.encode(array, null, 0, array.length);
+            packedEntries = encoding;
+        }
+        return encoding;
+    }
+    
     public enum Topic {
-        SUBMIT, AVERAGE, COUNT, HISTORY, USERS, DISCONNECT,
+        SUBMIT, AVERAGE, COUNT, HISTORY, USERS, DISCONNECT, SUBMIT_BATCH, ROLLING_AVERAGE, PERCENTILE, EWMA, STATS, SUBSCRIBE,
+        UNSUBSCRIBE, DISTINCT, TOPVALUES,
     }
     
     public enum Range {
@@ -108,18 +551,52 @@ public class Request implements Serializable{
     
     public enum Response {
         OK, ERROR,
+        /**
+         * One chunk of a streamed response, with more chunks to follow
+         */
+        PARTIAL,
+    }
+    
+    /**
+     * How requests are written on a connection
+     */
+    public enum Encoding {
+        /**
+         * JSON strings written with ObjectOutputStream
+         */
+        JSON,
+        /**
+         * Length-prefixed frames written by {@link BinaryCodec}
+         */
+        BINARY,
     }
     
     public static class Builder {
         
         private List<Integer> entries = null;
+        private List<Double> values = null;
         private Topic topic = null;
+        private Topic subject = null;
         private Range range = null;
         private Response response = null;
         private long id = -1;
         private int amount;
         private boolean hasAmount = false;
         private boolean hasId = false;
+        private long correlation;
+        private boolean hasCorrelation = false;
+        private long offset;
+        private boolean hasOffset = false;
+        private int limit;
+        private boolean hasLimit = false;
+        private boolean isStream = false;
+        private boolean isOrdered = false;
+        private long window;
+        private boolean hasWindow = false;
+        private long since;
+        private boolean hasSince = false;
+        private long until;
+        private boolean hasUntil = false;
         
         public Builder entries( final List<Integer> entries ) {
             
@@ -127,12 +604,27 @@ public class Request implements Serializable{
             return this;
         }
         
+        public Builder values( final List<Double> values ) {
+            
+            this.values = values;
+            return this;
+        }
+        
         public Builder topic( final Topic topic ) {
             
             this.topic = topic;
             return this;
         }
     
+        /**
+         * @param subject The topic a SUBSCRIBE request asks to have pushed
+         */
+        public Builder subject( final Topic subject ) {
+            
+            this.subject = subject;
+            return this;
+        }
+        
         public Builder range( final Range range ) {
             
             this.range = range;
@@ -152,6 +644,116 @@ public class Request implements Serializable{
             return this;
         }
     
+        public Builder correlation( final long correlation ) {
+            
+            this.correlation = correlation;
+            this.hasCorrelation = true;
+            return this;
+        }
+        
+        /**
+         * @param offset The position of the first entry, counting from 0
+         */
+        public Builder offset( final long offset ) {
+            
+            this.offset = offset;
+            this.hasOffset = true;
+            return this;
+        }
+        
+        /**
+         * @param limit The most entries to return
+         */
+        public Builder limit( final int limit ) {
+            
+            this.limit = limit;
+            this.hasLimit = true;
+            return this;
+        }
+        
+        /**
+         * @param isStream True to ask for the response in bounded chunks
+         */
+        public Builder stream( final boolean isStream ) {
+            
+            this.isStream = isStream;
+            return this;
+        }
+        
+        /**
+         * @param isOrdered True to ask for entries in the order they arrived across every client
+         */
+        public Builder ordered( final boolean isOrdered ) {
+            
+            this.isOrdered = isOrdered;
+            return this;
+        }
+        
+        /**
+         * @param window How many milliseconds back from now to cover
+         */
+        public Builder window( final long window ) {
+            
+            this.window = window;
+            this.hasWindow = true;
+            return this;
+        }
+        
+        /**
+         * @param since The earliest arrival time to cover, in milliseconds since the epoch
+         */
+        public Builder since( final long since ) {
+            
+            this.since = since;
+            this.hasSince = true;
+            return this;
+        }
+        
+        /**
+         * @param until The arrival time to cover up to but not including, in milliseconds since
+         *              the epoch
+         */
+        public Builder until( final long until ) {
+            
+            this.until = until;
+            this.hasUntil = true;
+            return this;
+        }
+        
+        /**
+         * Copies every field of an existing request
+         *
+         * @param request The request to copy
+         */
+        public Builder from( final Request request ) {
+            
+            this.entries = request.entries;
+            this.values = request.values;
+            this.topic = request.topic;
+            this.subject = request.subject;
+            this.range = request.range;
+            this.response = request.response;
+            this.hasId = request.hasId;
+            this.id = request.id;
+            this.hasAmount = request.hasAmount;
+            this.amount = request.amount;
+            this.hasCorrelation = request.hasCorrelation;
+            this.correlation = request.correlation;
+            this.hasOffset = request.hasOffset;
+            this.offset = request.offset;
+            this.hasLimit = request.hasLimit;
+            this.limit = request.limit;
+            this.isStream = request.isStream;
+            this.isOrdered = request.isOrdered;
+            this.hasWindow = request.hasWindow;
+            this.window = request.window;
+            this.hasSince = request.hasSince;
+            this.since = request.since;
+            this.hasUntil = request.hasUntil;
+            this.until = request.until;
+            return this;
+        }
+        
         public Builder amount( final int amount ) {
             
             this.amount = amount;
@@ -159,10 +761,17 @@ public class Request implements Serializable{
             return this;
         }
     
+        /**
+         * Reads a request written by {@link Request#toJSONString()}. Input that is not JSON, or
+         * names an unknown topic, range or response, or has a field of the wrong type, leaves the
+         * builder without a topic, so {@link #build()} returns null.
+         *
+         * @param inputString The JSON text
+         */
         public Builder fromJSONString( final String inputString ) {
             
-            final JSONObject input = new JSONObject(inputString);
             try {
+                final JSONObject input = new JSONObject(inputString);
                 if (input.has(TOPIC_KEY)) {
                     topic(Topic.valueOf(input.getString(TOPIC_KEY)));
                 } else {
@@ -174,6 +783,12 @@ public class Request implements Serializable{
                 if (input.has(ID_KEY)) {
                     id(input.getLong(ID_KEY));
                 }
+                if (input.has(CORRELATION_KEY)) {
+                    correlation(input.getLong(CORRELATION_KEY));
+                }
+                if (input.has(SUBJECT_KEY)) {
+                    subject(Topic.valueOf(input.getString(SUBJECT_KEY)));
+                }
                 if (!input.has(DATA_KEY)) {
                     topic = null;
                     return this;
@@ -193,18 +808,130 @@ public class Request implements Serializable{
                     }
                     entries(inputEntries);
                 }
-            } catch (final JSONException exception) {
-                // Nothing to do.
+                if (data.has(OFFSET_KEY)) {
+                    offset(data.getLong(OFFSET_KEY));
+                }
+                if (data.has(LIMIT_KEY)) {
+                    limit(data.getInt(LIMIT_KEY));
+                }
+                if (data.has(STREAM_KEY)) {
+                    stream(data.getBoolean(STREAM_KEY));
+                }
+                if (data.has(ORDERED_KEY)) {
+                    ordered(data.getBoolean(ORDERED_KEY));
+                }
+                if (data.has(WINDOW_KEY)) {
+                    window(data.getLong(WINDOW_KEY));
+                }
+                if (data.has(VALUES_KEY)) {
+                    final JSONArray dataValues = data.getJSONArray(VALUES_KEY);
+                    final List<Double> inputValues = new ArrayList<>(dataValues.length());
+                    for (int i = 0; i < dataValues.length(); ++i) {
+                        inputValues.add(dataValues.getDouble(i));
+                    }
+                    values(inputValues);
+                }
+                if (data.has(SINCE_KEY)) {
+                    since(data.getLong(SINCE_KEY));
+                }
+                if (data.has(UNTIL_KEY)) {
+                    until(data.getLong(UNTIL_KEY));
+                }
+            } catch (final JSONException | IllegalArgumentException exception) {
+                topic = null;
             }
             return this;
         }
     
+        /**
+         * Reads a request written by {@link Request#writeBinary(ByteBuffer)}. A malformed body
+         * leaves the builder without a topic, so {@link #build()} returns null.
+         *
+         * @param input The frame body, positioned at the topic byte
+         */
+        public Builder fromBinary( final ByteBuffer input ) {
+            
+            try {
+                topic(TOPICS[input.get()]);
+                final int flags = WireFormat.getVarInt(input);
+                if (( flags & HAS_ID_FLAG ) != 0) {
+                    id(WireFormat.unZigZag(WireFormat.getVarLong(input)));
+                }
+                if (( flags & HAS_CORRELATION_FLAG ) != 0) {
+                    correlation(WireFormat.getVarLong(input));
+                }
+                if (( flags & HAS_RESPONSE_FLAG ) != 0) {
+                    response(RESPONSES[input.get()]);
+                }
+                if (( flags & HAS_SUBJECT_FLAG ) != 0) {
+                    subject(TOPICS[input.get()]);
+                }
+                if (( flags & HAS_RANGE_FLAG ) != 0) {
+                    range(RANGES[input.get()]);
+                }
+                if (( flags & HAS_AMOUNT_FLAG ) != 0) {
+                    amount(WireFormat.unZigZag(WireFormat.getVarInt(input)));
+                }
+                if (( flags & HAS_ENTRIES_FLAG ) != 0 && ( flags & PACKED_ENTRIES_FLAG ) != 0) {
+                    final HistoryBlock block = HistoryBlock.read(input);
+                    final int[] packed = new int[block.getCount()];
+                    block.copyValues(0, packed, 0, packed.length);
+                    final List<Integer> inputEntries = new ArrayList<>(packed.length);
+                    for (int entry : packed) {
+                        inputEntries.add(entry);
+                    }
+                    entries(inputEntries);
+                } else if (( flags & HAS_ENTRIES_FLAG ) != 0) {
+                    final int size = WireFormat.getVarInt(input);
+                    if (size < 0 || size > input.remaining()) {
+                        throw new IllegalArgumentException("Invalid entry count " + size);
+                    }
+                    final List<Integer> inputEntries = new ArrayList<>(size);
+                    for (int i = 0; i < size; ++i) {
+                        inputEntries.add(WireFormat.unZigZag(WireFormat.getVarInt(input)));
+                    }
+                    entries(inputEntries);
+                }
+                if (( flags & HAS_OFFSET_FLAG ) != 0) {
+                    offset(WireFormat.getVarLong(input));
+                }
+                if (( flags & HAS_LIMIT_FLAG ) != 0) {
+                    limit(WireFormat.getVarInt(input));
+                }
+                stream(( flags & IS_STREAM_FLAG ) != 0);
+                ordered(( flags & IS_ORDERED_FLAG ) != 0);
+                if (( flags & HAS_WINDOW_FLAG ) != 0) {
+                    window(WireFormat.getVarLong(input));
+                }
+                if (( flags & HAS_VALUES_FLAG ) != 0) {
+                    final int size = WireFormat.getVarInt(input);
+                    if (size < 0 || size > input.remaining() / Double.BYTES) {
+                        throw new IllegalArgumentException("Invalid value count " + size);
+                    }
+                    final List<Double> inputValues = new ArrayList<>(size);
+                    for (int i = 0; i < size; ++i) {
+                        inputValues.add(input.getDouble());
+                    }
+                    values(inputValues);
+                }
+                if (( flags & HAS_SINCE_FLAG ) != 0) {
+                    since(WireFormat.getVarLong(input));
+                }
+                if (( flags & HAS_UNTIL_FLAG ) != 0) {
+                    until(WireFormat.getVarLong(input));
+                }
+            } catch (final BufferUnderflowException | IllegalArgumentException | ArrayIndexOutOfBoundsException exception) {
+                topic = null;
+            }
+            return this;
+        }
+        
         public Request build() {
             
             if (topic == null) {
                 return null;
             }
-            return new Request(entries, topic, range, response, hasId, id, hasAmount, amount);
+            return new Request(this);
         }
     }
 }
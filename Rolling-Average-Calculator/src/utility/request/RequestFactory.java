@@ -1,5 +1,8 @@
 package utility.request;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 public class RequestFactory {
@@ -9,11 +12,69 @@ public class RequestFactory {
         return new Request.Builder().id(id).topic(Request.Topic.SUBMIT).amount(amount).build();
     }
     
+    public static Request clientSubmitBatchRequest( final long id, final int[] amounts ) {
+        
+        final List<Integer> entries = new ArrayList<>(amounts.length);
+        for (int amount : amounts) {
+            entries.add(amount);
+        }
+        return new Request.Builder().id(id).topic(Request.Topic.SUBMIT_BATCH).entries(entries).build();
+    }
+    
     public static Request clientAverageRequest( final long id, final Request.Range range ) {
         
         return new Request.Builder().id(id).topic(Request.Topic.AVERAGE).range(range).build();
     }
     
+    /**
+     * @param window How many milliseconds back from now the average covers
+     */
+    public static Request clientAverageRequest( final long id, final Request.Range range, final long window ) {
+        
+        return new Request.Builder().id(id).topic(Request.Topic.AVERAGE).range(range).window(window).build();
+    }
+    
+    public static Request clientRollingAverageRequest( final long id, final Request.Range range ) {
+        
+        return new Request.Builder().id(id).topic(Request.Topic.ROLLING_AVERAGE).range(range).build();
+    }
+    
+    /**
+     * @param quantiles The quantiles to estimate, each from 0 to 1, such as 0.5, 0.95 and 0.99
+     */
+    public static Request clientPercentileRequest( final long id, final Request.Range range, final List<Double> quantiles ) {
+        
+        return new Request.Builder().id(id).topic(Request.Topic.PERCENTILE).range(range).values(quantiles).build();
+    }
+    
+    public static Request clientEwmaRequest( final long id, final Request.Range range ) {
+        
+        return new Request.Builder().id(id).topic(Request.Topic.EWMA).range(range).build();
+    }
+    
+    public static Request clientStatsRequest( final long id, final Request.Range range ) {
+        
+        return new Request.Builder().id(id).topic(Request.Topic.STATS).range(range).build();
+    }
+    
+    public static Request clientDistinctRequest( final long id, final Request.Range range ) {
+        
+        return new Request.Builder().id(id).topic(Request.Topic.DISTINCT).range(range).build();
+    }
+    
+    public static Request clientTopValuesRequest( final long id, final Request.Range range ) {
+        
+        return new Request.Builder().id(id).topic(Request.Topic.TOPVALUES).range(range).build();
+    }
+    
+    /**
+     * @param count How many of the most frequent values to return
+     */
+    public static Request clientTopValuesRequest( final long id, final Request.Range range, final int count ) {
+        
+        return new Request.Builder().id(id).topic(Request.Topic.TOPVALUES).range(range).limit(count).build();
+    }
+    
     public static Request clientCountRequest( final long id, final Request.Range range ) {
         
         return new Request.Builder().id(id).topic(Request.Topic.COUNT).range(range).build();
@@ -24,6 +85,61 @@ public class RequestFactory {
         return new Request.Builder().id(id).topic(Request.Topic.HISTORY).range(range).build();
     }
     
+    /**
+     * @param offset The position of the first entry to return, counting from 0
+     * @param limit  The most entries to return
+     */
+    public static Request clientHistoryRequest( final long id, final Request.Range range, final long offset, final int limit ) {
+        
+        return new Request.Builder().id(id).topic(Request.Topic.HISTORY).range(range).offset(offset).limit(limit).build();
+    }
+    
+    /**
+     * Asks for the whole history as a sequence of bounded chunks instead of one response
+     */
+    public static Request clientHistoryStreamRequest( final long id, final Request.Range range ) {
+        
+        return new Request.Builder().id(id).topic(Request.Topic.HISTORY).range(range).stream(true).build();
+    }
+    
+    /**
+     * @param ordered True to merge every client's entries in the order they arrived, which the
+     *                server has to sort; false to send them one client after another
+     */
+    public static Request clientHistoryStreamRequest( final long id, final Request.Range range, final boolean ordered ) {
+        
+        return new Request.Builder().id(id).topic(Request.Topic.HISTORY).range(range).stream(true).ordered(ordered).build();
+    }
+    
+    /**
+     * Restricts an AVERAGE, COUNT or HISTORY request to the values that arrived between two times
+     *
+     * @param since The earliest arrival time to cover, in milliseconds since the epoch
+     * @param until The arrival time to cover up to but not including, in milliseconds since the
+     *              epoch
+     */
+    public static Request clientTimeRangeRequest( final long id, final Request.Topic topic, final Request.Range range, final long since, final long until ) {
+        
+        return new Request.Builder().id(id).topic(topic).range(range).since(since).until(until).build();
+    }
+    
+    /**
+     * Asks the server to push the subject's value for the range whenever it changes, at most once
+     * per push interval. The request must be sent with a correlation, which every push carries.
+     */
+    public static Request clientSubscribeRequest( final long id, final Request.Topic subject, final Request.Range range ) {
+        
+        return new Request.Builder().id(id).topic(Request.Topic.SUBSCRIBE).subject(subject).range(range).build();
+    }
+    
+    /**
+     * @param subscription The correlation the subscription was made with
+     */
+    public static Request clientUnsubscribeRequest( final long id, final long subscription ) {
+        
+        return new Request.Builder().id(id).topic(Request.Topic.UNSUBSCRIBE).correlation(subscription).build();
+    }
+    
     public static Request clientUsersRequest( final long id ) {
         
         return new Request.Builder().id(id).topic(Request.Topic.USERS).build();
@@ -39,11 +155,65 @@ public class RequestFactory {
         return new Request.Builder().topic(Request.Topic.SUBMIT).response(response).amount(amount).build();
     }
     
+    public static Request serverSubmitBatchResponse( final Request.Response response, final int amount ) {
+        
+        return new Request.Builder().topic(Request.Topic.SUBMIT_BATCH).response(response).amount(amount).build();
+    }
+    
     public static Request serverAverageResponse( final Request.Response response, final Request.Range range, final int amount ) {
         
         return new Request.Builder().topic(Request.Topic.AVERAGE).response(response).range(range).amount(amount).build();
     }
     
+    public static Request serverRollingAverageResponse( final Request.Response response, final Request.Range range, final int amount ) {
+        
+        return new Request.Builder().topic(Request.Topic.ROLLING_AVERAGE).response(response).range(range).amount(amount).build();
+    }
+    
+    /**
+     * @param quantiles The quantiles that were asked for
+     * @param estimates The estimated value at each quantile, in the same order
+     */
+    public static Request serverPercentileResponse( final Request.Response response, final Request.Range range, final List<Double> quantiles, final List<Integer> estimates ) {
+        
+        return new Request.Builder().topic(Request.Topic.PERCENTILE).response(response).range(range).values(quantiles).entries(estimates).build();
+    }
+    
+    /**
+     * @param average The weighted average, sent rounded as the amount and exactly as the only value
+     */
+    public static Request serverEwmaResponse( final Request.Response response, final Request.Range range, final double average ) {
+        
+        return new Request.Builder().topic(Request.Topic.EWMA).response(response).range(range).amount((int) Math.round(average)).values(Collections.singletonList(average)).build();
+    }
+    
+    /**
+     * Answers a STATS request in one response. The values are, in order: count, mean, variance,
+     * standard deviation, minimum and maximum. The count is also sent as the amount.
+     */
+    public static Request serverStatsResponse( final Request.Response response, final Request.Range range, final long count, final double mean, final double variance, final int min, final int max ) {
+        
+        final List<Double> stats = Arrays.asList((double) count, mean, variance, Math.sqrt(variance), (double) min, (double) max);
+        return new Request.Builder().topic(Request.Topic.STATS).response(response).range(range).amount((int) Math.min(Integer.MAX_VALUE, count)).values(stats).build();
+    }
+    
+    /**
+     * @param estimate The estimated number of distinct values, also sent as the amount
+     */
+    public static Request serverDistinctResponse( final Request.Response response, final Request.Range range, final long estimate ) {
+        
+        return new Request.Builder().topic(Request.Topic.DISTINCT).response(response).range(range).amount((int) Math.min(Integer.MAX_VALUE, estimate)).values(Collections.singletonList((double) estimate)).build();
+    }
+    
+    /**
+     * @param topValues The most frequent values, most frequent first
+     * @param counts    How many times each value is estimated to occur, in the same order
+     */
+    public static Request serverTopValuesResponse( final Request.Response response, final Request.Range range, final List<Integer> topValues, final List<Double> counts ) {
+        
+        return new Request.Builder().topic(Request.Topic.TOPVALUES).response(response).range(range).entries(topValues).values(counts).build();
+    }
+    
     public static Request serverCountResponse( final Request.Response response, final Request.Range range, final int amount ) {
         
         return new Request.Builder().topic(Request.Topic.COUNT).response(response).range(range).amount(amount).build();
@@ -54,6 +224,24 @@ public class RequestFactory {
         return new Request.Builder().topic(Request.Topic.HISTORY).response(response).range(range).entries(entries).build();
     }
     
+    /**
+     * @param offset The position of the first of the entries in the whole history
+     */
+    public static Request serverHistoryResponse( final Request.Response response, final Request.Range range, final List<Integer> entries, final long offset ) {
+        
+        return new Request.Builder().topic(Request.Topic.HISTORY).response(response).range(range).entries(entries).offset(offset).build();
+    }
+    
+    public static Request serverSubscribeResponse( final Request.Response response ) {
+        
+        return new Request.Builder().topic(Request.Topic.SUBSCRIBE).response(response).build();
+    }
+    
+    public static Request serverUnsubscribeResponse( final Request.Response response ) {
+        
+        return new Request.Builder().topic(Request.Topic.UNSUBSCRIBE).response(response).build();
+    }
+    
     public static Request serverUsersRequest( final Request.Response response, final int amount ) {
         
         return new Request.Builder().topic(Request.Topic.USERS).response(response).amount(amount).build();
@@ -0,0 +1,121 @@
+package utility.request;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Variable-length integer helpers shared by the binary {@link Request} encoding. Unsigned values
+ * use LEB128 varints; signed values are zig-zag mapped first so small negatives stay small.
+ */
+public final class WireFormat {
+    
+    private WireFormat() {
+        
+    }
+    
+    public static int zigZag( final int value ) {
+        
+        return ( value << 1 ) ^ ( value >> 31 );
+    }
+    
+    public static int unZigZag( final int value ) {
+        
+        return ( value >>> 1 ) ^ -( value & 1 );
+    }
+    
+    public static long zigZag( final long value ) {
+        
+        return ( value << 1 ) ^ ( value >> 63 );
+    }
+    
+    public static long unZigZag( final long value ) {
+        
+        return ( value >>> 1 ) ^ -( value & 1 );
+    }
+    
+    /**
+     * @param value An unsigned value
+     *
+     * @return The number of bytes {@link #putVarInt(ByteBuffer, int)} writes for the value
+     */
+    public static int varIntLength( final int value ) {
+        
+        int length = 1;
+        int remaining = value >>> 7;
+        while (remaining != 0) {
+            ++length;
+            remaining >>>= 7;
+        }
+        return length;
+    }
+    
+    /**
+     * @param value An unsigned value
+     *
+     * @return The number of bytes {@link #putVarLong(ByteBuffer, long)} writes for the value
+     */
+    public static int varLongLength( final long value ) {
+        
+        int length = 1;
+        long remaining = value >>> 7;
+        while (remaining != 0) {
+            ++length;
+            remaining >>>= 7;
+        }
+        return length;
+    }
+    
+    public static void putVarInt( final ByteBuffer out, final int value ) {
+        
+        int remaining = value;
+        while (( remaining & ~0x7F ) != 0) {
+            out.put((byte) ( ( remaining & 0x7F ) | 0x80 ));
+            remaining >>>= 7;
+        }
+        out.put((byte) remaining);
+    }
+    
+    public static void putVarLong( final ByteBuffer out, final long value ) {
+        
+        long remaining = value;
+        while (( remaining & ~0x7FL ) != 0) {
+            out.put((byte) ( ( remaining & 0x7F ) | 0x80 ));
+            remaining >>>= 7;
+        }
+        out.put((byte) remaining);
+    }
+    
+    /**
+     * @throws BufferUnderflowException If the buffer ends before the varint does
+     * @throws IllegalArgumentException If the varint is longer than an int allows
+     */
+    public static int getVarInt( final ByteBuffer in ) {
+        
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            final byte b = in.get();
+            value |= ( b & 0x7F ) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+    
+    /**
+     * @throws BufferUnderflowException If the buffer ends before the varint does
+     * @throws IllegalArgumentException If the varint is longer than a long allows
+     */
+    public static long getVarLong( final ByteBuffer in ) {
+        
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            final byte b = in.get();
+            value |= (long) ( b & 0x7F ) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+}